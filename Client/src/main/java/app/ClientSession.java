@@ -40,6 +40,8 @@ public class ClientSession {
         }
         try {
             client = new HospitalClient("localhost", 5555);
+            // the login was bound to the old connection
+            loggedUser = null;
             return true;
         } catch (Exception e) {
             return false;
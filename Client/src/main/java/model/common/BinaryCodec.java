@@ -0,0 +1,521 @@
+package model.common;
+
+import model.dto.AppointmentDTO;
+import model.dto.AppointmentEventDTO;
+import model.dto.ChartPointDTO;
+import model.dto.CommandDTO;
+import model.dto.DoctorDTO;
+import model.dto.DoctorScheduleDTO;
+import model.dto.MedicalRecordEntryDTO;
+import model.dto.MedicalServiceDTO;
+import model.dto.SpecializationDTO;
+import ocsf.client.MessageCodec;
+import ocsf.client.SerializationCodec;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the messages exchanged between the client and
+ * the server. Requests, responses, commands and the DTOs returned in lists
+ * are written field by field with variable-length numbers, and a string
+ * repeated within one message (doctor names, statuses...) is written once
+ * and then referenced. Any other value is embedded with Java serialization,
+ * so every message that could be sent before can still be sent.
+ * <p>
+ * The Server keeps an identical copy of this class; the two must change
+ * together and a change of format needs a new {@link #NAME}.
+ */
+public final class BinaryCodec implements MessageCodec {
+
+    public static final String NAME = "hospital-binary-1";
+
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    /**
+     * How deeply values may nest in a message, well above what the
+     * commands need, so that a corrupt message cannot exhaust the stack.
+     */
+    private static final int MAX_DEPTH = 64;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int STRING_REF = 2;
+    private static final int LONG = 3;
+    private static final int INT = 4;
+    private static final int TRUE = 5;
+    private static final int FALSE = 6;
+    private static final int DOUBLE = 7;
+    private static final int DECIMAL = 8;
+    private static final int DATE = 9;
+    private static final int TIME = 10;
+    private static final int DATE_TIME = 11;
+    private static final int OFFSET_DATE_TIME = 12;
+    private static final int LIST = 13;
+    private static final int MAP = 14;
+    private static final int REQUEST = 15;
+    private static final int RESPONSE = 16;
+    private static final int COMMAND = 17;
+    private static final int APPOINTMENT = 18;
+    private static final int DOCTOR = 19;
+    private static final int SPECIALIZATION = 20;
+    private static final int MEDICAL_SERVICE = 21;
+    private static final int DOCTOR_SCHEDULE = 22;
+    private static final int CHART_POINT = 23;
+    private static final int MEDICAL_RECORD_ENTRY = 24;
+    private static final int PUSH = 25;
+    private static final int APPOINTMENT_EVENT = 26;
+    private static final int CHUNK = 27;
+    private static final int SERIALIZED = 31;
+
+    private BinaryCodec() {
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object msg) throws IOException {
+        Writer writer = new Writer();
+        writer.writeValue(msg);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+        Reader reader = new Reader(payload);
+        Object msg;
+        try {
+            msg = reader.readValue();
+        } catch (IllegalArgumentException | ClassCastException | DateTimeException e) {
+            // an unknown enum constant or a value of the wrong type
+            throw new StreamCorruptedException("Invalid message: " + e.getMessage());
+        }
+        if (reader.position != payload.length) {
+            throw new StreamCorruptedException("Trailing bytes after message");
+        }
+        return msg;
+    }
+
+    private static final class Writer {
+
+        private final Map<String, Integer> strings = new HashMap<>();
+        private byte[] buffer = new byte[256];
+        private int count;
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, count);
+        }
+
+        private void write(int b) {
+            if (count == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        private void write(byte[] bytes) {
+            if (count + bytes.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + bytes.length));
+            }
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                write(NULL);
+            } else if (value instanceof String s) {
+                writeString(s);
+            } else if (value instanceof Long l) {
+                write(LONG);
+                writeSignedVarLong(l);
+            } else if (value instanceof Integer i) {
+                write(INT);
+                writeSignedVarLong(i);
+            } else if (value instanceof Boolean b) {
+                write(b ? TRUE : FALSE);
+            } else if (value instanceof Double d) {
+                write(DOUBLE);
+                writeFixedLong(Double.doubleToLongBits(d));
+            } else if (value instanceof BigDecimal d) {
+                write(DECIMAL);
+                writeString(d.toString());
+            } else if (value instanceof LocalDate d) {
+                write(DATE);
+                writeSignedVarLong(d.toEpochDay());
+            } else if (value instanceof LocalTime t) {
+                write(TIME);
+                writeVarLong(t.toNanoOfDay());
+            } else if (value instanceof LocalDateTime t) {
+                write(DATE_TIME);
+                writeSignedVarLong(t.toLocalDate().toEpochDay());
+                writeVarLong(t.toLocalTime().toNanoOfDay());
+            } else if (value instanceof OffsetDateTime t) {
+                write(OFFSET_DATE_TIME);
+                writeSignedVarLong(t.toEpochSecond());
+                writeVarLong(t.getNano());
+                writeSignedVarLong(t.getOffset().getTotalSeconds());
+            } else if (value instanceof List<?> list) {
+                write(LIST);
+                writeVarLong(list.size());
+                for (Object element : list) {
+                    writeValue(element);
+                }
+            } else if (value instanceof Map<?, ?> map) {
+                write(MAP);
+                writeVarLong(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            } else if (value instanceof Request request) {
+                write(REQUEST);
+                writeValue(request.getType() == null ? null : request.getType().name());
+                writeVarLong(request.getRequestId());
+                writeValue(request.getPayload());
+            } else if (value instanceof Response response) {
+                write(RESPONSE);
+                writeValue(response.getStatus() == null ? null : response.getStatus().name());
+                writeValue(response.getMessage());
+                writeValue(response.getErrorCode());
+                writeVarLong(response.getRequestId());
+                writeValue(response.getData());
+            } else if (value instanceof Push push) {
+                write(PUSH);
+                writeValue(push.getTopic());
+                writeValue(push.getData());
+            } else if (value instanceof Chunk chunk) {
+                write(CHUNK);
+                writeVarLong(chunk.getRequestId());
+                writeValue(chunk.getRows());
+            } else if (value instanceof CommandDTO command) {
+                write(COMMAND);
+                writeValue(command.getAction() == null ? null : command.getAction().name());
+                writeValue(command.getRequesterUserId());
+                writeValue(command.getData());
+            } else if (value instanceof AppointmentDTO a) {
+                write(APPOINTMENT);
+                writeSignedVarLong(a.getAppointmentId());
+                writeSignedVarLong(a.getPatientId());
+                writeValue(a.getPatientName());
+                writeSignedVarLong(a.getDoctorId());
+                writeValue(a.getDoctorName());
+                writeValue(a.getServiceName());
+                writeValue(a.getDate());
+                writeValue(a.getTime());
+                writeValue(a.getStatus());
+            } else if (value instanceof AppointmentEventDTO e) {
+                write(APPOINTMENT_EVENT);
+                writeValue(e.getKind() == null ? null : e.getKind().name());
+                writeSignedVarLong(e.getAppointmentId());
+                writeSignedVarLong(e.getDoctorId());
+                writeValue(e.getDate());
+                writeValue(e.getTime());
+                writeValue(e.getStatus());
+            } else if (value instanceof DoctorDTO d) {
+                write(DOCTOR);
+                writeSignedVarLong(d.getDoctorId());
+                writeValue(d.getFirstName());
+                writeValue(d.getLastName());
+                writeValue(d.getSpecializationName());
+            } else if (value instanceof SpecializationDTO s) {
+                write(SPECIALIZATION);
+                writeSignedVarLong(s.getSpecializationId());
+                writeValue(s.getName());
+            } else if (value instanceof MedicalServiceDTO s) {
+                write(MEDICAL_SERVICE);
+                writeSignedVarLong(s.getServiceId());
+                writeValue(s.getName());
+                writeValue(s.getPrice());
+            } else if (value instanceof DoctorScheduleDTO s) {
+                write(DOCTOR_SCHEDULE);
+                writeSignedVarLong(s.getDoctorId());
+                writeSignedVarLong(s.getDayOfWeek());
+                writeValue(s.getStartTime());
+                writeValue(s.getEndTime());
+            } else if (value instanceof ChartPointDTO p) {
+                write(CHART_POINT);
+                writeValue(p.getLabel());
+                writeFixedLong(Double.doubleToLongBits(p.getValue()));
+            } else if (value instanceof MedicalRecordEntryDTO e) {
+                write(MEDICAL_RECORD_ENTRY);
+                writeSignedVarLong(e.getEntryId());
+                writeSignedVarLong(e.getPatientId());
+                writeValue(e.getAppointmentId());
+                writeValue(e.getDoctorName());
+                writeValue(e.getDiagnosis());
+                writeValue(e.getTreatment());
+                writeValue(e.getNotes());
+                writeValue(e.getEntryDate());
+            } else {
+                byte[] serialized = SerializationCodec.INSTANCE.encode(value);
+                write(SERIALIZED);
+                writeVarLong(serialized.length);
+                write(serialized);
+            }
+        }
+
+        private void writeString(String s) {
+            Integer index = strings.get(s);
+            if (index != null) {
+                write(STRING_REF);
+                writeVarLong(index);
+                return;
+            }
+            strings.put(s, strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            write(STRING);
+            writeVarLong(bytes.length);
+            write(bytes);
+        }
+
+        private void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void writeFixedLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] bytes;
+        private final List<String> strings = new ArrayList<>();
+        private int position;
+        private int depth;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        Object readValue() throws IOException, ClassNotFoundException {
+            if (++depth > MAX_DEPTH) {
+                throw new StreamCorruptedException("Values nested more than " + MAX_DEPTH + " deep");
+            }
+            try {
+                return readTaggedValue();
+            } finally {
+                depth--;
+            }
+        }
+
+        private Object readTaggedValue() throws IOException, ClassNotFoundException {
+            int tag = readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING: {
+                    int length = readLength();
+                    String s = new String(bytes, position, length, StandardCharsets.UTF_8);
+                    position += length;
+                    strings.add(s);
+                    return s;
+                }
+                case STRING_REF: {
+                    long index = readVarLong();
+                    if (index < 0 || index >= strings.size()) {
+                        throw new StreamCorruptedException("Invalid string reference: " + index);
+                    }
+                    return strings.get((int) index);
+                }
+                case LONG:
+                    return readSignedVarLong();
+                case INT:
+                    return (int) readSignedVarLong();
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case DOUBLE:
+                    return Double.longBitsToDouble(readFixedLong());
+                case DECIMAL:
+                    return new BigDecimal(readString());
+                case DATE:
+                    return LocalDate.ofEpochDay(readSignedVarLong());
+                case TIME:
+                    return readTime();
+                case DATE_TIME:
+                    return LocalDateTime.of(LocalDate.ofEpochDay(readSignedVarLong()), readTime());
+                case OFFSET_DATE_TIME: {
+                    long epochSecond = readSignedVarLong();
+                    int nano = (int) readVarLong();
+                    ZoneOffset offset = ZoneOffset.ofTotalSeconds((int) readSignedVarLong());
+                    return OffsetDateTime.ofInstant(Instant.ofEpochSecond(epochSecond, nano), offset);
+                }
+                case LIST: {
+                    int size = readCount();
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                }
+                case MAP: {
+                    int size = readCount();
+                    Map<Object, Object> map = new HashMap<>();
+                    for (int i = 0; i < size; i++) {
+                        map.put(readValue(), readValue());
+                    }
+                    return map;
+                }
+                case REQUEST: {
+                    String type = readString();
+                    long requestId = readVarLong();
+                    Request request = new Request(readValue());
+                    request.setType(type == null ? null : RequestType.valueOf(type));
+                    request.setRequestId(requestId);
+                    return request;
+                }
+                case RESPONSE: {
+                    String status = readString();
+                    String message = readString();
+                    String errorCode = readString();
+                    long requestId = readVarLong();
+                    Object data = readValue();
+                    return new Response(status == null ? null : Response.Status.valueOf(status),
+                            message, errorCode, data).withRequestId(requestId);
+                }
+                case PUSH:
+                    return new Push(readString(), readValue());
+                case CHUNK: {
+                    long requestId = readVarLong();
+                    return new Chunk(requestId, (List<?>) readValue());
+                }
+                case COMMAND: {
+                    String action = readString();
+                    Long requesterUserId = (Long) readValue();
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> data = (Map<String, Object>) readValue();
+                    return new CommandDTO(action == null ? null : CommandDTO.Action.valueOf(action),
+                            requesterUserId, data);
+                }
+                case APPOINTMENT:
+                    return new AppointmentDTO(readSignedVarLong(), readSignedVarLong(), readString(),
+                            readSignedVarLong(), readString(), readString(),
+                            (LocalDate) readValue(), (LocalTime) readValue(), readString());
+                case APPOINTMENT_EVENT: {
+                    String kind = readString();
+                    return new AppointmentEventDTO(kind == null ? null : AppointmentEventDTO.Kind.valueOf(kind),
+                            readSignedVarLong(), readSignedVarLong(),
+                            (LocalDate) readValue(), (LocalTime) readValue(), readString());
+                }
+                case DOCTOR:
+                    return new DoctorDTO(readSignedVarLong(), readString(), readString(), readString());
+                case SPECIALIZATION:
+                    return new SpecializationDTO(readSignedVarLong(), readString());
+                case MEDICAL_SERVICE:
+                    return new MedicalServiceDTO(readSignedVarLong(), readString(), (BigDecimal) readValue());
+                case DOCTOR_SCHEDULE:
+                    return new DoctorScheduleDTO(readSignedVarLong(), (int) readSignedVarLong(),
+                            (LocalTime) readValue(), (LocalTime) readValue());
+                case CHART_POINT:
+                    return new ChartPointDTO(readString(), Double.longBitsToDouble(readFixedLong()));
+                case MEDICAL_RECORD_ENTRY:
+                    return new MedicalRecordEntryDTO(readSignedVarLong(), readSignedVarLong(), (Long) readValue(),
+                            readString(), readString(), readString(), readString(), (OffsetDateTime) readValue());
+                case SERIALIZED: {
+                    int length = readLength();
+                    byte[] serialized = new byte[length];
+                    System.arraycopy(bytes, position, serialized, 0, length);
+                    position += length;
+                    return SerializationCodec.INSTANCE.decode(serialized);
+                }
+                default:
+                    throw new StreamCorruptedException("Unknown value tag: " + tag);
+            }
+        }
+
+        private String readString() throws IOException, ClassNotFoundException {
+            Object value = readValue();
+            if (value != null && !(value instanceof String)) {
+                throw new StreamCorruptedException("Expected a string");
+            }
+            return (String) value;
+        }
+
+        private LocalTime readTime() throws IOException {
+            long nanoOfDay = readVarLong();
+            if (nanoOfDay < 0 || nanoOfDay >= 86_400_000_000_000L) {
+                throw new StreamCorruptedException("Invalid time: " + nanoOfDay);
+            }
+            return LocalTime.ofNanoOfDay(nanoOfDay);
+        }
+
+        private int readLength() throws IOException {
+            long length = readVarLong();
+            if (length < 0 || length > bytes.length - position) {
+                throw new StreamCorruptedException("Invalid length: " + length);
+            }
+            return (int) length;
+        }
+
+        private int readCount() throws IOException {
+            long count = readVarLong();
+            // every element takes at least one byte
+            if (count < 0 || count > bytes.length - position) {
+                throw new StreamCorruptedException("Invalid count: " + count);
+            }
+            return (int) count;
+        }
+
+        private int readByte() throws IOException {
+            if (position >= bytes.length) {
+                throw new StreamCorruptedException("Unexpected end of message");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        private long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed number");
+        }
+
+        private long readFixedLong() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+    }
+}
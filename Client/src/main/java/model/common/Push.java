@@ -0,0 +1,23 @@
+package model.common;
+
+import java.io.Serializable;
+
+/**
+ * A message the server sends on its own, to the clients subscribed to a
+ * topic, rather than as the answer to a request.
+ */
+public class Push implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String topic;
+    private final Object data;
+
+    public Push(String topic, Object data) {
+        this.topic = topic;
+        this.data = data;
+    }
+
+    public String getTopic() { return topic; }
+    public Object getData() { return data; }
+}
@@ -14,8 +14,9 @@ public class Response implements Serializable {
     private String message;
     private String errorCode;
     private Object data;
+    private long requestId;
 
-    private Response(Status status, String message, String errorCode, Object data) {
+    Response(Status status, String message, String errorCode, Object data) {
         this.status = status;
         this.message = message;
         this.errorCode = errorCode;
@@ -34,10 +35,24 @@ public class Response implements Serializable {
         return new Response(Status.ERROR, message, errorCode, null);
     }
 
+    /**
+     * An error with details for the client, such as how long to wait
+     * before retrying.
+     */
+    public static Response error(String errorCode, String message, Object data) {
+        return new Response(Status.ERROR, message, errorCode, data);
+    }
+
     public Status getStatus() { return status; }
     public String getMessage() { return message; }
     public String getErrorCode() { return errorCode; }
     public Object getData() { return data; }
+    public long getRequestId() { return requestId; }
+
+    public Response withRequestId(long requestId) {
+        this.requestId = requestId;
+        return this;
+    }
 
     public boolean isOk() { return status == Status.OK; }
 }
@@ -6,6 +6,7 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -43,18 +44,106 @@ public abstract class AbstractClient implements Runnable {
 	/**
 	 * The stream to handle data going to the server.
 	 */
-	private ObjectOutputStream	output;
+	private ResettingObjectOutputStream	output;
 
 	/**
 	 * The stream to handle data from the server.
 	 */
 	private ObjectInputStream	input;
 
+	/**
+	 * The stream to write frames to the server, when the framed wire format
+	 * is used.
+	 */
+	private DataOutputStream	frameOutput;
+
+	/**
+	 * The stream to read frames from the server, when the framed wire format
+	 * is used.
+	 */
+	private DataInputStream		frameInput;
+
+	/**
+	 * Indicates if the next connection uses the framed wire format instead
+	 * of a single object stream. Set to false by default.
+	 */
+	private boolean				useFraming	= false;
+
+	/**
+	 * The codecs offered to the server, in order of preference, when the
+	 * framed wire format is used. Java serialization is always offered last.
+	 */
+	private MessageCodec[]		codecs		= new MessageCodec[0];
+
+	/**
+	 * The codec agreed on with the server for the current connection.
+	 */
+	private MessageCodec		codec;
+
+	/**
+	 * The number of messages after which the object stream is reset. Set to
+	 * 1 by default, so that no message is sent as a back-reference.
+	 */
+	private int					streamResetMessages	= 1;
+
+	/**
+	 * The number of bytes after which the object stream is reset. Set to
+	 * 1 MiB by default.
+	 */
+	private long				streamResetBytes	= 1024 * 1024;
+
+	/**
+	 * The number of times the object stream was reset.
+	 */
+	private long				streamResets;
+
+	/**
+	 * The time after which a heartbeat is sent to the server if nothing
+	 * else was sent, in milliseconds. Zero disables heartbeats. Set to 0 by
+	 * default.
+	 */
+	private long				heartbeatMillis	= 0;
+
+	/**
+	 * The time after which the server is considered dead if nothing was
+	 * received from it, in milliseconds. Zero disables the check. Set to 0
+	 * by default.
+	 */
+	private long				idleTimeoutMillis	= 0;
+
+	/**
+	 * The time anything was last sent to the server, as given by
+	 * System.nanoTime.
+	 */
+	private volatile long		lastSent;
+
+	/**
+	 * The number of connections closed because the server stayed silent
+	 * for longer than the idle timeout.
+	 */
+	private volatile long		idleTimeouts;
+
+	/**
+	 * Lock held while writing to the server, so that heartbeats and
+	 * messages never interleave.
+	 */
+	private final Object		writeLock	= new Object();
+
+	/**
+	 * The payload of a heartbeat frame.
+	 */
+	private static final byte[]	HEARTBEAT	= new byte[0];
+
 	/**
 	 * The thread created to read data from the server.
 	 */
 	private Thread				clientReader;
 
+	/**
+	 * The thread sending heartbeats while connected, if enabled.
+	 */
+	private Thread				heartbeatSender;
+
 	/**
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
 	 * run method knows when to stop waiting for incoming messages.
@@ -104,8 +193,18 @@ public abstract class AbstractClient implements Runnable {
 		// Create the sockets and the data streams
 		try {
 			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			// The server's heartbeats keep reads from timing out while it lives
+			clientSocket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, idleTimeoutMillis));
+			if (useFraming) {
+				frameOutput = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+				frameOutput.writeInt(Framing.PREFACE);
+				Framing.write(frameOutput, codecOffer());
+				frameInput = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+				codec = agreedCodec(new String(Framing.read(frameInput), StandardCharsets.UTF_8));
+			} else {
+				output = new ResettingObjectOutputStream(clientSocket.getOutputStream());
+				input = new ObjectInputStream(clientSocket.getInputStream());
+			}
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -120,12 +219,18 @@ public abstract class AbstractClient implements Runnable {
 
 		clientReader = new Thread(this); // Create the data reader thread
 		readyToStop = false;
+		lastSent = System.nanoTime();
 		clientReader.start(); // Start the thread
+		if (heartbeatMillis > 0) {
+			heartbeatSender = new Thread(this::sendHeartbeats, "ocsf-heartbeat");
+			heartbeatSender.setDaemon(true);
+			heartbeatSender.start();
+		}
 	}
 
 	/**
 	 * Sends an object to the server. This is the only way that methods should
-	 * communicate with the server.
+	 * communicate with the server. May be called from several threads.
 	 * 
 	 * @param msg
 	 *            The message to be sent.
@@ -133,19 +238,28 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when sending
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
-
-		output.writeObject(msg);
+		synchronized (writeLock) {
+			if (clientSocket == null || (output == null && frameOutput == null))
+				throw new SocketException("socket does not exist");
+
+			if (frameOutput != null)
+				Framing.write(frameOutput, codec.encode(msg));
+			else if (output.writeMessage(msg, streamResetMessages, streamResetBytes) >= 0)
+				streamResets++;
+			lastSent = System.nanoTime();
+		}
 	}
 
 	/**
 	 * Reset the object output stream so we can use the same
-	 * buffer repeatedly. This would not normally be used, but is necessary
+	 * buffer repeatedly. The stream is already reset according to the
+	 * policy set with setStreamReset, but this is necessary
     * in some circumstances when Java refuses to send data that it thinks has been sent.
+	 * Has no effect with the framed wire format.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+      if (output != null)
+         output.reset();
 	}
 
 	/**
@@ -193,6 +307,108 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * Sets whether the next connection uses the framed wire format, where
+	 * every message is sent as a length followed by its own serialized
+	 * form. Servers using the selector backend require it. The change only
+	 * takes effect at the time of the next call to openConnection().
+	 * 
+	 * @param useFraming
+	 *            true to use the framed wire format.
+	 */
+	final public void setUseFraming(boolean useFraming) {
+		this.useFraming = useFraming;
+	}
+
+	/**
+	 * @return true if the next connection uses the framed wire format.
+	 */
+	final public boolean isUsingFraming() {
+		return useFraming;
+	}
+
+	/**
+	 * Sets the codecs offered to the server by the next connection, in
+	 * order of preference. The server picks the first one it supports, or
+	 * Java serialization if none. Only used with the framed wire format.
+	 * 
+	 * @param codecs
+	 *            the codecs, most preferred first.
+	 */
+	final public void setCodecs(MessageCodec... codecs) {
+		this.codecs = codecs.clone();
+	}
+
+	/**
+	 * Sets when the object stream to the server is reset. The stream keeps
+	 * every object written since its last reset, so that it can send them
+	 * again as back-references; resetting frees them on both sides. Not
+	 * used with the framed wire format, where every frame is encoded on its
+	 * own.
+	 * 
+	 * @param everyMessages
+	 *            reset after this many messages.
+	 * @param everyBytes
+	 *            reset after this many bytes, whatever the number of
+	 *            messages.
+	 */
+	final public void setStreamReset(int everyMessages, long everyBytes) {
+		this.streamResetMessages = Math.max(1, everyMessages);
+		this.streamResetBytes = Math.max(1, everyBytes);
+	}
+
+	/**
+	 * Sets the liveness checks of the next connection. A heartbeat is an
+	 * empty frame, or a reset of the object stream, so it is never seen by
+	 * the application on either side. The change only takes effect at the
+	 * time of the next call to openConnection().
+	 * 
+	 * @param heartbeatMillis
+	 *            send a heartbeat after this long without sending anything,
+	 *            or 0 never to send one.
+	 * @param idleTimeoutMillis
+	 *            close the connection after this long without receiving
+	 *            anything, or 0 to wait forever; should be a few of the
+	 *            server's heartbeat intervals.
+	 */
+	final public void setHeartbeat(long heartbeatMillis, long idleTimeoutMillis) {
+		this.heartbeatMillis = Math.max(0, heartbeatMillis);
+		this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+	}
+
+	/**
+	 * @return the number of connections closed because nothing was received
+	 *         from the server for longer than the idle timeout.
+	 */
+	final public long getIdleTimeoutCount() {
+		return idleTimeouts;
+	}
+
+	/**
+	 * @return the number of times the object stream was reset.
+	 */
+	final public long getStreamResetCount() {
+		return streamResets;
+	}
+
+	/**
+	 * @return the number of objects retained by the object stream since its
+	 *         last reset, or 0 with the framed wire format.
+	 */
+	final public int getStreamObjects() {
+		ResettingObjectOutputStream output = this.output;
+		return output == null ? 0 : output.getObjectsSinceReset();
+	}
+
+	/**
+	 * @return the name of the codec used by the current connection, or null
+	 *         if the framed wire format is not used.
+	 */
+	final public String getCodecName() {
+		MessageCodec codec = this.codec;
+		return codec == null ? null : codec.getName();
+	}
+
 	/**
 	 * @return the host name.
 	 */
@@ -239,7 +455,14 @@ public abstract class AbstractClient implements Runnable {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				if (frameInput != null) {
+					byte[] payload = Framing.read(frameInput);
+					if (payload.length == 0)
+						continue; // heartbeat
+					msg = codec.decode(payload);
+				} else {
+					msg = input.readObject();
+				}
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -247,6 +470,8 @@ public abstract class AbstractClient implements Runnable {
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
+				if (exception instanceof SocketTimeoutException)
+					idleTimeouts++;
 				try {
 					closeAll();
 				} catch (Exception ex) {
@@ -259,6 +484,34 @@ public abstract class AbstractClient implements Runnable {
 		}
 	}
 
+	/**
+	 * Sends a heartbeat whenever nothing was sent for the heartbeat
+	 * interval, until the connection is closed. Run by the heartbeat thread.
+	 */
+	private void sendHeartbeats() {
+		long intervalNanos = heartbeatMillis * 1_000_000L;
+		try {
+			while (!readyToStop) {
+				long wait = lastSent + intervalNanos - System.nanoTime();
+				if (wait > 0) {
+					Thread.sleep(wait / 1_000_000L + 1);
+					continue;
+				}
+				synchronized (writeLock) {
+					if (frameOutput != null)
+						Framing.write(frameOutput, HEARTBEAT);
+					else if (output != null)
+						output.writeHeartbeat();
+					else
+						return;
+					lastSent = System.nanoTime();
+				}
+			}
+		} catch (InterruptedException | IOException ex) {
+			// The connection is closing; the reader reports any failure.
+		}
+	}
+
 	// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
 
 	/**
@@ -300,6 +553,35 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * @return the payload of the first frame, listing the codecs offered.
+	 */
+	private byte[] codecOffer() {
+		StringBuilder offer = new StringBuilder();
+		for (MessageCodec offered : codecs) {
+			offer.append(offered.getName()).append(',');
+		}
+		offer.append(SerializationCodec.NAME);
+		return offer.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param name
+	 *            the name of the codec chosen by the server.
+	 * @return the codec with this name.
+	 * @exception IOException
+	 *                if the server chose a codec that was not offered.
+	 */
+	private MessageCodec agreedCodec(String name) throws IOException {
+		for (MessageCodec offered : codecs) {
+			if (offered.getName().equals(name))
+				return offered;
+		}
+		if (SerializationCodec.NAME.equals(name))
+			return SerializationCodec.INSTANCE;
+		throw new StreamCorruptedException("Server chose an unknown codec: " + name);
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -307,6 +589,11 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	private void closeAll() throws IOException {
+		Thread heartbeats = heartbeatSender;
+		heartbeatSender = null;
+		if (heartbeats != null && heartbeats != Thread.currentThread())
+			heartbeats.interrupt();
+
 		try {
 			// Close the socket
 			if (clientSocket != null)
@@ -326,6 +613,9 @@ public abstract class AbstractClient implements Runnable {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			frameOutput = null;
+			frameInput = null;
+			codec = null;
 			clientSocket = null;
 		}
 	}
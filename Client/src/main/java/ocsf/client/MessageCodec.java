@@ -0,0 +1,49 @@
+// This file contains material supporting section 3.7 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.client;
+
+import java.io.IOException;
+
+/**
+ * Converts the messages exchanged with the server to bytes and back, when
+ * the framed wire format is used. The client lists the codecs it supports
+ * when it connects and the server answers with the first one it also
+ * knows, or with Java serialization.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#setCodecs(MessageCodec...)
+ * @see ocsf.client.SerializationCodec
+ */
+public interface MessageCodec {
+
+    /**
+     * Returns the name identifying the codec during negotiation. Both sides
+     * must use the same name for the same encoding.
+     *
+     * @return the codec's name.
+     */
+    String getName();
+
+    /**
+     * Converts a message into the payload of a frame.
+     *
+     * @param msg the message.
+     * @return the payload bytes.
+     * @exception IOException if the message cannot be encoded.
+     */
+    byte[] encode(Object msg) throws IOException;
+
+    /**
+     * Converts the payload of a frame back into a message.
+     *
+     * @param payload the payload bytes.
+     * @return the message.
+     * @exception IOException if the payload is corrupted.
+     * @exception ClassNotFoundException if the message class is unknown.
+     */
+    Object decode(byte[] payload) throws IOException, ClassNotFoundException;
+}
@@ -1,21 +1,67 @@
 package presenter;
 
+import model.common.BinaryCodec;
+import model.common.Chunk;
+import model.common.Push;
 import model.common.Response;
 import model.common.Request;
+import model.common.RequestType;
+import model.dto.CommandDTO;
 import ocsf.client.AbstractClient;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 public class HospitalClient extends AbstractClient {
 
     private Consumer<Response> onResponseReceived;
-    private final Deque<Consumer<Response>> pendingCallbacks = new ArrayDeque<>();
+    private final Map<Long, Consumer<Response>> pendingCallbacks = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<String, List<Consumer<Push>>> topicListeners = new ConcurrentHashMap<>();
+    private final Map<Long, Consumer<List<?>>> chunkListeners = new ConcurrentHashMap<>();
+
+    /**
+     * Whether to use the framed wire format, required by a server running
+     * the selector backend and by the binary codec. Both formats are
+     * accepted by the blocking backend.
+     */
+    private static final boolean USE_FRAMING =
+            !"false".equalsIgnoreCase(System.getProperty("hospital.client.framing", "true"));
+
+    /**
+     * Whether to offer the binary codec ("binary") or only Java
+     * serialization ("java") on a framed connection.
+     */
+    private static final boolean USE_BINARY_CODEC =
+            !"java".equalsIgnoreCase(System.getProperty("hospital.client.codec", "binary"));
+
+    /**
+     * Time after which a heartbeat is sent to the server when nothing else
+     * was sent, in milliseconds.
+     */
+    private static final long HEARTBEAT_MILLIS = Long.getLong("hospital.client.heartbeatMillis", 15000);
+
+    /**
+     * Time after which the server is considered gone when nothing was
+     * received from it, in milliseconds. Longer than the server's heartbeat
+     * interval.
+     */
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("hospital.client.idleTimeoutMillis", 60000);
 
     public HospitalClient(String host, int port) throws IOException {
         super(host, port);
+        setUseFraming(USE_FRAMING);
+        setHeartbeat(HEARTBEAT_MILLIS, IDLE_TIMEOUT_MILLIS);
+        if (USE_BINARY_CODEC) {
+            setCodecs(BinaryCodec.INSTANCE);
+        }
         openConnection();
         System.out.println("Client conectat la " + host + ":" + port);
     }
@@ -27,12 +73,9 @@ public class HospitalClient extends AbstractClient {
     @Override
     protected void handleMessageFromServer(Object msg) {
         if (msg instanceof Response response) {
-            Consumer<Response> callback = null;
-            synchronized (pendingCallbacks) {
-                if (!pendingCallbacks.isEmpty()) {
-                    callback = pendingCallbacks.pollFirst();
-                }
-            }
+            Consumer<Response> callback = response.getRequestId() != 0
+                    ? pendingCallbacks.remove(response.getRequestId())
+                    : null;
             if (callback != null) {
                 callback.accept(response);
             } else if (onResponseReceived != null) {
@@ -40,6 +83,18 @@ public class HospitalClient extends AbstractClient {
             } else {
                 System.out.println("Raspuns primit fara handler: " + response);
             }
+        } else if (msg instanceof Chunk chunk) {
+            Consumer<List<?>> listener = chunkListeners.get(chunk.getRequestId());
+            if (listener != null) {
+                listener.accept(chunk.getRows());
+            }
+        } else if (msg instanceof Push push) {
+            List<Consumer<Push>> listeners = topicListeners.get(push.getTopic());
+            if (listeners != null) {
+                for (Consumer<Push> listener : listeners) {
+                    listener.accept(push);
+                }
+            }
         } else {
             System.out.println("Mesaj necunoscut primit: " + msg);
         }
@@ -49,21 +104,123 @@ public class HospitalClient extends AbstractClient {
         sendRequest(request, null);
     }
 
+    /**
+     * Sends a request tagged with a new id. The server answers with the same
+     * id, possibly out of order, and the answer is routed to the callback
+     * registered under it. Answers without a callback go to the default
+     * handler.
+     */
     public void sendRequest(Request request, Consumer<Response> callback) {
+        send(request, callback, null);
+    }
+
+    private void send(Request request, Consumer<Response> callback, Consumer<List<?>> onChunk) {
+        long requestId = nextRequestId.incrementAndGet();
+        request.setRequestId(requestId);
+        if (onChunk != null) {
+            chunkListeners.put(requestId, onChunk);
+        }
         if (callback != null) {
-            synchronized (pendingCallbacks) {
-                pendingCallbacks.addLast(callback);
-            }
+            pendingCallbacks.put(requestId, callback);
         }
         try {
             sendToServer(request);
         } catch (IOException e) {
+            chunkListeners.remove(requestId);
             if (callback != null) {
-                synchronized (pendingCallbacks) {
-                    pendingCallbacks.removeLastOccurrence(callback);
-                }
+                pendingCallbacks.remove(requestId);
             }
             System.err.println("Eroare trimitere cerere: " + e.getMessage());
         }
     }
+
+    /**
+     * Sends several commands in one request. The callback receives one
+     * response per command, in the order of the commands; if the whole
+     * batch fails, every command gets the batch's error.
+     */
+    public void sendBatch(List<CommandDTO> commands, Consumer<List<Response>> callback) {
+        Request request = new Request(new ArrayList<>(commands));
+        request.setType(RequestType.BATCH);
+        sendRequest(request, response -> {
+            if (response.isOk() && response.getData() instanceof List<?> data && data.size() == commands.size()) {
+                List<Response> responses = new ArrayList<>(data.size());
+                for (Object item : data) {
+                    responses.add((Response) item);
+                }
+                callback.accept(responses);
+            } else {
+                Response error = response.isOk()
+                        ? Response.error("INVALID_RESPONSE", "Unexpected batch response")
+                        : response;
+                callback.accept(Collections.nCopies(commands.size(), error));
+            }
+        });
+    }
+
+    /**
+     * Sends a command whose answer may be a large list and receives the
+     * rows in chunks, in order, as the server reads them. The callback
+     * gets the response ending the stream, after the last chunk; an error
+     * may follow chunks already received. If the server answers the
+     * command with a single list instead, the list is passed as one chunk.
+     * Both callbacks are called on the connection's thread.
+     */
+    public void sendStream(CommandDTO command, Consumer<List<?>> onChunk, Consumer<Response> callback) {
+        Request request = new Request(command);
+        request.setType(RequestType.STREAM);
+        send(request, response -> {
+            chunkListeners.remove(response.getRequestId());
+            if (response.isOk() && response.getData() instanceof List<?> rows) {
+                onChunk.accept(rows);
+            }
+            callback.accept(response);
+        }, onChunk);
+    }
+
+    /**
+     * Registers a listener for the pushes of a topic. The server is asked to
+     * send the topic only when its first listener is added. Listeners are
+     * called on the connection's thread.
+     */
+    public void subscribe(String topic, Consumer<Push> listener) {
+        boolean[] first = new boolean[1];
+        topicListeners.compute(topic, (t, listeners) -> {
+            if (listeners == null) {
+                listeners = new CopyOnWriteArrayList<>();
+                first[0] = true;
+            }
+            listeners.add(listener);
+            return listeners;
+        });
+        if (first[0]) {
+            sendSubscription(RequestType.SUBSCRIBE, topic);
+        }
+    }
+
+    /**
+     * Removes a listener added with {@link #subscribe}. The server stops
+     * sending the topic once it has no listener left.
+     */
+    public void unsubscribe(String topic, Consumer<Push> listener) {
+        boolean[] last = new boolean[1];
+        topicListeners.computeIfPresent(topic, (t, listeners) -> {
+            listeners.remove(listener);
+            last[0] = listeners.isEmpty();
+            return last[0] ? null : listeners;
+        });
+        if (last[0]) {
+            sendSubscription(RequestType.UNSUBSCRIBE, topic);
+        }
+    }
+
+    private void sendSubscription(RequestType type, String topic) {
+        Request request = new Request(topic);
+        request.setType(type);
+        sendRequest(request, response -> {
+            if (!response.isOk()) {
+                System.err.println("Abonare esuata la " + topic + ": " + response.getMessage());
+            }
+        });
+    }
 }
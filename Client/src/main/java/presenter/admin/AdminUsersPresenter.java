@@ -19,6 +19,8 @@ public class AdminUsersPresenter {
     private List<AppointmentDTO> allAppointments = List.of();
     private LocalDate appointmentsFilterDate = null;
     private String appointmentsStatusTab = "ALL";
+    private long usersLoad;
+    private long appointmentsLoad;
 
     public AdminUsersPresenter(AdminDashboardView view) {
         this.view = view;
@@ -59,10 +61,24 @@ public class AdminUsersPresenter {
         CommandDTO cmd = user != null
                 ? new CommandDTO(CommandDTO.Action.ADMIN_LIST_USERS, user.getUserId())
                 : new CommandDTO(CommandDTO.Action.ADMIN_LIST_USERS);
-        Request req = new Request(cmd);
-        req.setType(RequestType.COMMAND);
         view.setInfo("Se incarca lista utilizatorilor...");
-        ClientSession.getInstance().getClient().sendRequest(req, response -> Platform.runLater(() -> handleUsers(response)));
+        long load = ++usersLoad;
+        List<AdminUserDTO> loaded = new ArrayList<>();
+        ClientSession.getInstance().getClient().sendStream(cmd, rows -> Platform.runLater(() -> {
+            if (load != usersLoad) {
+                return;
+            }
+            boolean first = loaded.isEmpty();
+            loaded.addAll((List<AdminUserDTO>) rows);
+            // the list is sorted by name, so it is shown once early and again when complete
+            if (first) {
+                view.setUsers(loaded);
+            }
+        }), response -> Platform.runLater(() -> {
+            if (load == usersLoad) {
+                handleUsers(response, loaded);
+            }
+        }));
     }
 
     public void loadAppointments() {
@@ -73,10 +89,24 @@ public class AdminUsersPresenter {
         CommandDTO cmd = user != null
                 ? new CommandDTO(CommandDTO.Action.GET_ALL_APPOINTMENTS, user.getUserId())
                 : new CommandDTO(CommandDTO.Action.GET_ALL_APPOINTMENTS);
-        Request req = new Request(cmd);
-        req.setType(RequestType.COMMAND);
         view.setInfo("Se incarca programarile...");
-        ClientSession.getInstance().getClient().sendRequest(req, response -> Platform.runLater(() -> handleAppointments(response)));
+        long load = ++appointmentsLoad;
+        List<AppointmentDTO> loaded = new ArrayList<>();
+        ClientSession.getInstance().getClient().sendStream(cmd, rows -> Platform.runLater(() -> {
+            if (load != appointmentsLoad) {
+                return;
+            }
+            boolean first = loaded.isEmpty();
+            loaded.addAll((List<AppointmentDTO>) rows);
+            if (first) {
+                allAppointments = loaded;
+                applyAppointmentsFilter();
+            }
+        }), response -> Platform.runLater(() -> {
+            if (load == appointmentsLoad) {
+                handleAppointments(response, loaded);
+            }
+        }));
     }
 
     public void updateAppointmentStatus(long appointmentId, String newStatus) {
@@ -167,12 +197,12 @@ public class AdminUsersPresenter {
         view.renderStats((AdminStatsDTO) response.getData());
     }
 
-    private void handleUsers(Response response) {
+    private void handleUsers(Response response, List<AdminUserDTO> users) {
         if (response.getStatus() != Response.Status.OK) {
             view.setError("Eroare: " + response.getMessage());
             return;
         }
-        view.setUsers((List<AdminUserDTO>) response.getData());
+        view.setUsers(users);
         view.setInfo("");
     }
 
@@ -190,12 +220,12 @@ public class AdminUsersPresenter {
         loadUsers();
     }
 
-    private void handleAppointments(Response response) {
+    private void handleAppointments(Response response, List<AppointmentDTO> appointments) {
         if (response.getStatus() != Response.Status.OK) {
             view.renderAppointments(Collections.emptyList());
             return;
         }
-        allAppointments = new ArrayList<>((List<AppointmentDTO>) response.getData());
+        allAppointments = appointments;
         applyAppointmentsFilter();
         view.setInfo("");
     }
@@ -5,9 +5,11 @@ import app.SceneNavigator;
 import app.ClientSession;
 import view.manager.ManagerDashboardView;
 import javafx.application.Platform;
+import model.common.Push;
 import model.common.Request;
 import model.common.RequestType;
 import model.common.Response;
+import model.common.Topics;
 import model.dto.AppointmentDTO;
 import model.dto.CommandDTO;
 import model.dto.StatsDTO;
@@ -16,11 +18,16 @@ import model.dto.UserDTO;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class ManagerDashboardPresenter {
 
     private final ManagerDashboardView view;
     private List<AppointmentDTO> allLoadedAppointments = new ArrayList<>();
+    private boolean subscribed;
+    private long appointmentsLoad;
+    private final Consumer<Push> onAppointmentsChanged = push -> Platform.runLater(() ->
+            loadAllAppointments(view.getSelectedDate(), view.getSelectedService()));
 
     public ManagerDashboardPresenter(ManagerDashboardView view) {
         this.view = view;
@@ -31,6 +38,10 @@ public class ManagerDashboardPresenter {
         view.updateUserInfo(user);
 
         loadAllAppointments(LocalDate.now(), null);
+        if (!subscribed && ClientSession.getInstance().ensureConnected()) {
+            ClientSession.getInstance().getClient().subscribe(Topics.ALL_APPOINTMENTS, onAppointmentsChanged);
+            subscribed = true;
+        }
     }
 
     public void loadAllAppointments(LocalDate date, String serviceFilter) {
@@ -48,24 +59,39 @@ public class ManagerDashboardPresenter {
 
         view.setBusy(true);
 
-        Request req = new Request(cmd);
-        req.setType(RequestType.COMMAND);
+        // rows are shown as they arrive; a newer load makes this one stale
+        long load = ++appointmentsLoad;
+        List<AppointmentDTO> loaded = new ArrayList<>();
 
-        ClientSession.getInstance().getClient().sendRequest(req, response -> {
+        ClientSession.getInstance().getClient().sendStream(cmd, rows -> {
+            @SuppressWarnings("unchecked")
+            List<AppointmentDTO> chunk = (List<AppointmentDTO>) rows;
             Platform.runLater(() -> {
+                if (load != appointmentsLoad) {
+                    return;
+                }
+                if (loaded.isEmpty()) {
+                    view.updateAppointmentsTable(chunk);
+                } else {
+                    view.appendAppointments(chunk);
+                }
+                loaded.addAll(chunk);
+            });
+        }, response -> {
+            Platform.runLater(() -> {
+                if (load != appointmentsLoad) {
+                    return;
+                }
                 try {
                     if (response.getStatus() != Response.Status.OK) {
                         view.setError("Eroare server: " + response.getMessage());
                         return;
                     }
 
-                    @SuppressWarnings("unchecked")
-                    List<AppointmentDTO> appointments = (List<AppointmentDTO>) response.getData();
-
-                    this.allLoadedAppointments = appointments;
-                    view.updateAppointmentsTable(appointments);
-
-                    view.setBusy(false);
+                    if (loaded.isEmpty()) {
+                        view.updateAppointmentsTable(loaded);
+                    }
+                    this.allLoadedAppointments = loaded;
 
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -145,6 +171,10 @@ public class ManagerDashboardPresenter {
     }
 
     public void onLogout() {
+        if (subscribed) {
+            ClientSession.getInstance().getClient().unsubscribe(Topics.ALL_APPOINTMENTS, onAppointmentsChanged);
+            subscribed = false;
+        }
         ClientSession.getInstance().setLoggedUser(null);
         SceneNavigator.navigateTo(AppScene.LOGIN);
     }
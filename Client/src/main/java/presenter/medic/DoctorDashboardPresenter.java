@@ -3,9 +3,11 @@ package presenter.medic;
 import app.ClientSession;
 import view.doctor.DoctorDashboardView;
 import javafx.application.Platform;
+import model.common.Push;
 import model.common.Request;
 import model.common.RequestType;
 import model.common.Response;
+import model.common.Topics;
 import model.dto.AppointmentDTO;
 import model.dto.CommandDTO;
 import model.dto.DoctorDTO;
@@ -15,6 +17,7 @@ import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class DoctorDashboardPresenter {
@@ -24,6 +27,9 @@ public class DoctorDashboardPresenter {
     private List<AppointmentDTO> allAppointments = new ArrayList<>();
     private List<AppointmentDTO> allPatientAppointments = new ArrayList<>();
     private String serviceFilter = "Toate";
+    private String agendaTopic;
+    private final Consumer<Push> onAgendaChanged =
+            push -> Platform.runLater(() -> loadAppointments(view.getSelectedDate()));
 
     public DoctorDashboardPresenter(DoctorDashboardView view) {
         this.view = view;
@@ -114,6 +120,7 @@ public class DoctorDashboardPresenter {
                 this.allAppointments = new ArrayList<>(received);
                 view.updateServiceFilterOptions(this.allAppointments);
                 applyFilters();
+                subscribeToAgenda(user);
 
                 loadAllPatients();
 
@@ -122,6 +129,22 @@ public class DoctorDashboardPresenter {
         });
     }
 
+    /**
+     * Reloads the appointments whenever one of the doctor's appointments
+     * changes, instead of waiting for a manual refresh.
+     */
+    private void subscribeToAgenda(UserDTO user) {
+        String topic = user.getDoctorId() == null ? null : Topics.doctorAgenda(user.getDoctorId());
+        if (topic == null || topic.equals(agendaTopic)) {
+            return;
+        }
+        if (agendaTopic != null) {
+            ClientSession.getInstance().getClient().unsubscribe(agendaTopic, onAgendaChanged);
+        }
+        agendaTopic = topic;
+        ClientSession.getInstance().getClient().subscribe(topic, onAgendaChanged);
+    }
+
     private void loadAllPatients() {
         UserDTO user = ClientSession.getInstance().getLoggedUser();
         if (user == null) {
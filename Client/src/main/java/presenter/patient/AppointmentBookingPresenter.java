@@ -3,9 +3,11 @@ package presenter.patient;
 import app.ClientSession;
 import view.patient.AppointmentBookingView;
 import javafx.application.Platform;
+import model.common.Push;
 import model.common.Request;
 import model.common.RequestType;
 import model.common.Response;
+import model.common.Topics;
 import model.dto.AdminUserDTO;
 import model.dto.AppointmentDTO;
 import model.dto.CommandDTO;
@@ -21,6 +23,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 public class AppointmentBookingPresenter {
 
@@ -45,6 +48,8 @@ public class AppointmentBookingPresenter {
     private LocalTime selectedTime;
     private AppointmentDTO editingAppointment;
     private boolean suppressSelectionEvents = false;
+    private String slotsTopic;
+    private final Consumer<Push> onSlotsChanged = push -> Platform.runLater(this::loadAvailableSlots);
 
     private enum RoleMode {
         PATIENT,
@@ -91,7 +96,7 @@ public class AppointmentBookingPresenter {
         initialLoading = true;
         view.setBusy(true);
         view.setInfo("Se incarca datele...");
-        loadDoctors();
+        loadReferenceData();
     }
 
     public void onPatientSelected(AdminUserDTO patient) {
@@ -260,79 +265,66 @@ public class AppointmentBookingPresenter {
         loadAvailableSlots();
     }
 
-    private void loadDoctors() {
-        CommandDTO cmd = new CommandDTO(CommandDTO.Action.GET_DOCTORS);
-        sendRequest(cmd, response -> {
-            if (response.getStatus() != Response.Status.OK) {
-                view.setBusy(false);
-                view.setError("Eroare: " + response.getMessage());
-                return;
+    private void loadReferenceData() {
+        List<CommandDTO> commands = new ArrayList<>();
+        commands.add(new CommandDTO(CommandDTO.Action.GET_DOCTORS));
+        commands.add(new CommandDTO(CommandDTO.Action.GET_SPECIALIZATIONS));
+        commands.add(new CommandDTO(CommandDTO.Action.GET_MEDICAL_SERVICES));
+        if (role != RoleMode.PATIENT) {
+            commands.add(new CommandDTO(CommandDTO.Action.ADMIN_LIST_USERS));
+        }
+
+        ClientSession.getInstance().getClient().sendBatch(commands, responses -> Platform.runLater(() -> {
+            for (Response response : responses) {
+                if (response.getStatus() != Response.Status.OK) {
+                    view.setBusy(false);
+                    view.setError("Eroare: " + response.getMessage());
+                    return;
+                }
             }
-            doctors = castList(response.getData());
-            view.setDoctors(doctors);
-            loadSpecializations();
-        });
+            applyDoctors(responses.get(0));
+            applySpecializations(responses.get(1));
+            applyServices(responses.get(2));
+            if (role != RoleMode.PATIENT) {
+                applyPatients(responses.get(3));
+            }
+            finishInitialLoad();
+        }));
     }
 
-    private void loadSpecializations() {
-        CommandDTO cmd = new CommandDTO(CommandDTO.Action.GET_SPECIALIZATIONS);
-        sendRequest(cmd, response -> {
-            if (response.getStatus() != Response.Status.OK) {
-                view.setBusy(false);
-                view.setError("Eroare: " + response.getMessage());
-                return;
-            }
-            List<SpecializationDTO> received = castList(response.getData());
-            specializations = received.stream()
-                    .sorted(Comparator.comparing(SpecializationDTO::getName, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER)))
-                    .toList();
+    private void applyDoctors(Response response) {
+        doctors = castList(response.getData());
+        view.setDoctors(doctors);
+    }
 
-            List<SpecializationDTO> items = new ArrayList<>();
-            items.add(ALL_SPECIALIZATIONS);
-            items.addAll(specializations);
+    private void applySpecializations(Response response) {
+        List<SpecializationDTO> received = castList(response.getData());
+        specializations = received.stream()
+                .sorted(Comparator.comparing(SpecializationDTO::getName, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER)))
+                .toList();
 
-            selectedSpecialization = ALL_SPECIALIZATIONS;
-            view.setSpecializations(items);
-            view.setSelectedSpecialization(selectedSpecialization);
-            applyDoctorFilters();
-            loadServices();
-        });
+        List<SpecializationDTO> items = new ArrayList<>();
+        items.add(ALL_SPECIALIZATIONS);
+        items.addAll(specializations);
+
+        selectedSpecialization = ALL_SPECIALIZATIONS;
+        view.setSpecializations(items);
+        view.setSelectedSpecialization(selectedSpecialization);
+        applyDoctorFilters();
     }
 
-    private void loadServices() {
-        CommandDTO cmd = new CommandDTO(CommandDTO.Action.GET_MEDICAL_SERVICES);
-        sendRequest(cmd, response -> {
-            if (response.getStatus() != Response.Status.OK) {
-                view.setBusy(false);
-                view.setError("Eroare: " + response.getMessage());
-                return;
-            }
-            services = castList(response.getData());
-            view.setServices(services);
-            if (role == RoleMode.PATIENT) {
-                finishInitialLoad();
-            } else {
-                loadPatients();
-            }
-        });
+    private void applyServices(Response response) {
+        services = castList(response.getData());
+        view.setServices(services);
     }
 
-    private void loadPatients() {
-        CommandDTO cmd = new CommandDTO(CommandDTO.Action.ADMIN_LIST_USERS);
-        sendRequest(cmd, response -> {
-            if (response.getStatus() != Response.Status.OK) {
-                view.setBusy(false);
-                view.setError("Eroare: " + response.getMessage());
-                return;
-            }
-            List<AdminUserDTO> users = castList(response.getData());
-            patients = users.stream()
-                    .filter(user -> "PATIENT".equalsIgnoreCase(user.getRole()))
-                    .sorted(Comparator.comparing(AdminUserDTO::getFullName, String.CASE_INSENSITIVE_ORDER))
-                    .toList();
-            view.setPatients(patients);
-            finishInitialLoad();
-        });
+    private void applyPatients(Response response) {
+        List<AdminUserDTO> users = castList(response.getData());
+        patients = users.stream()
+                .filter(user -> "PATIENT".equalsIgnoreCase(user.getRole()))
+                .sorted(Comparator.comparing(AdminUserDTO::getFullName, String.CASE_INSENSITIVE_ORDER))
+                .toList();
+        view.setPatients(patients);
     }
 
     private void finishInitialLoad() {
@@ -437,6 +429,7 @@ public class AppointmentBookingPresenter {
     }
 
     private void loadAvailableSlots() {
+        subscribeToSlots();
         if (selectedDoctor == null || selectedDate == null) {
             view.setAvailableTimes(List.of());
             return;
@@ -469,6 +462,26 @@ public class AppointmentBookingPresenter {
         });
     }
 
+    /**
+     * Follows the slots of the selected doctor and date, so that a slot
+     * taken or freed by someone else shows up without a refresh.
+     */
+    private void subscribeToSlots() {
+        String topic = selectedDoctor == null || selectedDate == null
+                ? null
+                : Topics.doctorSlots(selectedDoctor.getDoctorId(), selectedDate);
+        if (Objects.equals(topic, slotsTopic) || !ClientSession.getInstance().isConnected()) {
+            return;
+        }
+        if (slotsTopic != null) {
+            ClientSession.getInstance().getClient().unsubscribe(slotsTopic, onSlotsChanged);
+        }
+        slotsTopic = topic;
+        if (topic != null) {
+            ClientSession.getInstance().getClient().subscribe(topic, onSlotsChanged);
+        }
+    }
+
     private void applyDoctorFilters() {
         String selectedSpec = selectedSpecialization == null ? "" : selectedSpecialization.getName();
         boolean hasSpecFilter = selectedSpec != null && !selectedSpec.isBlank()
@@ -19,8 +19,6 @@ import java.util.stream.Collectors;
 public class PublicPresenter {
 
     private final PublicView view;
-    private List<CommandDTO.Action> pendingActions = Collections.emptyList();
-    private CommandDTO.Action currentAction;
     private List<DoctorDTO> doctors = Collections.emptyList();
     private List<SpecializationDTO> specializations = Collections.emptyList();
     private List<MedicalServiceDTO> services = Collections.emptyList();
@@ -37,13 +35,16 @@ public class PublicPresenter {
             return;
         }
 
-        pendingActions = List.of(
+        List<CommandDTO.Action> actions = List.of(
                 CommandDTO.Action.GET_DOCTORS,
                 CommandDTO.Action.GET_SPECIALIZATIONS
         );
         view.setBusy(true);
         view.setInfo("Se incarca informatiile publice...");
-        sendNext();
+
+        List<CommandDTO> commands = actions.stream().map(CommandDTO::new).toList();
+        ClientSession.getInstance().getClient().sendBatch(commands,
+                responses -> Platform.runLater(() -> handleResponses(actions, responses)));
     }
 
     public void onGoToLogin() {
@@ -63,32 +64,16 @@ public class PublicPresenter {
         applyFilters();
     }
 
-    private void sendNext() {
-        if (pendingActions.isEmpty()) {
-            view.setBusy(false);
-            view.setInfo("Informatiile au fost incarcate.");
-            return;
-        }
-
-        currentAction = pendingActions.get(0);
-        pendingActions = pendingActions.subList(1, pendingActions.size());
-
-        CommandDTO cmd = new CommandDTO(currentAction);
-        Request req = new Request(cmd);
-        req.setType(RequestType.COMMAND);
-
-        ClientSession.getInstance().getClient().sendRequest(req, this::handleResponse);
-    }
-
-    private void handleResponse(Response response) {
-        Platform.runLater(() -> {
+    private void handleResponses(List<CommandDTO.Action> actions, List<Response> responses) {
+        for (int i = 0; i < actions.size(); i++) {
+            Response response = responses.get(i);
             if (response.getStatus() != Response.Status.OK) {
                 view.setError("Eroare: " + response.getMessage());
                 view.setBusy(false);
                 return;
             }
 
-            switch (currentAction) {
+            switch (actions.get(i)) {
                 case GET_DOCTORS -> {
                     doctors = castList(response.getData());
                     applyFilters();
@@ -105,9 +90,10 @@ public class PublicPresenter {
                 }
                 default -> view.setInfo("Raspuns primit.");
             }
+        }
 
-            sendNext();
-        });
+        view.setBusy(false);
+        view.setInfo("Informatiile au fost incarcate.");
     }
 
     @SuppressWarnings("unchecked")
@@ -204,6 +204,13 @@ public class ManagerDashboardView {
         }
     }
 
+    public void appendAppointments(List<AppointmentDTO> list) {
+        if (appointmentsTable != null) {
+            appointmentsTable.getItems().addAll(list);
+            updateServiceFilter(appointmentsTable.getItems());
+        }
+    }
+
     private void updateServiceFilter(List<AppointmentDTO> list) {
         if (serviceFilterCombo == null) return;
         serviceFilterCombo.setOnAction(null);
@@ -0,0 +1,21 @@
+-- A doctor has at most one active appointment per date and time. Booking
+-- relies on this index: of two bookings racing for the same slot, the
+-- second fails with a unique violation (SQLSTATE 23505), which the server
+-- reports as SLOT_TAKEN.
+--
+-- Cancelled appointments do not hold their slot. The server writes
+-- CANCELLED; if the appointment_status type also has a CANCELED label in
+-- use, add it to the predicate.
+--
+-- The index cannot be built while a slot is already double booked. List
+-- such slots first and cancel all but one appointment of each:
+--
+--   SELECT doctor_id, appointment_date, appointment_time, array_agg(appointment_id)
+--   FROM appointment
+--   WHERE status <> 'CANCELLED'
+--   GROUP BY doctor_id, appointment_date, appointment_time
+--   HAVING count(*) > 1;
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS appointment_active_slot
+    ON appointment (doctor_id, appointment_date, appointment_time)
+    WHERE status <> 'CANCELLED';
@@ -11,6 +11,7 @@ import model.dto.AdminUserDTO;
 import model.dto.CommandDTO;
 import util.PasswordHasher;
 
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
 import java.util.List;
 
@@ -39,6 +40,23 @@ public class AdminController {
         }
     }
 
+    /**
+     * Same as {@link #listUsers}, but the users are sent to the sink in
+     * chunks while they are read, and the response only carries how many
+     * were sent.
+     */
+    public Response streamUsers(ChunkSink sink) {
+        ChunkWriter<AdminUserDTO> writer = new ChunkWriter<>(sink);
+        try {
+            adminRepository.streamAdminUsers(ChunkWriter.FETCH_SIZE, user -> writer.accept(toDto(user)));
+            return Response.ok(writer.finish());
+        } catch (UncheckedIOException e) {
+            return Response.error("STREAM_FAILED", e.getCause().getMessage());
+        } catch (Exception e) {
+            return Response.error("DB_ERROR", e.getMessage());
+        }
+    }
+
     private AdminUserDTO toDto(AdminUser user) {
         return new AdminUserDTO(
                 user.getUserId(),
@@ -0,0 +1,174 @@
+package controller;
+
+import model.common.Response;
+import model.dto.CommandDTO;
+import model.repository.Deadline;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Limits how many commands of each action run at the same time. A command
+ * over the limit waits for a free place, but only if few commands are
+ * already waiting and only for a short time; otherwise it is answered at
+ * once with a BUSY error whose data is a hint, in milliseconds, of when to
+ * retry. A command with a deadline waits no longer than the time it has
+ * left. This keeps a burst of expensive commands, such as the statistics
+ * that run many COUNT queries, from taking every database connection.
+ * <p>
+ * Limits are read from system properties: server.admission.limit for
+ * most actions, server.admission.statsLimit for the statistics and
+ * server.admission.limit.ACTION for one action. Zero or less means no
+ * limit for that action.
+ */
+public final class AdmissionControl {
+
+    private static final int DEFAULT_LIMIT = Integer.getInteger("server.admission.limit", 8);
+
+    private static final int STATS_LIMIT = Integer.getInteger("server.admission.statsLimit", 2);
+
+    /**
+     * Number of commands of one action that may wait for a free place.
+     */
+    private static final int QUEUE = Integer.getInteger("server.admission.queue", 16);
+
+    /**
+     * Longest time a command waits for a free place, in milliseconds.
+     */
+    private static final long WAIT_MILLIS = Long.getLong("server.admission.waitMillis", 2000);
+
+    private static final long MIN_RETRY_MILLIS = 100;
+
+    private static final Set<CommandDTO.Action> STATS_ACTIONS = EnumSet.of(
+            CommandDTO.Action.ADMIN_GET_STATS,
+            CommandDTO.Action.GET_STATS
+    );
+
+    private final Map<CommandDTO.Action, Gate> gates = new EnumMap<>(CommandDTO.Action.class);
+
+    public AdmissionControl() {
+        for (CommandDTO.Action action : CommandDTO.Action.values()) {
+            int limit = Integer.getInteger("server.admission.limit." + action.name(),
+                    STATS_ACTIONS.contains(action) ? STATS_LIMIT : DEFAULT_LIMIT);
+            gates.put(action, new Gate(limit));
+        }
+    }
+
+    /**
+     * Runs a command if its action has a free place, waiting for one if
+     * allowed, and returns a BUSY error otherwise.
+     */
+    public Response run(CommandDTO.Action action, Supplier<Response> command) {
+        Gate gate = gates.get(action);
+        if (gate == null || gate.permits == null) {
+            return command.get();
+        }
+        if (!gate.enter()) {
+            gate.rejected.increment();
+            long retryAfter = gate.retryAfterMillis();
+            return Response.error("BUSY", "Server busy, retry in " + retryAfter + " ms", retryAfter);
+        }
+        long start = System.nanoTime();
+        try {
+            return command.get();
+        } finally {
+            gate.exit(System.nanoTime() - start);
+        }
+    }
+
+    public Map<CommandDTO.Action, Gate> getGates() {
+        return Collections.unmodifiableMap(gates);
+    }
+
+    /**
+     * The limit and counters of one action.
+     */
+    public static final class Gate {
+
+        private final int limit;
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder busyNanos = new LongAdder();
+
+        private Gate(int limit) {
+            this.limit = limit;
+            this.permits = limit > 0 ? new Semaphore(limit) : null;
+        }
+
+        private boolean enter() {
+            if (permits.tryAcquire()) {
+                admitted.increment();
+                return true;
+            }
+            if (waiting.incrementAndGet() > QUEUE) {
+                waiting.decrementAndGet();
+                return false;
+            }
+            try {
+                long waitNanos = TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+                Long deadline = Deadline.current();
+                if (deadline != null) {
+                    waitNanos = Math.min(waitNanos, deadline - System.nanoTime());
+                }
+                if (permits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                    admitted.increment();
+                    return true;
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        private void exit(long nanos) {
+            busyNanos.add(nanos);
+            completed.increment();
+            permits.release();
+        }
+
+        /**
+         * Time for the commands running and waiting to finish, from the
+         * average time a command of this action takes.
+         */
+        private long retryAfterMillis() {
+            long count = completed.sum();
+            long average = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(busyNanos.sum() / count);
+            long ahead = getRunning() + waiting.get() + 1L;
+            return Math.max(MIN_RETRY_MILLIS, average * ahead / limit);
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getRunning() {
+            return permits == null ? 0 : limit - permits.availablePermits();
+        }
+
+        public int getWaiting() {
+            return waiting.get();
+        }
+
+        public long getAdmitted() {
+            return admitted.sum();
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+    }
+}
@@ -1,21 +1,28 @@
 package controller;
 
 import model.common.Response;
+import model.common.Topics;
 import model.dto.AppointmentDTO;
+import model.dto.AppointmentEventDTO;
 import model.dto.CommandDTO;
 import model.Appointment;
 import model.DoctorSchedule;
 import model.repository.AppointmentRepository;
+import model.repository.Deadline;
 import model.repository.DoctorRepository;
 import model.repository.PatientRepository;
 import model.AppointmentStatus;
 
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class AppointmentController {
 
@@ -23,6 +30,8 @@ public class AppointmentController {
     private final DoctorRepository doctorRepository;
     private final PatientRepository patientRepository;
     private static final int SLOT_MINUTES = 30;
+    private volatile EventPublisher publisher = EventPublisher.NONE;
+    private final SlotGuard slotGuard = new SlotGuard();
 
     public AppointmentController() {
         this.appointmentRepository = new AppointmentRepository();
@@ -30,9 +39,25 @@ public class AppointmentController {
         this.patientRepository = new PatientRepository();
     }
 
-    public Response bookAppointment(CommandDTO command) {
-        Long patientId = command.getLong("patientId");
-        Long patientUserId = command.getLong("patientUserId");
+    public void setPublisher(EventPublisher publisher) {
+        this.publisher = publisher != null ? publisher : EventPublisher.NONE;
+    }
+
+    public Response bookAppointment(CommandDTO command, Session session) {
+        if (session == null) {
+            return Response.error("NOT_AUTHENTICATED", "Login required");
+        }
+        // a patient books for themselves, doctors and administrators name the patient
+        Long patientId;
+        Long patientUserId = null;
+        if (session.isPatient()) {
+            patientId = session.getPatientId();
+        } else if (session.actsForOthers()) {
+            patientId = command.getLong("patientId");
+            patientUserId = command.getLong("patientUserId");
+        } else {
+            return Response.error("FORBIDDEN", "Not allowed to book appointments");
+        }
         Long doctorId = command.getLong("doctorId");
         Long serviceId = command.getLong("serviceId");
         LocalDate date = command.getDate("date");
@@ -50,22 +75,61 @@ public class AppointmentController {
                 return Response.error("VALIDATION_ERROR", "Missing patient details");
             }
 
-            boolean isFree = appointmentRepository.isSlotAvailable(doctorId, date, time);
-            if (!isFree) {
-                return Response.error("SLOT_TAKEN", "The selected slot is no longer available.");
+            // bookings of one doctor's day made here go to the database one at a time
+            SlotGuard.Slot slot = new SlotGuard.Slot(doctorId, date, time);
+            if (slotGuard.recentlyBooked(slot)) {
+                return slotTaken();
             }
-
-            long appointmentId = appointmentRepository.createAppointment(
-                    patientId, doctorId, serviceId != null ? serviceId : 0, date, time, AppointmentStatus.PENDING
-            );
+            ReentrantLock lock = slotGuard.lockFor(doctorId, date);
+            if (!lock.tryLock(lockWaitNanos(), TimeUnit.NANOSECONDS)) {
+                long retryAfter = slotGuard.retryAfterMillis(lock);
+                return Response.error("BUSY", "Server busy, retry in " + retryAfter + " ms", retryAfter);
+            }
+            long lockedAt = System.nanoTime();
+            Long appointmentId;
+            try {
+                if (slotGuard.recentlyBooked(slot)) {
+                    return slotTaken();
+                }
+                appointmentId = appointmentRepository.bookSlot(
+                        patientId, doctorId, serviceId != null ? serviceId : 0, date, time, AppointmentStatus.PENDING
+                );
+                if (appointmentId != null) {
+                    slotGuard.booked(slot);
+                }
+            } finally {
+                slotGuard.released(System.nanoTime() - lockedAt);
+                lock.unlock();
+            }
+            if (appointmentId == null) {
+                return slotTaken();
+            }
+            publish(new AppointmentEventDTO(AppointmentEventDTO.Kind.BOOKED, appointmentId, doctorId,
+                    date, time, AppointmentStatus.PENDING.name()));
 
             return Response.okMessage("Appointment requested successfully. ID: " + appointmentId);
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.error("DB_ERROR", "Booking failed: interrupted");
         } catch (Exception e) {
             return Response.error("DB_ERROR", "Booking failed: " + e.getMessage());
         }
     }
 
+    private static Response slotTaken() {
+        return Response.error("SLOT_TAKEN", "The selected slot is no longer available.");
+    }
+
+    /**
+     * Returns how long a booking may wait for the lock of its doctor's
+     * day: until the deadline of the command, if it has one.
+     */
+    private static long lockWaitNanos() {
+        Long deadline = Deadline.current();
+        return deadline == null ? Long.MAX_VALUE : deadline - System.nanoTime();
+    }
+
     public Response updateAppointment(CommandDTO command) {
         try {
             Long appointmentId = command.getLong("appointmentId");
@@ -79,8 +143,13 @@ public class AppointmentController {
             if (statusStr != null && doctorId == null) {
                 try {
                     AppointmentStatus status = AppointmentStatus.valueOf(statusStr);
-                    boolean updated = appointmentRepository.updateStatus(appointmentId, status);
-                    if (updated) {
+                    Appointment updated = appointmentRepository.updateStatusReturningSlot(appointmentId, status);
+                    if (updated != null) {
+                        if (status == AppointmentStatus.CANCELED) {
+                            slotGuard.freed(updated.getDoctorId(), updated.getAppointmentDate(),
+                                    updated.getAppointmentTime());
+                        }
+                        publish(statusEvent(updated));
                         return Response.ok("OK");
                     } else {
                         return Response.error("DB_ERROR", "Failed to update status");
@@ -103,15 +172,39 @@ public class AppointmentController {
                 return Response.error("VALIDATION_ERROR", "Date and Time are required");
             }
 
-            boolean success = appointmentRepository.updateAppointment(
-                    appointmentId,
-                    doctorId,
-                    serviceId,
-                    date,
-                    time
-            );
+            Appointment previous = appointmentRepository.findSlotById(appointmentId);
+            boolean success;
+            try {
+                success = appointmentRepository.updateAppointment(
+                        appointmentId,
+                        doctorId,
+                        serviceId,
+                        date,
+                        time
+                );
+            } catch (SQLException e) {
+                if (AppointmentRepository.isSlotTaken(e)) {
+                    return slotTaken();
+                }
+                throw e;
+            }
 
             if (success) {
+                if (previous != null) {
+                    slotGuard.freed(previous.getDoctorId(), previous.getAppointmentDate(),
+                            previous.getAppointmentTime());
+                }
+                String status = previous == null || previous.getStatus() == null ? null : previous.getStatus().name();
+                AppointmentEventDTO event = new AppointmentEventDTO(AppointmentEventDTO.Kind.RESCHEDULED,
+                        appointmentId, doctorId, date, time, status);
+                publish(event);
+                if (previous != null && (previous.getDoctorId() != doctorId
+                        || !date.equals(previous.getAppointmentDate()))) {
+                    // the old slot is freed on topics the new one does not cover
+                    publish(new AppointmentEventDTO(AppointmentEventDTO.Kind.RESCHEDULED, appointmentId,
+                            previous.getDoctorId(), previous.getAppointmentDate(),
+                            previous.getAppointmentTime(), status), false);
+                }
                 return Response.ok("OK");
             } else {
                 return Response.error("DB_ERROR", "Failed to update appointment details");
@@ -127,9 +220,13 @@ public class AppointmentController {
         Long appointmentId = command.getLong("appointmentId");
 
         try {
-            boolean updated = appointmentRepository.updateStatus(appointmentId, AppointmentStatus.CANCELED);
-            if (updated) return Response.okMessage("Appointment canceled");
-            else return Response.error("NOT_FOUND", "Appointment not found");
+            Appointment updated = appointmentRepository.updateStatusReturningSlot(appointmentId, AppointmentStatus.CANCELED);
+            if (updated != null) {
+                slotGuard.freed(updated.getDoctorId(), updated.getAppointmentDate(), updated.getAppointmentTime());
+                publish(statusEvent(updated));
+                return Response.okMessage("Appointment canceled");
+            }
+            return Response.error("NOT_FOUND", "Appointment not found");
         } catch (Exception e) {
             return Response.error("DB_ERROR", e.getMessage());
         }
@@ -138,9 +235,12 @@ public class AppointmentController {
     public Response approveAppointment(CommandDTO command) {
         Long appointmentId = command.getLong("appointmentId");
         try {
-            boolean updated = appointmentRepository.updateStatus(appointmentId, AppointmentStatus.CONFIRMED);
-            if (updated) return Response.okMessage("Appointment confirmed");
-            else return Response.error("NOT_FOUND", "Appointment not found");
+            Appointment updated = appointmentRepository.updateStatusReturningSlot(appointmentId, AppointmentStatus.CONFIRMED);
+            if (updated != null) {
+                publish(statusEvent(updated));
+                return Response.okMessage("Appointment confirmed");
+            }
+            return Response.error("NOT_FOUND", "Appointment not found");
         } catch (Exception e) {
             return Response.error("DB_ERROR", e.getMessage());
         }
@@ -149,9 +249,12 @@ public class AppointmentController {
     public Response markAppointmentDone(CommandDTO command) {
         Long appointmentId = command.getLong("appointmentId");
         try {
-            boolean updated = appointmentRepository.updateStatus(appointmentId, AppointmentStatus.DONE);
-            if (updated) return Response.okMessage("Appointment marked as done");
-            else return Response.error("NOT_FOUND", "Appointment not found");
+            Appointment updated = appointmentRepository.updateStatusReturningSlot(appointmentId, AppointmentStatus.DONE);
+            if (updated != null) {
+                publish(statusEvent(updated));
+                return Response.okMessage("Appointment marked as done");
+            }
+            return Response.error("NOT_FOUND", "Appointment not found");
         } catch (Exception e) {
             return Response.error("DB_ERROR", e.getMessage());
         }
@@ -203,19 +306,12 @@ public class AppointmentController {
         }
     }
 
-    public Response getDoctorAppointments(CommandDTO command) {
+    public Response getDoctorAppointments(CommandDTO command, Session session) {
         Long doctorId = command.getLong("doctorId");
         LocalDate date = command.getDate("date");
 
-        if (doctorId == null) {
-            Long requesterUserId = command.getRequesterUserId();
-            if (requesterUserId != null) {
-                try {
-                    doctorId = doctorRepository.findDoctorIdByUserId(requesterUserId);
-                } catch (Exception e) {
-                    return Response.error("DB_ERROR", e.getMessage());
-                }
-            }
+        if (doctorId == null && session != null) {
+            doctorId = session.getDoctorId();
         }
 
         try {
@@ -236,17 +332,17 @@ public class AppointmentController {
         }
     }
 
-    public Response getMyAppointments(CommandDTO command) {
-        Long patientId = command.getLong("patientId");
-        if (patientId == null) {
-            Long requesterUserId = command.getRequesterUserId();
-            if (requesterUserId != null) {
-                try {
-                    patientId = patientRepository.findPatientIdByUserId(requesterUserId);
-                } catch (Exception e) {
-                    return Response.error("DB_ERROR", e.getMessage());
-                }
-            }
+    public Response getMyAppointments(CommandDTO command, Session session) {
+        if (session == null) {
+            return Response.error("NOT_AUTHENTICATED", "Login required");
+        }
+        Long patientId;
+        if (session.isPatient()) {
+            patientId = session.getPatientId();
+        } else if (session.actsForOthers()) {
+            patientId = command.getLong("patientId");
+        } else {
+            return Response.error("FORBIDDEN", "Not allowed to list appointments of patients");
         }
 
         if (patientId == null) {
@@ -267,13 +363,7 @@ public class AppointmentController {
             LocalDate date = command.getDate("date");
             String serviceName = command.getString("service");
 
-            List<Appointment> allAppointments = appointmentRepository.findWithFilters(null, serviceName);
-
-            if (date != null) {
-                allAppointments = allAppointments.stream()
-                        .filter(a -> date.equals(a.getAppointmentDate()))
-                        .toList();
-            }
+            List<Appointment> allAppointments = appointmentRepository.findWithFilters(null, serviceName, date);
 
             return Response.ok(toDtos(allAppointments));
         } catch (Exception e) {
@@ -282,6 +372,24 @@ public class AppointmentController {
         }
     }
 
+    /**
+     * Same as {@link #getAllAppointments}, but the appointments are sent to
+     * the sink in chunks while they are read, and the response only
+     * carries how many were sent.
+     */
+    public Response streamAllAppointments(CommandDTO command, ChunkSink sink) {
+        ChunkWriter<AppointmentDTO> writer = new ChunkWriter<>(sink);
+        try {
+            appointmentRepository.streamWithFilters(null, command.getString("service"), command.getDate("date"),
+                    ChunkWriter.FETCH_SIZE, appointment -> writer.accept(toDto(appointment)));
+            return Response.ok(writer.finish());
+        } catch (UncheckedIOException e) {
+            return Response.error("STREAM_FAILED", e.getCause().getMessage());
+        } catch (Exception e) {
+            return Response.error("DB_ERROR", e.getMessage());
+        }
+    }
+
     public Response getPatientAppointments(CommandDTO command) {
         Long patientId = command.getLong("patientId");
 
@@ -297,6 +405,40 @@ public class AppointmentController {
         }
     }
 
+    private AppointmentEventDTO statusEvent(Appointment appointment) {
+        AppointmentStatus status = appointment.getStatus();
+        AppointmentEventDTO.Kind kind = switch (status == null ? AppointmentStatus.PENDING : status) {
+            case CONFIRMED -> AppointmentEventDTO.Kind.CONFIRMED;
+            case CANCELED -> AppointmentEventDTO.Kind.CANCELED;
+            case DONE -> AppointmentEventDTO.Kind.DONE;
+            case PENDING -> AppointmentEventDTO.Kind.BOOKED;
+        };
+        return new AppointmentEventDTO(kind, appointment.getAppointmentId(), appointment.getDoctorId(),
+                appointment.getAppointmentDate(), appointment.getAppointmentTime(),
+                status == null ? null : status.name());
+    }
+
+    private void publish(AppointmentEventDTO event) {
+        publish(event, true);
+    }
+
+    /**
+     * Publishes an event on the topics of its doctor and date, and on the
+     * topic of all appointments unless the event only repeats one already
+     * published there.
+     */
+    private void publish(AppointmentEventDTO event, boolean allAppointments) {
+        EventPublisher publisher = this.publisher;
+        if (allAppointments) {
+            publisher.publish(Topics.ALL_APPOINTMENTS, event);
+        }
+        publisher.publish(Topics.doctorAgenda(event.getDoctorId()), event);
+        if (event.getDate() != null) {
+            publisher.publish(Topics.doctorAgenda(event.getDoctorId(), event.getDate()), event);
+            publisher.publish(Topics.doctorSlots(event.getDoctorId(), event.getDate()), event);
+        }
+    }
+
     private AppointmentDTO toDto(Appointment appointment) {
         if (appointment == null) {
             return null;
@@ -0,0 +1,13 @@
+package controller;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the rows of a streamed response, one chunk at a time.
+ */
+@FunctionalInterface
+public interface ChunkSink {
+
+    void send(List<?> rows) throws IOException;
+}
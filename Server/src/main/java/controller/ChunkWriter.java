@@ -0,0 +1,65 @@
+package controller;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Groups rows read from a cursor into chunks and sends each chunk as soon
+ * as it is full, so that only one chunk is held in memory. A failure to
+ * send is thrown as an UncheckedIOException, which stops the query.
+ */
+final class ChunkWriter<T> implements Consumer<T> {
+
+    /**
+     * Number of rows sent in one chunk.
+     */
+    static final int CHUNK_ROWS = Math.max(1, Integer.getInteger("server.stream.chunkRows", 200));
+
+    /**
+     * Number of rows fetched from the database cursor at a time.
+     */
+    static final int FETCH_SIZE = Math.max(1, Integer.getInteger("server.stream.fetchSize", 500));
+
+    private final ChunkSink sink;
+    private List<T> rows = new ArrayList<>(CHUNK_ROWS);
+    private long count;
+
+    ChunkWriter(ChunkSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void accept(T row) {
+        rows.add(row);
+        count++;
+        if (rows.size() >= CHUNK_ROWS) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the rows not sent yet.
+     *
+     * @return the number of rows sent in all.
+     */
+    long finish() {
+        flush();
+        return count;
+    }
+
+    private void flush() {
+        if (rows.isEmpty()) {
+            return;
+        }
+        List<T> chunk = rows;
+        rows = new ArrayList<>(CHUNK_ROWS);
+        try {
+            sink.send(chunk);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package controller;
+
+import model.dto.CommandDTO;
+import util.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count, errors and latency of the commands handled, per action. A command
+ * adds to a few striped counters and one histogram bucket and takes no
+ * lock, so the metrics stay on in production. Reading them is done from
+ * the server console, either since start or since the previous reading.
+ */
+public final class CommandMetrics {
+
+    private final Map<CommandDTO.Action, ActionMetrics> actions = new EnumMap<>(CommandDTO.Action.class);
+    private final long startedAt = System.nanoTime();
+    private Map<CommandDTO.Action, Sample> lastSample = new EnumMap<>(CommandDTO.Action.class);
+    private long lastSampleAt = startedAt;
+
+    public CommandMetrics() {
+        for (CommandDTO.Action action : CommandDTO.Action.values()) {
+            actions.put(action, new ActionMetrics());
+        }
+    }
+
+    /**
+     * Records a handled command.
+     *
+     * @param nanos time from receiving the command to answering it.
+     * @param ok    whether the answer was a success.
+     */
+    public void record(CommandDTO.Action action, long nanos, boolean ok) {
+        ActionMetrics metrics = actions.get(action);
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        metrics.count.increment();
+        metrics.totalMicros.add(micros);
+        if (!ok) {
+            metrics.errors.increment();
+        }
+        metrics.histogram.record(micros);
+    }
+
+    /**
+     * Returns the metrics of every action handled since start.
+     */
+    public List<Sample> sinceStart() {
+        long elapsed = System.nanoTime() - startedAt;
+        List<Sample> samples = new ArrayList<>();
+        actions.forEach((action, metrics) -> {
+            Sample sample = metrics.sample(action, elapsed);
+            if (sample.count() > 0) {
+                samples.add(sample);
+            }
+        });
+        return samples;
+    }
+
+    /**
+     * Returns the metrics of every action handled since the previous call,
+     * or since start on the first call.
+     */
+    public synchronized List<Sample> sinceLastSample() {
+        long now = System.nanoTime();
+        long elapsed = now - lastSampleAt;
+        Map<CommandDTO.Action, Sample> current = new EnumMap<>(CommandDTO.Action.class);
+        List<Sample> samples = new ArrayList<>();
+        actions.forEach((action, metrics) -> {
+            Sample total = metrics.sample(action, now - startedAt);
+            current.put(action, total);
+            Sample interval = total.minus(lastSample.get(action), elapsed);
+            if (interval.count() > 0) {
+                samples.add(interval);
+            }
+        });
+        lastSample = current;
+        lastSampleAt = now;
+        return samples;
+    }
+
+    /**
+     * Returns the time since start in seconds.
+     */
+    public long getUptimeSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt);
+    }
+
+    private static final class ActionMetrics {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private Sample sample(CommandDTO.Action action, long elapsedNanos) {
+            return new Sample(action, count.sum(), errors.sum(), totalMicros.sum(),
+                    histogram.snapshot(), elapsedNanos);
+        }
+    }
+
+    /**
+     * Metrics of one action over a period of time.
+     */
+    public record Sample(CommandDTO.Action action, long count, long errors, long totalMicros,
+                         long[] buckets, long elapsedNanos) {
+
+        public double getPerSecond() {
+            return elapsedNanos <= 0 ? 0 : count * 1e9 / elapsedNanos;
+        }
+
+        public long getP50Micros() {
+            return LatencyHistogram.percentile(buckets, 0.50);
+        }
+
+        public long getP99Micros() {
+            return LatencyHistogram.percentile(buckets, 0.99);
+        }
+
+        private Sample minus(Sample earlier, long elapsed) {
+            if (earlier == null) {
+                return new Sample(action, count, errors, totalMicros, buckets, elapsed);
+            }
+            return new Sample(action, count - earlier.count, errors - earlier.errors,
+                    totalMicros - earlier.totalMicros,
+                    LatencyHistogram.minus(buckets, earlier.buckets), elapsed);
+        }
+    }
+}
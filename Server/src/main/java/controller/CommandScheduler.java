@@ -0,0 +1,304 @@
+package controller;
+
+import model.common.Response;
+import model.dto.CommandDTO;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs commands on a fixed set of threads, picking the next command by
+ * priority class rather than by arrival. Every class has its own queue
+ * and a weight, and a class with weight w is picked w times for every
+ * pick of a class with weight 1 while both have commands waiting (smooth
+ * weighted round robin), so cheap interactive commands overtake a backlog
+ * of analytics without starving it. The analytics class may also use
+ * only some of the threads, leaving the others free for everyone else.
+ * A command whose deadline passed while it was queued is not run.
+ * <p>
+ * Weights, queue lengths and thread limits are read from the system
+ * properties server.priority.CLASS.weight, server.priority.CLASS.queue and
+ * server.priority.CLASS.maxThreads, with the class in lower case.
+ */
+public final class CommandScheduler {
+
+    public enum PriorityClass {
+        INTERACTIVE(8, 0),
+        NORMAL(3, 0),
+        ANALYTICS(1, 2);
+
+        private final int weight;
+        private final int queueLimit;
+        private final int defaultMaxThreads;
+        private final LongAdder scheduled = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder expired = new LongAdder();
+        private final LongAdder queueNanos = new LongAdder();
+        private final LongAccumulator maxQueueNanos = new LongAccumulator(Math::max, 0);
+
+        PriorityClass(int defaultWeight, int defaultMaxThreads) {
+            String prefix = "server.priority." + name().toLowerCase() + ".";
+            this.weight = Math.max(1, Integer.getInteger(prefix + "weight", defaultWeight));
+            this.queueLimit = Math.max(1, Integer.getInteger(prefix + "queue", 256));
+            this.defaultMaxThreads = Integer.getInteger(prefix + "maxThreads", defaultMaxThreads);
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Number of commands of this class taken from the queue, including
+         * the expired ones.
+         */
+        public long getScheduled() {
+            return scheduled.sum();
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        /**
+         * Number of commands of this class whose deadline passed while
+         * they were queued.
+         */
+        public long getExpired() {
+            return expired.sum();
+        }
+
+        /**
+         * Average time a command of this class waited in the queue, in
+         * microseconds.
+         */
+        public long getAverageQueueMicros() {
+            long count = scheduled.sum();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(queueNanos.sum() / count);
+        }
+
+        /**
+         * Longest time a command of this class waited in the queue, in
+         * microseconds.
+         */
+        public long getMaxQueueMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(maxQueueNanos.get());
+        }
+    }
+
+    private static final PriorityClass[] CLASSES = PriorityClass.values();
+
+    private static final long MIN_RETRY_MILLIS = 100;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Task>[] queues;
+    private final int[] running = new int[CLASSES.length];
+    private final int[] maxRunning = new int[CLASSES.length];
+    private final int[] credit = new int[CLASSES.length];
+    private final Thread[] workers;
+    private boolean shutdown;
+
+    public CommandScheduler(int threads, String threadName) {
+        @SuppressWarnings("unchecked")
+        ArrayDeque<Task>[] perClass = (ArrayDeque<Task>[]) new ArrayDeque<?>[CLASSES.length];
+        queues = perClass;
+        for (PriorityClass priority : CLASSES) {
+            queues[priority.ordinal()] = new ArrayDeque<>();
+            int limit = priority.defaultMaxThreads;
+            maxRunning[priority.ordinal()] = limit > 0 ? Math.min(limit, threads) : threads;
+        }
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, threadName + "-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Returns the class of an action.
+     */
+    public static PriorityClass classify(CommandDTO.Action action) {
+        if (action == null) {
+            return PriorityClass.NORMAL;
+        }
+        return switch (action) {
+            case LOGIN, LOGOUT, GET_AVAILABLE_SLOTS, BOOK_APPOINTMENT, UPDATE_APPOINTMENT,
+                 CANCEL_APPOINTMENT, APPROVE_APPOINTMENT, MARK_APPOINTMENT_DONE -> PriorityClass.INTERACTIVE;
+            case GET_STATS, ADMIN_GET_STATS, ADMIN_LIST_USERS, GET_ALL_APPOINTMENTS -> PriorityClass.ANALYTICS;
+            default -> PriorityClass.NORMAL;
+        };
+    }
+
+    /**
+     * Returns the lowest class of the commands of a batch, so that a batch
+     * cannot carry analytics ahead of other commands.
+     */
+    public static PriorityClass classify(Iterable<?> commands) {
+        PriorityClass lowest = PriorityClass.INTERACTIVE;
+        for (Object command : commands) {
+            PriorityClass priority = command instanceof CommandDTO dto
+                    ? classify(dto.getAction())
+                    : PriorityClass.NORMAL;
+            if (priority.ordinal() > lowest.ordinal()) {
+                lowest = priority;
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * Queues a command to run on one of the scheduler's threads, or, if
+     * its deadline passes before a thread picks it, to be answered by
+     * expired instead.
+     *
+     * @param deadline the deadline, as given by System.nanoTime, or null.
+     * @return false if the queue of the class is full or the scheduler is
+     *         shut down, in which case neither is run.
+     */
+    public boolean submit(PriorityClass priority, Long deadline, Runnable command, Runnable expired) {
+        synchronized (lock) {
+            ArrayDeque<Task> queue = queues[priority.ordinal()];
+            if (shutdown || queue.size() >= priority.queueLimit) {
+                priority.rejected.increment();
+                return false;
+            }
+            queue.addLast(new Task(priority, command, expired, System.nanoTime(), deadline));
+            lock.notify();
+        }
+        return true;
+    }
+
+    /**
+     * The error answering a command that could not be queued, with a hint
+     * of when to retry.
+     */
+    public Response busy(PriorityClass priority) {
+        long retryAfter = Math.max(MIN_RETRY_MILLIS, priority.getAverageQueueMicros() / 1000);
+        return Response.error("BUSY", "Server busy, retry in " + retryAfter + " ms", retryAfter);
+    }
+
+    /**
+     * Returns the number of commands of a class waiting to run.
+     */
+    public int getQueued(PriorityClass priority) {
+        synchronized (lock) {
+            return queues[priority.ordinal()].size();
+        }
+    }
+
+    /**
+     * Returns the number of commands of a class running.
+     */
+    public int getRunning(PriorityClass priority) {
+        synchronized (lock) {
+            return running[priority.ordinal()];
+        }
+    }
+
+    /**
+     * Stops the threads once the commands already queued have run.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the threads have stopped after {@link #shutdown}, or
+     * until the timeout.
+     *
+     * @return true if every thread stopped.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            TimeUnit.NANOSECONDS.timedJoin(worker, Math.max(1, deadline - System.nanoTime()));
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            synchronized (lock) {
+                while ((task = next()) == null) {
+                    if (shutdown && isEmpty()) {
+                        return;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            long now = System.nanoTime();
+            long waited = now - task.queuedAt;
+            task.priority.queueNanos.add(waited);
+            task.priority.maxQueueNanos.accumulate(waited);
+            task.priority.scheduled.increment();
+            boolean late = task.deadline != null && now - task.deadline >= 0;
+            if (late) {
+                task.priority.expired.increment();
+            }
+            try {
+                (late ? task.expired : task.command).run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (lock) {
+                    running[task.priority.ordinal()]--;
+                    // a class held back by its thread limit may go on
+                    lock.notify();
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the next command by smooth weighted round robin among the
+     * classes with commands waiting and threads left. Called holding the
+     * lock.
+     */
+    private Task next() {
+        int total = 0;
+        PriorityClass best = null;
+        for (PriorityClass priority : CLASSES) {
+            int i = priority.ordinal();
+            if (queues[i].isEmpty() || running[i] >= maxRunning[i]) {
+                continue;
+            }
+            credit[i] += priority.weight;
+            total += priority.weight;
+            if (best == null || credit[i] > credit[best.ordinal()]) {
+                best = priority;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        credit[best.ordinal()] -= total;
+        running[best.ordinal()]++;
+        return queues[best.ordinal()].pollFirst();
+    }
+
+    private boolean isEmpty() {
+        for (ArrayDeque<Task> queue : queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private record Task(PriorityClass priority, Runnable command, Runnable expired, long queuedAt, Long deadline) {
+    }
+}
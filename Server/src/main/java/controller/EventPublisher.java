@@ -0,0 +1,12 @@
+package controller;
+
+/**
+ * Delivers an event to the clients subscribed to a topic.
+ */
+public interface EventPublisher {
+
+    EventPublisher NONE = (topic, event) -> {
+    };
+
+    void publish(String topic, Object event);
+}
@@ -2,9 +2,133 @@ package controller;
 
 import model.common.Response;
 import model.dto.CommandDTO;
+import model.repository.CurrentCommand;
+import model.repository.Deadline;
+import model.repository.Repository;
+import model.repository.UnitOfWork;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class HospitalController {
 
+    /**
+     * Largest number of commands accepted in one batch.
+     */
+    private static final int BATCH_MAX = Integer.getInteger("server.batch.max", 32);
+
+    /**
+     * Threads running the reads of a batch in parallel. Kept apart from the
+     * dispatch pool, whose threads wait for these tasks.
+     */
+    private static final int BATCH_THREADS = Integer.getInteger("server.batch.threads", 4);
+
+    /**
+     * Actions that only read, so they can run in any order relative to
+     * each other.
+     */
+    private static final Set<CommandDTO.Action> READ_ACTIONS = EnumSet.of(
+            CommandDTO.Action.GET_DOCTORS,
+            CommandDTO.Action.GET_DOCTOR_SCHEDULE,
+            CommandDTO.Action.GET_AVAILABLE_SLOTS,
+            CommandDTO.Action.GET_SPECIALIZATIONS,
+            CommandDTO.Action.GET_MEDICAL_SERVICES,
+            CommandDTO.Action.GET_MY_APPOINTMENTS,
+            CommandDTO.Action.GET_PATIENT_DASHBOARD,
+            CommandDTO.Action.GET_ALL_APPOINTMENTS,
+            CommandDTO.Action.GET_DOCTOR_APPOINTMENTS,
+            CommandDTO.Action.GET_PATIENT_DETAILS,
+            CommandDTO.Action.GET_PATIENT_APPOINTMENTS,
+            CommandDTO.Action.GET_MY_MEDICAL_RECORD,
+            CommandDTO.Action.GET_PATIENT_MEDICAL_RECORD,
+            CommandDTO.Action.GET_FEEDBACK_FOR_DOCTOR,
+            CommandDTO.Action.ADMIN_LIST_USERS,
+            CommandDTO.Action.ADMIN_GET_STATS,
+            CommandDTO.Action.GET_STATS
+    );
+
+    /**
+     * Actions whose reads may go to a read replica, for the repository
+     * methods that allow it: reports, where data a moment old is fine.
+     * Every other action reads from the primary, so that booking never
+     * sees a slot that was just taken as free.
+     */
+    private static final Set<CommandDTO.Action> REPLICA_ACTIONS = EnumSet.of(
+            CommandDTO.Action.GET_ALL_APPOINTMENTS,
+            CommandDTO.Action.ADMIN_LIST_USERS,
+            CommandDTO.Action.ADMIN_GET_STATS,
+            CommandDTO.Action.GET_STATS
+    );
+
+    /**
+     * Actions whose database calls run in one transaction, so that a
+     * failure part way leaves nothing half done, such as a user created
+     * without its patient.
+     */
+    private static final Set<CommandDTO.Action> TRANSACTIONAL_ACTIONS = EnumSet.of(
+            CommandDTO.Action.REGISTER,
+            CommandDTO.Action.ADD_MEDICAL_RECORD_ENTRY,
+            CommandDTO.Action.ADMIN_CREATE_USER,
+            CommandDTO.Action.ADMIN_UPDATE_USER,
+            CommandDTO.Action.ADMIN_DELETE_USER
+    );
+
+    /**
+     * Actions that open or close the session of a connection. The server
+     * binds the session when it answers them on their own, so they cannot
+     * be sent in a batch.
+     */
+    private static final Set<CommandDTO.Action> SESSION_ACTIONS = EnumSet.of(
+            CommandDTO.Action.LOGIN,
+            CommandDTO.Action.LOGOUT
+    );
+
+    /**
+     * Time after a user changed data during which all their reads go to
+     * the primary, in milliseconds, so that they see their own changes
+     * even if the replicas lag behind.
+     */
+    private static final long REPLICA_STICKY_MILLIS = Long.getLong("server.replica.stickyMillis", 5000);
+
+    /**
+     * Time a command may take, from when the server received it, in
+     * milliseconds. Read from server.deadline.millis, or
+     * server.deadline.slowMillis for the actions reading many rows, or
+     * server.deadline.millis.ACTION for one action; zero or less means no
+     * deadline. The database queries of a command are given the time left
+     * as their timeout.
+     */
+    private static final long DEFAULT_DEADLINE_MILLIS = Long.getLong("server.deadline.millis", 10000);
+
+    private static final long SLOW_DEADLINE_MILLIS = Long.getLong("server.deadline.slowMillis", 30000);
+
+    private static final Set<CommandDTO.Action> SLOW_ACTIONS = EnumSet.of(
+            CommandDTO.Action.GET_ALL_APPOINTMENTS,
+            CommandDTO.Action.ADMIN_LIST_USERS,
+            CommandDTO.Action.ADMIN_GET_STATS,
+            CommandDTO.Action.GET_STATS
+    );
+
+    /**
+     * Key of the command data holding the time the client is willing to
+     * wait, in milliseconds. It can only shorten the action's deadline.
+     */
+    public static final String TIMEOUT_KEY = "timeoutMillis";
+
+    private static final ExecutorService BATCH_EXECUTOR = newBatchExecutor();
+
     private final AuthController authController;
     private final DoctorController doctorController;
     private final AppointmentController appointmentController;
@@ -15,6 +139,9 @@ public class HospitalController {
     private final PublicController publicController;
     private final PatientDashboardController patientDashboardController;
     private final PatientController patientController;
+    private final AdmissionControl admissionControl = new AdmissionControl();
+    private final CommandMetrics metrics = new CommandMetrics();
+    private final Map<CommandDTO.Action, Long> deadlineMillis = new EnumMap<>(CommandDTO.Action.class);
 
     public HospitalController() {
         this.authController = new AuthController();
@@ -27,14 +154,177 @@ public class HospitalController {
         this.publicController = new PublicController();
         this.patientDashboardController = new PatientDashboardController();
         this.patientController = new PatientController();
+        for (CommandDTO.Action action : CommandDTO.Action.values()) {
+            deadlineMillis.put(action, Long.getLong("server.deadline.millis." + action.name(),
+                    SLOW_ACTIONS.contains(action) ? SLOW_DEADLINE_MILLIS : DEFAULT_DEADLINE_MILLIS));
+        }
+    }
+
+    /**
+     * Sets where appointment changes are published.
+     */
+    public void setPublisher(EventPublisher publisher) {
+        appointmentController.setPublisher(publisher);
     }
 
     public Response handle(CommandDTO command) {
+        return handle(command, null);
+    }
+
+    /**
+     * Handles a command sent on a connection, with the session of the user
+     * logged in on it, or null before login.
+     */
+    public Response handle(CommandDTO command, Session session) {
+        return handle(command, session, System.nanoTime());
+    }
+
+    /**
+     * Handles a command received at the given System.nanoTime, from which
+     * its deadline runs.
+     */
+    public Response handle(CommandDTO command, Session session, long receivedAt) {
+
+        if (command == null || command.getAction() == null) {
+            return Response.error("INVALID_COMMAND", "Command or action is null");
+        }
+
+        long start = System.nanoTime();
+        Long deadline = deadlineOf(command, receivedAt);
+        Response response = runBefore(deadline, () -> admissionControl.run(command.getAction(),
+                () -> CurrentCommand.run(command.getAction().name(),
+                        () -> routed(command, session, () -> dispatch(command, session)))));
+        metrics.record(command.getAction(), System.nanoTime() - start, response.isOk());
+        return response;
+    }
+
+    /**
+     * Handles a command whose answer may be a large list, sending the rows
+     * to the sink in chunks as they are read; the returned response ends
+     * the stream. Actions without a streaming version are handled as
+     * usual, with the whole answer in the returned response. The deadline
+     * runs from receivedAt, a System.nanoTime.
+     */
+    public Response handleStream(CommandDTO command, Session session, ChunkSink sink, long receivedAt) {
 
         if (command == null || command.getAction() == null) {
             return Response.error("INVALID_COMMAND", "Command or action is null");
         }
 
+        long start = System.nanoTime();
+        Long deadline = deadlineOf(command, receivedAt);
+        Response response = runBefore(deadline, () -> admissionControl.run(command.getAction(),
+                () -> CurrentCommand.run(command.getAction().name(),
+                        () -> routed(command, session, () -> switch (command.getAction()) {
+                            case GET_ALL_APPOINTMENTS -> appointmentController.streamAllAppointments(command, sink);
+                            case ADMIN_LIST_USERS -> adminController.streamUsers(sink);
+                            default -> dispatch(command, session);
+                        }))));
+        metrics.record(command.getAction(), System.nanoTime() - start, response.isOk());
+        return response;
+    }
+
+    /**
+     * Runs a command with its reads on the primary, unless its action may
+     * read from a replica and the user has not changed data lately. A
+     * command that changed data makes the user's reads stick to the
+     * primary for a while. The command runs in a unit of work.
+     */
+    private Response routed(CommandDTO command, Session session, Supplier<Response> work) {
+        boolean replica = REPLICA_ACTIONS.contains(command.getAction())
+                && (session == null || !session.wroteWithin(REPLICA_STICKY_MILLIS));
+        Supplier<Response> unit = () -> inUnitOfWork(command, work);
+        Response response = replica ? unit.get() : Repository.onPrimary(unit);
+        if (session != null && response.isOk() && !READ_ACTIONS.contains(command.getAction())) {
+            session.markWrite();
+        }
+        return response;
+    }
+
+    /**
+     * Runs a command on one database connection, and in one transaction
+     * if its action has several writes, committed if the command succeeds.
+     */
+    private Response inUnitOfWork(CommandDTO command, Supplier<Response> work) {
+        try (UnitOfWork unit = UnitOfWork.begin(TRANSACTIONAL_ACTIONS.contains(command.getAction()))) {
+            Response response = work.get();
+            if (response.isOk()) {
+                unit.commit();
+            }
+            return response;
+        } catch (SQLException e) {
+            return Response.error("DB_ERROR", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the deadline of a command received at the given
+     * System.nanoTime, as given by System.nanoTime, or null if its action
+     * has none.
+     */
+    public Long deadlineOf(CommandDTO command, long receivedAt) {
+        if (command == null || command.getAction() == null) {
+            return null;
+        }
+        long millis = deadlineMillis.get(command.getAction());
+        Object requested = command.getData().get(TIMEOUT_KEY);
+        if (requested instanceof Number number && number.longValue() > 0) {
+            millis = millis > 0 ? Math.min(millis, number.longValue()) : number.longValue();
+        }
+        return millis > 0 ? receivedAt + TimeUnit.MILLISECONDS.toNanos(millis) : null;
+    }
+
+    /**
+     * Returns the latest deadline of the commands of a batch, or null if
+     * one of them has none or is not a command.
+     */
+    public Long deadlineOf(List<?> commands, long receivedAt) {
+        Long latest = null;
+        for (Object command : commands) {
+            Long deadline = command instanceof CommandDTO dto ? deadlineOf(dto, receivedAt) : null;
+            if (deadline == null) {
+                return null;
+            }
+            if (latest == null || deadline - latest > 0) {
+                latest = deadline;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Runs a command with its deadline, or skips it if the deadline passed
+     * while it waited. A failure after the deadline is reported as such,
+     * since it is most likely a query cancelled by its timeout or a wait
+     * for admission cut short.
+     */
+    private Response runBefore(Long deadline, Supplier<Response> command) {
+        if (deadline == null) {
+            return command.get();
+        }
+        if (System.nanoTime() - deadline >= 0) {
+            return deadlineExceeded();
+        }
+        Response response = Deadline.run(deadline, command);
+        if (!response.isOk() && System.nanoTime() - deadline >= 0) {
+            return deadlineExceeded();
+        }
+        return response;
+    }
+
+    static Response deadlineExceeded() {
+        return Response.error("DEADLINE_EXCEEDED", "The request took too long and was abandoned");
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public CommandMetrics getMetrics() {
+        return metrics;
+    }
+
+    private Response dispatch(CommandDTO command, Session session) {
         try {
             return switch (command.getAction()) {
 
@@ -54,9 +344,9 @@ public class HospitalController {
 
                 case GET_MEDICAL_SERVICES -> publicController.getMedicalServices();
 
-                case GET_PATIENT_DASHBOARD -> patientDashboardController.getDashboard(command);
+                case GET_PATIENT_DASHBOARD -> patientDashboardController.getDashboard(command, session);
 
-                case BOOK_APPOINTMENT -> appointmentController.bookAppointment(command);
+                case BOOK_APPOINTMENT -> appointmentController.bookAppointment(command, session);
 
                 case UPDATE_APPOINTMENT -> appointmentController.updateAppointment(command);
 
@@ -66,18 +356,18 @@ public class HospitalController {
 
                 case MARK_APPOINTMENT_DONE -> appointmentController.markAppointmentDone(command);
 
-                case GET_MY_APPOINTMENTS -> appointmentController.getMyAppointments(command);
+                case GET_MY_APPOINTMENTS -> appointmentController.getMyAppointments(command, session);
 
                 case GET_ALL_APPOINTMENTS -> appointmentController.getAllAppointments(command);
 
-                case GET_DOCTOR_APPOINTMENTS -> appointmentController.getDoctorAppointments(command);
+                case GET_DOCTOR_APPOINTMENTS -> appointmentController.getDoctorAppointments(command, session);
 
                 case GET_PATIENT_DETAILS -> patientController.getPatientDetails(command);
                 case GET_PATIENT_APPOINTMENTS -> appointmentController.getPatientAppointments(command);
 
                 case ADD_MEDICAL_RECORD_ENTRY -> medicalRecordController.addMedicalRecordEntry(command);
 
-                case GET_MY_MEDICAL_RECORD -> medicalRecordController.getMyMedicalRecord(command);
+                case GET_MY_MEDICAL_RECORD -> medicalRecordController.getMyMedicalRecord(command, session);
 
                 case GET_PATIENT_MEDICAL_RECORD -> medicalRecordController.getPatientMedicalRecord(command);
 
@@ -104,4 +394,66 @@ public class HospitalController {
         }
     }
 
+    /**
+     * Runs the commands of a batch and returns their responses in the same
+     * order. Consecutive reads run in parallel; any other command waits for
+     * the commands before it and runs alone, so a batch behaves as if its
+     * commands were sent one after another. The deadline of every command
+     * runs from receivedAt, a System.nanoTime.
+     */
+    public Response handleBatch(List<?> commands, Session session, long receivedAt) {
+        if (commands == null || commands.isEmpty()) {
+            return Response.error("INVALID_REQUEST", "Batch is empty");
+        }
+        if (commands.size() > BATCH_MAX) {
+            return Response.error("BATCH_TOO_LARGE", "A batch may contain at most " + BATCH_MAX + " commands");
+        }
+        for (Object command : commands) {
+            if (!(command instanceof CommandDTO dto)) {
+                return Response.error("INVALID_REQUEST", "Batch must contain only CommandDTO");
+            }
+            if (SESSION_ACTIONS.contains(dto.getAction())) {
+                return Response.error("INVALID_REQUEST", dto.getAction() + " cannot be sent in a batch");
+            }
+        }
+
+        List<Response> responses = new ArrayList<>(commands.size());
+        List<CompletableFuture<Response>> reads = new ArrayList<>();
+        for (Object item : commands) {
+            CommandDTO command = (CommandDTO) item;
+            if (READ_ACTIONS.contains(command.getAction())) {
+                reads.add(submit(command, session, receivedAt));
+                continue;
+            }
+            collect(reads, responses);
+            responses.add(handle(command, session, receivedAt));
+        }
+        collect(reads, responses);
+        return Response.ok(responses);
+    }
+
+    private CompletableFuture<Response> submit(CommandDTO command, Session session, long receivedAt) {
+        try {
+            return CompletableFuture.supplyAsync(() -> handle(command, session, receivedAt), BATCH_EXECUTOR);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(handle(command, session, receivedAt));
+        }
+    }
+
+    private void collect(List<CompletableFuture<Response>> reads, List<Response> responses) {
+        for (CompletableFuture<Response> read : reads) {
+            responses.add(read.join());
+        }
+        reads.clear();
+    }
+
+    private static ExecutorService newBatchExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, BATCH_THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "hospital-batch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
 }
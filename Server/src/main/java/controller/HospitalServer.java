@@ -2,16 +2,38 @@ package controller;// This file contains material supporting section 3.7 of the
 // "Object Oriented Software Engineering" and is issued under the open-source
 // license found at www.lloseng.com 
 
+import model.common.BinaryCodec;
+import model.common.Chunk;
 import model.common.ChatIF;
+import model.common.Push;
 import model.common.Request;
 import model.common.RequestType;
 import model.common.Response;
+import model.common.Topics;
 
 import model.dto.CommandDTO;
+import model.dto.LoginResponseDTO;
+import model.repository.ConnectionPool;
+import model.repository.Repository;
 import ocsf.server.AbstractServer;
 import ocsf.server.ConnectionToClient;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * This class overrides some of the methods in the abstract
@@ -23,7 +45,7 @@ import java.io.IOException;
  * @author Paul Holden
  * @version July 2000
  */
-public class HospitalServer extends AbstractServer {
+public final class HospitalServer extends AbstractServer {
     //Class variables *************************************************
 
     /**
@@ -31,6 +53,95 @@ public class HospitalServer extends AbstractServer {
      */
     final public static int DEFAULT_PORT = 5555;
 
+    /**
+     * Number of threads handling commands concurrently. Zero restores the
+     * original behaviour where every command is handled one at a time.
+     */
+    private static final int DISPATCH_THREADS = Integer.getInteger("server.dispatch.threads", 8);
+
+    /**
+     * Number of client tasks that may wait for a free dispatch thread.
+     */
+    private static final int DISPATCH_QUEUE = Integer.getInteger("server.dispatch.queue", 256);
+
+    /**
+     * Number of commands of a single client handled at the same time, when
+     * the client tags its requests with ids and accepts answers in any order.
+     */
+    private static final int CLIENT_CONCURRENCY = Integer.getInteger("server.client.concurrency", 4);
+
+    /**
+     * Whether each client connection is read by a virtual thread ("virtual")
+     * or by a platform thread ("platform").
+     */
+    private static final boolean VIRTUAL_CONNECTION_THREADS =
+            !"platform".equalsIgnoreCase(System.getProperty("server.connection.threads", "virtual"));
+
+    /**
+     * Whether connections are served by one thread each ("blocking") or by
+     * a few selector threads ("selector"). The selector backend requires
+     * framed clients, which is the client's default.
+     */
+    private static final boolean SELECTOR_BACKEND =
+            "selector".equalsIgnoreCase(System.getProperty("server.backend", "blocking"));
+
+    /**
+     * Number of I/O threads of the selector backend.
+     */
+    private static final int SELECTOR_THREADS = Integer.getInteger("server.selector.threads", 2);
+
+    /**
+     * Number of responses after which the object stream of a client that
+     * does not use framing is reset. One means every response is sent in
+     * full, never as a back-reference to an object sent before.
+     */
+    private static final int STREAM_RESET_MESSAGES = Integer.getInteger("server.stream.resetMessages", 1);
+
+    /**
+     * Number of bytes after which the object stream of such a client is
+     * reset, whatever the number of responses.
+     */
+    private static final long STREAM_RESET_BYTES = Long.getLong("server.stream.resetBytes", 1024 * 1024);
+
+    /**
+     * Time after which a heartbeat is sent to a client when nothing else was
+     * sent to it, in milliseconds. Zero disables heartbeats.
+     */
+    private static final long HEARTBEAT_MILLIS = Long.getLong("server.heartbeatMillis", 15000);
+
+    /**
+     * Time after which a client from which nothing was received is
+     * disconnected, in milliseconds. Zero keeps idle clients forever.
+     */
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("server.idleTimeoutMillis", 60000);
+
+    /**
+     * Longest time #close and #quit wait for commands in progress to
+     * finish, in milliseconds, unless given a number of seconds.
+     */
+    private static final long DRAIN_TIMEOUT_MILLIS = Long.getLong("server.drain.timeoutMillis", 30000);
+
+    /**
+     * Longest time a streamed response waits for a client to read its
+     * previous chunk, in milliseconds.
+     */
+    private static final long STREAM_FLUSH_TIMEOUT_MILLIS = Long.getLong("server.stream.flushTimeoutMillis", 30000);
+
+    /**
+     * Number of topics a single client may subscribe to.
+     */
+    private static final int MAX_SUBSCRIPTIONS = Integer.getInteger("server.subscriptions.max", 64);
+
+    /**
+     * Longest topic name accepted from a client.
+     */
+    private static final int MAX_TOPIC_LENGTH = 128;
+
+    /**
+     * Number of actions listed by the #top command.
+     */
+    private static final int TOP_ACTIONS = 10;
+
     //Instance variables **********************************************
 
     /**
@@ -41,6 +152,50 @@ public class HospitalServer extends AbstractServer {
 
     private final HospitalController hospitalController;
 
+    private final RateLimiter rateLimiter = new RateLimiter();
+
+    /**
+     * Set while the server drains before closing: commands received then
+     * are refused so that those in progress can finish.
+     */
+    private volatile boolean draining;
+
+    /**
+     * Number of requests being handled.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Key of a connection's own rate buckets in its info map, kept to be
+     * restored when the user logs out.
+     */
+    private static final String CONNECTION_BUCKETS_INFO = "connectionRateBuckets";
+
+    private ExecutorService dispatchExecutor;
+
+    /**
+     * Runs the commands of requests with an id, by priority class. The
+     * dispatch threads only decode, check and queue them.
+     */
+    private CommandScheduler commandScheduler;
+
+    /**
+     * Sends pushes to subscribers, one at a time so that every client gets
+     * the events of a topic in the order they happened, and without holding
+     * up the command that caused them.
+     */
+    private final ExecutorService pushExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hospital-push");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Serves the metrics over HTTP while the server is listening, or null
+     * if turned off.
+     */
+    private MetricsEndpoint metricsEndpoint;
+
     //Constructors ****************************************************
 
     /**
@@ -52,6 +207,7 @@ public class HospitalServer extends AbstractServer {
         super(port);
         this.serverUI = null;
         hospitalController = new HospitalController();
+        configureThreads();
     }
 
     /**
@@ -64,16 +220,199 @@ public class HospitalServer extends AbstractServer {
         super(port);
         this.serverUI = serverUI;
         this.hospitalController = new HospitalController();
+        configureThreads();
     }
 
     public HospitalServer(int port, ChatIF serverUI, HospitalController hospitalController) {
         super(port);
         this.serverUI = serverUI;
         this.hospitalController = hospitalController != null ? hospitalController : new HospitalController();
+        configureThreads();
     }
 
     //Instance methods ************************************************
 
+    /**
+     * Sets up how connections are read and commands are run, from the
+     * system properties. The backend and the threads reading connections
+     * are chosen first. The binary codec is registered. Object streams
+     * are reset and dead clients detected as configured. Appointment
+     * changes are published to the subscribers. Last come the pool that
+     * handles requests from different clients in parallel and the
+     * scheduler that runs their commands by priority class, unless no
+     * dispatch threads are configured.
+     * <p>
+     * HospitalController and the repositories are shared by all threads.
+     * They keep no per-request state, their caches are concurrent maps and
+     * the connection pool is thread safe.
+     */
+    private void configureThreads() {
+        setUseVirtualThreads(VIRTUAL_CONNECTION_THREADS);
+        setUseSelector(SELECTOR_BACKEND);
+        setSelectorThreads(SELECTOR_THREADS);
+        addCodec(BinaryCodec.INSTANCE);
+        setStreamReset(STREAM_RESET_MESSAGES, STREAM_RESET_BYTES);
+        setHeartbeat(HEARTBEAT_MILLIS, IDLE_TIMEOUT_MILLIS);
+        hospitalController.setPublisher(this::publish);
+        if (DISPATCH_THREADS <= 0) {
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        dispatchExecutor = new ThreadPoolExecutor(
+                DISPATCH_THREADS,
+                DISPATCH_THREADS,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, DISPATCH_QUEUE)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "hospital-dispatch-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        setMessageExecutor(dispatchExecutor);
+        setMaxConcurrentMessages(CLIENT_CONCURRENCY);
+        commandScheduler = new CommandScheduler(DISPATCH_THREADS, "hospital-command");
+    }
+
+    private void publish(String topic, Object event) {
+        if (getNumberOfSubscribers(topic) == 0) {
+            return;
+        }
+        try {
+            pushExecutor.execute(() -> sendToSubscribers(topic, new Push(topic, event)));
+        } catch (RejectedExecutionException ignored) {
+            // the server is shutting down
+        }
+    }
+
+    /**
+     * Subscribes or unsubscribes a client to the topics in the payload,
+     * either one topic name or a list of them.
+     */
+    private Response handleSubscription(Request request, ConnectionToClient client) {
+        List<?> topics = request.getPayload() instanceof List<?> list ? list : List.of(request.getPayload());
+        for (Object topic : topics) {
+            if (!(topic instanceof String name) || name.isBlank() || name.length() > MAX_TOPIC_LENGTH) {
+                return Response.error("INVALID_REQUEST", "Payload must be a topic name or a list of them");
+            }
+        }
+        if (request.getType() == RequestType.UNSUBSCRIBE) {
+            for (Object topic : topics) {
+                unsubscribe(client, (String) topic);
+            }
+            return Response.ok(null);
+        }
+        Session session = sessionOf(client);
+        if (session == null) {
+            return Response.error("NOT_AUTHENTICATED", "Login required");
+        }
+        for (Object topic : topics) {
+            Response refused = checkTopic(session, (String) topic);
+            if (refused != null) {
+                return refused;
+            }
+        }
+        for (Object topic : topics) {
+            if (!client.getTopics().contains(topic) && client.getTopics().size() >= MAX_SUBSCRIPTIONS) {
+                return Response.error("TOO_MANY_SUBSCRIPTIONS",
+                        "A client may subscribe to at most " + MAX_SUBSCRIPTIONS + " topics");
+            }
+            subscribe(client, (String) topic);
+        }
+        return Response.ok(null);
+    }
+
+    /**
+     * Returns null if the user may receive the events of a topic, and the
+     * error refusing the subscription otherwise. All appointments are for
+     * administrators and managers, a doctor's agenda for administrators and
+     * that doctor, and the slots of a doctor for every user.
+     */
+    private static Response checkTopic(Session session, String topic) {
+        String[] parts = topic.split("/", -1);
+        boolean allowed;
+        try {
+            if (parts.length == 1 && topic.equals(Topics.ALL_APPOINTMENTS)) {
+                allowed = "ADMIN".equals(session.getRole()) || "MANAGER".equals(session.getRole());
+            } else if (parts[0].equals("agenda") && (parts.length == 2 || parts.length == 3)) {
+                long doctorId = Long.parseLong(parts[1]);
+                if (parts.length == 3) {
+                    LocalDate.parse(parts[2]);
+                }
+                allowed = "ADMIN".equals(session.getRole())
+                        || session.getDoctorId() != null && session.getDoctorId() == doctorId;
+            } else if (parts[0].equals("slots") && parts.length == 3) {
+                Long.parseLong(parts[1]);
+                LocalDate.parse(parts[2]);
+                allowed = true;
+            } else {
+                return Response.error("INVALID_REQUEST", "Unknown topic: " + topic);
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return Response.error("INVALID_REQUEST", "Unknown topic: " + topic);
+        }
+        return allowed ? null : Response.error("FORBIDDEN", "Not allowed to subscribe to " + topic);
+    }
+
+    /**
+     * Unsubscribes a client from the topics its user, or nobody once logged
+     * out, may no longer receive.
+     */
+    private void dropForbiddenTopics(ConnectionToClient client, Session session) {
+        for (String topic : List.copyOf(client.getTopics())) {
+            if (session == null || checkTopic(session, topic) != null) {
+                unsubscribe(client, topic);
+            }
+        }
+    }
+
+    /**
+     * Returns the rate buckets charged for a client's commands: its user's
+     * once logged in, its own before.
+     */
+    private RateLimiter.Buckets bucketsOf(ConnectionToClient client) {
+        Object buckets = client.getInfo(RateLimiter.BUCKETS_INFO);
+        if (buckets instanceof RateLimiter.Buckets current) {
+            return current;
+        }
+        RateLimiter.Buckets own = rateLimiter.newConnectionBuckets();
+        client.setInfo(CONNECTION_BUCKETS_INFO, own);
+        client.setInfo(RateLimiter.BUCKETS_INFO, own);
+        return own;
+    }
+
+    private Session sessionOf(ConnectionToClient client) {
+        return client.getInfo(Session.INFO) instanceof Session session ? session : null;
+    }
+
+    /**
+     * Binds the session and the user's rate buckets to the connection on
+     * login, and removes them on logout, along with the subscriptions the
+     * connection may no longer hold.
+     */
+    private void trackLogin(CommandDTO command, Response response, ConnectionToClient client) {
+        if (command.getAction() == CommandDTO.Action.LOGIN
+                && response.isOk() && response.getData() instanceof LoginResponseDTO login) {
+            Session session = Session.of(login);
+            client.setInfo(Session.INFO, session);
+            client.setInfo(RateLimiter.BUCKETS_INFO, rateLimiter.userBuckets(login.getUserId()));
+            dropForbiddenTopics(client, session);
+        } else if (command.getAction() == CommandDTO.Action.LOGOUT && response.isOk()) {
+            client.setInfo(Session.INFO, null);
+            client.setInfo(RateLimiter.BUCKETS_INFO, client.getInfo(CONNECTION_BUCKETS_INFO));
+            dropForbiddenTopics(client, null);
+        }
+    }
+
+    /**
+     * Requests carrying an id are answered with the same id, so the client
+     * routes the answers itself and they may be sent in completion order.
+     */
+    @Override
+    protected boolean isOrderIndependent(Object msg) {
+        return msg instanceof Request request && request.getRequestId() != 0;
+    }
+
     /**
      * This method handles any messages received from the client.
      *
@@ -82,7 +421,20 @@ public class HospitalServer extends AbstractServer {
      */
     @Override
     public void handleMessageFromClient(Object msg, ConnectionToClient client) {
+        // deadlines run from here, so the time spent queued counts
+        long receivedAt = System.nanoTime();
+        long requestId = msg instanceof Request tagged ? tagged.getRequestId() : 0;
+        // counted before checking the flag, so drain() cannot miss it
+        inFlight.incrementAndGet();
+        boolean handedOff = false;
         try {
+            if (draining) {
+                client.sendToClient(Response.error(
+                        "DRAINING",
+                        "Server is shutting down, retry in a moment"
+                ).withRequestId(requestId));
+                return;
+            }
 
             if (!(msg instanceof Request request)) {
                 client.sendToClient(Response.error(
@@ -92,11 +444,36 @@ public class HospitalServer extends AbstractServer {
                 return;
             }
 
-            if (request.getType() != RequestType.COMMAND) {
+            if (request.getType() == RequestType.BATCH) {
+                if (!(request.getPayload() instanceof List<?> commands)) {
+                    client.sendToClient(Response.error(
+                            "INVALID_REQUEST",
+                            "Payload must be a list of CommandDTO"
+                    ).withRequestId(requestId));
+                    return;
+                }
+                Response limited = rateLimiter.check(bucketsOf(client), commands);
+                if (limited != null) {
+                    client.sendToClient(limited.withRequestId(requestId));
+                    return;
+                }
+                handedOff = schedule(CommandScheduler.classify(commands), requestId, client,
+                        hospitalController.deadlineOf(commands, receivedAt),
+                        () -> hospitalController.handleBatch(commands, sessionOf(client), receivedAt)
+                                .withRequestId(requestId));
+                return;
+            }
+
+            if (request.getType() == RequestType.SUBSCRIBE || request.getType() == RequestType.UNSUBSCRIBE) {
+                client.sendToClient(handleSubscription(request, client).withRequestId(requestId));
+                return;
+            }
+
+            if (request.getType() != RequestType.COMMAND && request.getType() != RequestType.STREAM) {
                 client.sendToClient(Response.error(
                         "INVALID_REQUEST",
                         "Unsupported request type"
-                ));
+                ).withRequestId(requestId));
                 return;
             }
 
@@ -104,13 +481,25 @@ public class HospitalServer extends AbstractServer {
                 client.sendToClient(Response.error(
                         "INVALID_REQUEST",
                         "Payload must be CommandDTO"
-                ));
+                ).withRequestId(requestId));
                 return;
             }
 
-            Response response = hospitalController.handle(command);
+            Response limited = rateLimiter.check(bucketsOf(client), command.getAction());
+            if (limited != null) {
+                client.sendToClient(limited.withRequestId(requestId));
+                return;
+            }
 
-            client.sendToClient(response);
+            handedOff = schedule(CommandScheduler.classify(command.getAction()), requestId, client,
+                    hospitalController.deadlineOf(command, receivedAt), () -> {
+                Response response = request.getType() == RequestType.STREAM
+                        ? hospitalController.handleStream(command, sessionOf(client),
+                                rows -> sendChunk(client, requestId, rows), receivedAt)
+                        : hospitalController.handle(command, sessionOf(client), receivedAt);
+                trackLogin(command, response, client);
+                return response.withRequestId(requestId);
+            });
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -118,9 +507,203 @@ public class HospitalServer extends AbstractServer {
                 client.sendToClient(Response.error(
                         "SERVER_ERROR",
                         e.getMessage()
-                ));
+                ).withRequestId(requestId));
             } catch (IOException ignored) {
             }
+        } finally {
+            if (!handedOff) {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Runs a command through the command scheduler, ahead of or behind
+     * other commands depending on its class, and sends its response. A
+     * request without an id must be answered in order, so it runs on the
+     * current thread. A command still queued at its deadline is answered
+     * with DEADLINE_EXCEEDED without running.
+     *
+     * @return true if the command was queued, in which case the scheduler
+     *         ends its in-flight count.
+     */
+    private boolean schedule(CommandScheduler.PriorityClass priority, long requestId,
+                             ConnectionToClient client, Long deadline,
+                             Supplier<Response> command) throws IOException {
+        if (commandScheduler == null || requestId == 0) {
+            client.sendToClient(command.get());
+            return false;
+        }
+        boolean queued = commandScheduler.submit(priority, deadline, () -> reply(client, requestId, command),
+                () -> reply(client, requestId,
+                        () -> HospitalController.deadlineExceeded().withRequestId(requestId)));
+        if (!queued) {
+            client.sendToClient(commandScheduler.busy(priority).withRequestId(requestId));
+        }
+        return queued;
+    }
+
+    /**
+     * Sends the response of a command run by the command scheduler, and
+     * ends its in-flight count.
+     */
+    private void reply(ConnectionToClient client, long requestId, Supplier<Response> command) {
+        try {
+            client.sendToClient(command.get());
+        } catch (Exception e) {
+            e.printStackTrace();
+            try {
+                client.sendToClient(Response.error("SERVER_ERROR", e.getMessage()).withRequestId(requestId));
+            } catch (IOException ignored) {
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sends one chunk of a streamed response once the previous ones are
+     * written, so that a slow client holds up the query instead of having
+     * the rest of the rows queued in memory.
+     */
+    private void sendChunk(ConnectionToClient client, long requestId, List<?> rows) throws IOException {
+        try {
+            if (!client.awaitFlushed(STREAM_FLUSH_TIMEOUT_MILLIS)) {
+                throw new SocketTimeoutException("Client is not reading the stream");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while streaming");
+        }
+        client.sendToClient(new Chunk(requestId, rows));
+    }
+
+    /**
+     * Stops accepting clients and refuses new commands, then waits until
+     * the commands in progress are answered, the responses and pushes are
+     * written and the idle database connections are closed, or until the
+     * timeout. Clients stay connected, so the server must be closed after.
+     *
+     * @param timeoutMillis the longest time to wait.
+     * @return true if everything in progress finished in time.
+     */
+    public boolean drain(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        stopListening();
+        draining = true;
+        boolean drained = false;
+        try {
+            drained = awaitDrained(deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Repository.closeIdleConnections();
+        return drained;
+    }
+
+    private boolean awaitDrained(long deadline) throws InterruptedException {
+        while (inFlight.get() > 0 || !allClientsIdle()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        // no command runs any more, so no push is published after this one
+        Future<?> pushes;
+        try {
+            pushes = pushExecutor.submit(() -> { });
+        } catch (RejectedExecutionException e) {
+            return true;
+        }
+        while (!pushes.isDone() || !allClientsIdle()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    private boolean allClientsIdle() {
+        for (ConnectionToClient client : getClientConnections()) {
+            if (!client.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the drain timeout given to #close or #quit, a number of
+     * seconds, or the default if none is given.
+     *
+     * @return the timeout in milliseconds, or -1 if the argument is not a
+     *         number of seconds.
+     */
+    private long drainTimeoutOf(String[] command) {
+        if (command.length < 2) {
+            return DRAIN_TIMEOUT_MILLIS;
+        }
+        try {
+            long seconds = Long.parseLong(command[1]);
+            if (seconds >= 0) {
+                return TimeUnit.SECONDS.toMillis(seconds);
+            }
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        if (serverUI != null) {
+            serverUI.display("Error: Drain time must be a number of seconds.");
+        }
+        return -1;
+    }
+
+    /**
+     * Drains, then closes the server, for #close and #quit.
+     */
+    private void drainAndClose(long timeoutMillis) {
+        if (serverUI != null) {
+            serverUI.display("Draining, waiting up to " + timeoutMillis / 1000 + " s for commands in progress...");
+        }
+        boolean drained = drain(timeoutMillis);
+        if (serverUI != null) {
+            serverUI.display(drained
+                    ? "All commands in progress finished."
+                    : "Drain timed out with " + inFlight.get() + " commands still running.");
+        }
+        try {
+            close();
+        } catch (IOException e) {
+            if (serverUI != null) {
+                serverUI.display("Error closing server: " + e.getMessage());
+            }
+        } finally {
+            draining = false;
+        }
+    }
+
+    /**
+     * Stops the executors once the work queued on them has run, waiting
+     * for them until the deadline, a System.nanoTime value.
+     */
+    private void shutdownExecutors(long deadline) {
+        if (dispatchExecutor != null) {
+            dispatchExecutor.shutdown();
+        }
+        if (commandScheduler != null) {
+            commandScheduler.shutdown();
+        }
+        pushExecutor.shutdown();
+        try {
+            if (dispatchExecutor != null) {
+                dispatchExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            if (commandScheduler != null) {
+                commandScheduler.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            pushExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -135,19 +718,21 @@ public class HospitalServer extends AbstractServer {
             String[] command = message.split(" ");
 
             switch (command[0]) {
-                case "#quit":
+                case "#quit": {
+                    long timeoutMillis = drainTimeoutOf(command);
+                    if (timeoutMillis < 0) {
+                        break;
+                    }
                     if (serverUI != null) {
                         serverUI.display("Server shutting down...");
                     }
-                    try {
-                        close();
-                    } catch (IOException e) {
-                        if (serverUI != null) {
-                            serverUI.display("Error closing server: " + e.getMessage());
-                        }
-                    }
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                    drainAndClose(timeoutMillis);
+                    shutdownExecutors(deadline);
+                    Repository.close();
                     System.exit(0);
                     break;
+                }
 
                 case "#stop":
                     if (isListening()) {
@@ -164,15 +749,14 @@ public class HospitalServer extends AbstractServer {
 
                 case "#close":
                     if (isListening() || getNumberOfClients() > 0) {
-                        try {
-                            close();
-                            if (serverUI != null) {
-                                serverUI.display("Server closed. All clients disconnected.");
-                            }
-                        } catch (IOException e) {
-                            if (serverUI != null) {
-                                serverUI.display("Error closing server: " + e.getMessage());
-                            }
+                        long timeoutMillis = drainTimeoutOf(command);
+                        if (timeoutMillis < 0) {
+                            break;
+                        }
+                        drainAndClose(timeoutMillis);
+                        Repository.close();
+                        if (serverUI != null) {
+                            serverUI.display("Server closed. All clients disconnected.");
                         }
                     } else {
                         if (serverUI != null) {
@@ -232,6 +816,118 @@ public class HospitalServer extends AbstractServer {
                     }
                     break;
 
+                case "#streams":
+                    if (serverUI != null) {
+                        long retained = 0;
+                        for (ConnectionToClient client : getClientConnections()) {
+                            retained += client.getStreamObjects();
+                        }
+                        serverUI.display("Object streams: " + getStreamResetCount() + " resets, peak "
+                                + getPeakStreamObjects() + " objects before reset, "
+                                + retained + " objects retained now");
+                    }
+                    break;
+
+                case "#connections":
+                    if (serverUI != null) {
+                        serverUI.display("Connections: " + getNumberOfClients() + " open, "
+                                + getReapedCount() + " closed after being idle");
+                    }
+                    break;
+
+                case "#ratelimits":
+                    if (serverUI != null) {
+                        for (RateLimiter.ActionClass actionClass : RateLimiter.ActionClass.values()) {
+                            serverUI.display(actionClass + ": " + actionClass.getPerSecond() + "/s, burst "
+                                    + actionClass.getBurst() + ", rejected " + actionClass.getRejected());
+                        }
+                    }
+                    break;
+
+                case "#priorities":
+                    if (serverUI != null && commandScheduler != null) {
+                        for (CommandScheduler.PriorityClass priority : CommandScheduler.PriorityClass.values()) {
+                            serverUI.display(priority + ": weight " + priority.getWeight()
+                                    + ", queued " + commandScheduler.getQueued(priority)
+                                    + ", running " + commandScheduler.getRunning(priority)
+                                    + ", run " + priority.getScheduled()
+                                    + ", rejected " + priority.getRejected()
+                                    + ", expired " + priority.getExpired()
+                                    + ", queue time avg " + priority.getAverageQueueMicros() + " us"
+                                    + ", max " + priority.getMaxQueueMicros() + " us");
+                        }
+                    }
+                    break;
+
+                case "#stats":
+                    if (serverUI != null) {
+                        CommandMetrics metrics = hospitalController.getMetrics();
+                        serverUI.display("Up " + metrics.getUptimeSeconds() + " s, "
+                                + getNumberOfClients() + " clients connected, "
+                                + inFlight.get() + " commands in flight");
+                        // since the previous #stats, so repeating it shows the current load
+                        for (CommandMetrics.Sample sample : metrics.sinceLastSample()) {
+                            serverUI.display(sample.action() + ": " + String.format("%.1f", sample.getPerSecond())
+                                    + "/s, p50 " + formatMicros(sample.getP50Micros())
+                                    + ", p99 " + formatMicros(sample.getP99Micros())
+                                    + ", errors " + sample.errors());
+                        }
+                    }
+                    break;
+
+                case "#top":
+                    if (serverUI != null) {
+                        List<CommandMetrics.Sample> samples = hospitalController.getMetrics().sinceStart();
+                        long totalMicros = 0;
+                        for (CommandMetrics.Sample sample : samples) {
+                            totalMicros += sample.totalMicros();
+                        }
+                        samples.sort(Comparator.comparingLong(CommandMetrics.Sample::totalMicros).reversed());
+                        for (CommandMetrics.Sample sample : samples.subList(0, Math.min(TOP_ACTIONS, samples.size()))) {
+                            serverUI.display(sample.action() + ": " + sample.count() + " commands, "
+                                    + (totalMicros == 0 ? 0 : sample.totalMicros() * 100 / totalMicros) + "% of time, "
+                                    + String.format("%.1f", sample.getPerSecond()) + "/s"
+                                    + ", p50 " + formatMicros(sample.getP50Micros())
+                                    + ", p99 " + formatMicros(sample.getP99Micros())
+                                    + ", errors " + sample.errors());
+                        }
+                    }
+                    break;
+
+                case "#pool":
+                    if (serverUI != null) {
+                        for (ConnectionPool pool : Repository.getPools()) {
+                            int total = pool.getTotalConnections();
+                            int idle = pool.getIdleConnections();
+                            serverUI.display("DB pool " + pool.getName() + ": " + total + " open of "
+                                    + pool.getMaxSize() + ", " + idle + " idle, "
+                                    + Math.max(0, total - idle) + " in use, "
+                                    + pool.getWaitingThreads() + " threads waiting, "
+                                    + pool.getBorrowTimeouts() + " timeouts, "
+                                    + pool.getCreateFailures() + " failed to open, "
+                                    + pool.getValidationFailures() + " found broken, "
+                                    + pool.getLeaksReported() + " held too long");
+                            for (String held : pool.getLongHeldConnections()) {
+                                serverUI.display("  " + held);
+                            }
+                        }
+                    }
+                    break;
+
+                case "#admission":
+                    if (serverUI != null) {
+                        hospitalController.getAdmissionControl().getGates().forEach((action, gate) -> {
+                            if (gate.getAdmitted() > 0 || gate.getRejected() > 0) {
+                                serverUI.display(action + ": limit " + gate.getLimit()
+                                        + ", running " + gate.getRunning()
+                                        + ", waiting " + gate.getWaiting()
+                                        + ", admitted " + gate.getAdmitted()
+                                        + ", rejected " + gate.getRejected());
+                            }
+                        });
+                    }
+                    break;
+
                 default:
                     if (serverUI != null) {
                         serverUI.display("Unknown command: " + command[0]);
@@ -253,6 +949,17 @@ public class HospitalServer extends AbstractServer {
     protected void serverStarted() {
         System.out.println
                 ("Server listening for connections on port " + getPort());
+        Repository.reopen();
+        if (MetricsEndpoint.PORT > 0) {
+            if (metricsEndpoint == null) {
+                metricsEndpoint = new MetricsEndpoint(this, hospitalController);
+            }
+            try {
+                metricsEndpoint.start();
+            } catch (IOException e) {
+                System.out.println("Metrics endpoint not started: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -264,6 +971,16 @@ public class HospitalServer extends AbstractServer {
                 ("Server has stopped listening for connections.");
     }
 
+    /**
+     * This method overrides the one in the superclass.  Called
+     * when the server is closed.
+     */
+    protected void serverClosed() {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+    }
+
     synchronized protected void clientException(
             ConnectionToClient client, Throwable exception) {
         System.out.println("Client exception: " + client);
@@ -278,5 +995,15 @@ public class HospitalServer extends AbstractServer {
             ConnectionToClient client) {
         System.out.println("Client disconected: " + client);
     }
+
+    /**
+     * Returns the number of requests being handled.
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    private static String formatMicros(long micros) {
+        return micros < 1000 ? micros + " us" : String.format("%.1f ms", micros / 1000.0);
+    }
 }
-//End of network.HospitalServer class
\ No newline at end of file
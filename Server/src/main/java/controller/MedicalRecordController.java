@@ -2,7 +2,6 @@ package controller;
 
 import model.MedicalRecordEntry;
 import model.repository.MedicalRecordRepository;
-import model.repository.PatientRepository;
 import model.common.Response;
 import model.dto.CommandDTO;
 import model.dto.MedicalRecordEntryDTO;
@@ -12,21 +11,21 @@ import java.util.List;
 public class MedicalRecordController {
 
     private final MedicalRecordRepository medicalRepo;
-    private final PatientRepository patientRepo;
 
     public MedicalRecordController() {
         this.medicalRepo = new MedicalRecordRepository();
-        this.patientRepo = new PatientRepository();
     }
 
-    public Response getMyMedicalRecord(CommandDTO command) {
-        Long requesterUserId = command.getRequesterUserId();
-        try {
-            Long patientId = patientRepo.findPatientIdByUserId(requesterUserId);
-            if (patientId == null) {
-                return Response.error("NOT_FOUND", "Patient profile not found");
-            }
+    public Response getMyMedicalRecord(CommandDTO command, Session session) {
+        if (session == null) {
+            return Response.error("NOT_AUTHENTICATED", "Login required");
+        }
+        Long patientId = session.getPatientId();
+        if (patientId == null) {
+            return Response.error("NOT_FOUND", "Patient profile not found");
+        }
 
+        try {
             List<MedicalRecordEntry> entries = medicalRepo.findByPatientId(patientId);
             return Response.ok(entries.stream().map(this::toDto).toList());
 
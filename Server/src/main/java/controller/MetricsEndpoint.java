@@ -0,0 +1,211 @@
+package controller;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import model.repository.CacheStats;
+import model.repository.ConnectionPool;
+import model.repository.Repository;
+import util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the server's metrics at /metrics in the Prometheus text format,
+ * using the HTTP server built into the JDK. A scrape only reads striped
+ * counters and histogram snapshots, so it never holds a lock that a
+ * command needs, and it runs on a thread of its own.
+ * <p>
+ * The endpoint listens on server.metrics.host (default 127.0.0.1) and
+ * server.metrics.port (default 9464); a port of zero or less turns it off.
+ */
+final class MetricsEndpoint {
+
+    static final int PORT = Integer.getInteger("server.metrics.port", 9464);
+
+    private static final String HOST = System.getProperty("server.metrics.host", "127.0.0.1");
+
+    /**
+     * Upper bounds of the latency buckets exported, in seconds.
+     */
+    private static final double[] BUCKETS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+    };
+
+    private final HospitalServer server;
+    private final HospitalController controller;
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    MetricsEndpoint(HospitalServer server, HospitalController controller) {
+        this.server = server;
+        this.controller = controller;
+    }
+
+    synchronized void start() throws IOException {
+        if (httpServer != null) {
+            return;
+        }
+        // without it a kept-alive scrape waits about 40 ms on delayed ACKs
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        httpServer = HttpServer.create(new InetSocketAddress(HOST, PORT), 0);
+        httpServer.createContext("/metrics", this::scrape);
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hospital-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(executor);
+        httpServer.start();
+    }
+
+    synchronized void stop() {
+        if (httpServer == null) {
+            return;
+        }
+        httpServer.stop(0);
+        executor.shutdownNow();
+        httpServer = null;
+        executor = null;
+    }
+
+    synchronized int getPort() {
+        return httpServer == null ? -1 : httpServer.getAddress().getPort();
+    }
+
+    private void scrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    String render() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+
+        List<CommandMetrics.Sample> samples = controller.getMetrics().sinceStart();
+        header(out, "hospital_commands_total", "counter", "Commands handled, by action and outcome.");
+        for (CommandMetrics.Sample sample : samples) {
+            String action = sample.action().name();
+            out.append("hospital_commands_total{action=\"").append(action).append("\",outcome=\"ok\"} ")
+                    .append(sample.count() - sample.errors()).append('\n');
+            out.append("hospital_commands_total{action=\"").append(action).append("\",outcome=\"error\"} ")
+                    .append(sample.errors()).append('\n');
+        }
+
+        header(out, "hospital_command_duration_seconds", "histogram",
+                "Time taken to handle a command, by action.");
+        for (CommandMetrics.Sample sample : samples) {
+            histogram(out, "hospital_command_duration_seconds",
+                    "action=\"" + sample.action().name() + "\"", sample.buckets(), sample.totalMicros());
+        }
+
+        header(out, "hospital_commands_in_flight", "gauge", "Commands received and not yet answered.");
+        out.append("hospital_commands_in_flight ").append(server.getInFlight()).append('\n');
+        header(out, "hospital_clients_connected", "gauge", "Clients connected.");
+        out.append("hospital_clients_connected ").append(server.getNumberOfClients()).append('\n');
+
+        List<ConnectionPool> pools = Repository.getPools();
+        header(out, "hospital_db_pool_connections", "gauge", "Open database connections, by pool and state.");
+        for (ConnectionPool pool : pools) {
+            int total = pool.getTotalConnections();
+            int idle = pool.getIdleConnections();
+            out.append("hospital_db_pool_connections{").append(poolLabel(pool)).append(",state=\"idle\"} ")
+                    .append(idle).append('\n');
+            out.append("hospital_db_pool_connections{").append(poolLabel(pool)).append(",state=\"in_use\"} ")
+                    .append(Math.max(0, total - idle)).append('\n');
+        }
+        header(out, "hospital_db_pool_max_connections", "gauge", "Largest number of database connections, by pool.");
+        for (ConnectionPool pool : pools) {
+            poolValue(out, "hospital_db_pool_max_connections", pool, pool.getMaxSize());
+        }
+        header(out, "hospital_db_pool_waiting_threads", "gauge", "Threads waiting for a database connection.");
+        for (ConnectionPool pool : pools) {
+            poolValue(out, "hospital_db_pool_waiting_threads", pool, pool.getWaitingThreads());
+        }
+        header(out, "hospital_db_pool_timeouts_total", "counter",
+                "Requests for a database connection that gave up waiting.");
+        for (ConnectionPool pool : pools) {
+            poolValue(out, "hospital_db_pool_timeouts_total", pool, pool.getBorrowTimeouts());
+        }
+        header(out, "hospital_db_pool_create_failures_total", "counter",
+                "Database connections that could not be opened.");
+        for (ConnectionPool pool : pools) {
+            poolValue(out, "hospital_db_pool_create_failures_total", pool, pool.getCreateFailures());
+        }
+        header(out, "hospital_db_pool_validation_failures_total", "counter",
+                "Pooled database connections found broken.");
+        for (ConnectionPool pool : pools) {
+            poolValue(out, "hospital_db_pool_validation_failures_total", pool, pool.getValidationFailures());
+        }
+        header(out, "hospital_db_pool_leaks_total", "counter", "Database connections reported as held too long.");
+        for (ConnectionPool pool : pools) {
+            poolValue(out, "hospital_db_pool_leaks_total", pool, pool.getLeaksReported());
+        }
+
+        header(out, "hospital_db_pool_acquire_seconds", "histogram", "Time taken to get a database connection.");
+        for (ConnectionPool pool : pools) {
+            histogram(out, "hospital_db_pool_acquire_seconds", poolLabel(pool),
+                    pool.getBorrowWaitSnapshot(), pool.getBorrowWaitMicros());
+        }
+
+        header(out, "hospital_cache_requests_total", "counter", "Repository cache lookups, by cache and result.");
+        for (CacheStats cache : CacheStats.all()) {
+            out.append("hospital_cache_requests_total{cache=\"").append(cache.getName()).append("\",result=\"hit\"} ")
+                    .append(cache.getHits()).append('\n');
+            out.append("hospital_cache_requests_total{cache=\"").append(cache.getName()).append("\",result=\"miss\"} ")
+                    .append(cache.getMisses()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String poolLabel(ConnectionPool pool) {
+        return "pool=\"" + pool.getName() + "\"";
+    }
+
+    private static void poolValue(StringBuilder out, String name, ConnectionPool pool, long value) {
+        out.append(name).append('{').append(poolLabel(pool)).append("} ").append(value).append('\n');
+    }
+
+    /**
+     * Writes a histogram from bucket counts in microseconds. A bucket of
+     * the counts that straddles an exported bound is counted only in the
+     * next bound up.
+     */
+    private static void histogram(StringBuilder out, String name, String labels, long[] counts, long sumMicros) {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        for (double bound : BUCKETS) {
+            out.append(name).append("_bucket").append(prefix).append("le=\"").append(bound).append("\"} ")
+                    .append(LatencyHistogram.countAtMost(counts, (long) (bound * 1_000_000))).append('\n');
+        }
+        out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum").append(labels.isEmpty() ? "" : "{" + labels + "}").append(' ')
+                .append(sumMicros / 1e6).append('\n');
+        out.append(name).append("_count").append(labels.isEmpty() ? "" : "{" + labels + "}").append(' ')
+                .append(count).append('\n');
+    }
+}
@@ -22,18 +22,16 @@ public class PatientDashboardController {
         this.appointmentRepository = new AppointmentRepository();
     }
 
-    public Response getDashboard(CommandDTO command) {
-        Long requesterUserId = command.getRequesterUserId();
-        if (requesterUserId == null) {
-            return Response.error("VALIDATION_ERROR", "Requester user id is required");
+    public Response getDashboard(CommandDTO command, Session session) {
+        if (session == null) {
+            return Response.error("NOT_AUTHENTICATED", "Login required");
+        }
+        Long patientId = session.getPatientId();
+        if (patientId == null) {
+            return Response.error("NOT_FOUND", "Patient profile not found");
         }
 
         try {
-            Long patientId = patientRepository.findPatientIdByUserId(requesterUserId);
-            if (patientId == null) {
-                return Response.error("NOT_FOUND", "Patient profile not found");
-            }
-
             Patient patient = patientRepository.findDetailsByPatientId(patientId);
             if (patient == null) {
                 return Response.error("NOT_FOUND", "Patient profile not found");
@@ -0,0 +1,194 @@
+package controller;
+
+import model.common.Response;
+import model.dto.CommandDTO;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets limiting how fast one client may send commands. Every
+ * action belongs to a class with its own bucket, so a client flooding the
+ * slots cannot also use up its logins. Buckets belong to the connection
+ * until the client logs in, then to the user, shared by all of the user's
+ * connections.
+ * <p>
+ * The rate and burst of a class are read from the system properties
+ * server.rate.CLASS.perSecond and server.rate.CLASS.burst, with the class
+ * in lower case. A rate of zero or less disables the limit for the class.
+ * Checking a bucket allocates nothing; a rejection only allocates its
+ * response.
+ */
+public final class RateLimiter {
+
+    public enum ActionClass {
+        AUTH(1, 5),
+        READ(20, 40),
+        WRITE(5, 10),
+        STATS(1, 3);
+
+        private final double perSecond;
+        private final double burst;
+        private final Long retryAfterMillis;
+        private final String message;
+        private final LongAdder rejected = new LongAdder();
+
+        ActionClass(int defaultPerSecond, int defaultBurst) {
+            String prefix = "server.rate." + name().toLowerCase() + ".";
+            this.perSecond = Integer.getInteger(prefix + "perSecond", defaultPerSecond);
+            this.burst = Math.max(1, Integer.getInteger(prefix + "burst", defaultBurst));
+            this.retryAfterMillis = perSecond > 0 ? (long) Math.ceil(1000 / perSecond) : 0L;
+            this.message = "Too many " + name().toLowerCase() + " requests, retry in " + retryAfterMillis + " ms";
+        }
+
+        public double getPerSecond() {
+            return perSecond;
+        }
+
+        public double getBurst() {
+            return burst;
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+    }
+
+    /**
+     * Key of the connection's buckets in its info map.
+     */
+    static final String BUCKETS_INFO = "rateBuckets";
+
+    private static final ActionClass[] CLASSES = ActionClass.values();
+
+    private final Map<CommandDTO.Action, ActionClass> classes = new EnumMap<>(CommandDTO.Action.class);
+
+    /**
+     * Buckets of logged in users. Bounded by the number of users.
+     */
+    private final Map<Long, Buckets> userBuckets = new ConcurrentHashMap<>();
+
+    public RateLimiter() {
+        for (CommandDTO.Action action : CommandDTO.Action.values()) {
+            classes.put(action, classify(action));
+        }
+    }
+
+    private static ActionClass classify(CommandDTO.Action action) {
+        return switch (action) {
+            case LOGIN, REGISTER, LOGOUT -> ActionClass.AUTH;
+            case ADMIN_GET_STATS, GET_STATS -> ActionClass.STATS;
+            case BOOK_APPOINTMENT, UPDATE_APPOINTMENT, CANCEL_APPOINTMENT, APPROVE_APPOINTMENT,
+                 MARK_APPOINTMENT_DONE, ADD_MEDICAL_RECORD_ENTRY, SEND_FEEDBACK,
+                 ADMIN_CREATE_USER, ADMIN_UPDATE_USER, ADMIN_DELETE_USER -> ActionClass.WRITE;
+            default -> ActionClass.READ;
+        };
+    }
+
+    /**
+     * Returns the buckets a new connection starts with, to be saved in its
+     * info map.
+     */
+    Buckets newConnectionBuckets() {
+        return new Buckets();
+    }
+
+    /**
+     * Returns the buckets shared by the connections of a user.
+     */
+    Buckets userBuckets(long userId) {
+        return userBuckets.computeIfAbsent(userId, id -> new Buckets());
+    }
+
+    /**
+     * Takes one token for each command from the bucket of its class.
+     *
+     * @return null if all the commands may run, otherwise the error to send
+     *         back for the first class out of tokens.
+     */
+    Response check(Buckets buckets, CommandDTO.Action action) {
+        ActionClass actionClass = action == null ? ActionClass.READ : classes.get(action);
+        if (buckets.tryTake(actionClass, 1, System.nanoTime())) {
+            return null;
+        }
+        return reject(actionClass);
+    }
+
+    /**
+     * Same as {@link #check(Buckets, CommandDTO.Action)} for the commands
+     * of a batch, which are all admitted or all rejected. A batch with more
+     * commands of a class than its burst could never be admitted, so it is
+     * refused as too large, without a hint to retry.
+     */
+    Response check(Buckets buckets, Iterable<?> commands) {
+        int[] counts = new int[CLASSES.length];
+        for (Object command : commands) {
+            CommandDTO.Action action = command instanceof CommandDTO dto ? dto.getAction() : null;
+            counts[(action == null ? ActionClass.READ : classes.get(action)).ordinal()]++;
+        }
+        for (ActionClass actionClass : CLASSES) {
+            if (actionClass.perSecond > 0 && counts[actionClass.ordinal()] > actionClass.burst) {
+                return Response.error("BATCH_TOO_LARGE", "A batch may contain at most " + (long) actionClass.burst
+                        + " " + actionClass.name().toLowerCase() + " commands");
+            }
+        }
+        long now = System.nanoTime();
+        synchronized (buckets) {
+            for (ActionClass actionClass : CLASSES) {
+                if (!buckets.hasTokens(actionClass, counts[actionClass.ordinal()], now)) {
+                    return reject(actionClass);
+                }
+            }
+            for (ActionClass actionClass : CLASSES) {
+                buckets.tryTake(actionClass, counts[actionClass.ordinal()], now);
+            }
+        }
+        return null;
+    }
+
+    private static Response reject(ActionClass actionClass) {
+        actionClass.rejected.increment();
+        return Response.error("RATE_LIMITED", actionClass.message, actionClass.retryAfterMillis);
+    }
+
+    /**
+     * One bucket per action class. Tokens are refilled lazily when a bucket
+     * is checked.
+     */
+    static final class Buckets {
+
+        private final double[] tokens = new double[CLASSES.length];
+        private final long[] refilledAt = new long[CLASSES.length];
+
+        private Buckets() {
+            long now = System.nanoTime();
+            for (ActionClass actionClass : CLASSES) {
+                tokens[actionClass.ordinal()] = actionClass.burst;
+                refilledAt[actionClass.ordinal()] = now;
+            }
+        }
+
+        synchronized boolean tryTake(ActionClass actionClass, int count, long now) {
+            if (!hasTokens(actionClass, count, now)) {
+                return false;
+            }
+            if (actionClass.perSecond > 0) {
+                tokens[actionClass.ordinal()] -= count;
+            }
+            return true;
+        }
+
+        private boolean hasTokens(ActionClass actionClass, int count, long now) {
+            if (actionClass.perSecond <= 0 || count == 0) {
+                return true;
+            }
+            int i = actionClass.ordinal();
+            double refill = (now - refilledAt[i]) * actionClass.perSecond / 1e9;
+            tokens[i] = Math.min(actionClass.burst, tokens[i] + refill);
+            refilledAt[i] = now;
+            return tokens[i] >= count;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package controller;
+
+import model.dto.LoginResponseDTO;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identity of the user logged in on a connection, set by a successful
+ * login and cleared by logout. Commands that act on the requester's own
+ * data read it from here rather than trusting the requester user id sent
+ * by the client, and without looking up the patient or doctor again.
+ */
+public final class Session {
+
+    /**
+     * Key of the session in the connection's info map.
+     */
+    static final String INFO = "session";
+
+    private final long userId;
+    private final String role;
+    private final Long patientId;
+    private final Long doctorId;
+    /**
+     * System.nanoTime of the last command of this user that changed data,
+     * or 0 if none.
+     */
+    private volatile long lastWriteNanos;
+
+    public Session(long userId, String role, Long patientId, Long doctorId) {
+        this.userId = userId;
+        this.role = role;
+        this.patientId = patientId;
+        this.doctorId = doctorId;
+    }
+
+    static Session of(LoginResponseDTO login) {
+        return new Session(login.getUserId(), login.getRole(), login.getPatientId(), login.getDoctorId());
+    }
+
+    public long getUserId() { return userId; }
+    public String getRole() { return role; }
+    public Long getPatientId() { return patientId; }
+    public Long getDoctorId() { return doctorId; }
+
+    /**
+     * Records that a command of this user changed data, so that the reads
+     * that follow go to the primary until the replicas have caught up.
+     */
+    void markWrite() {
+        lastWriteNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns true if a command of this user changed data within the given
+     * number of milliseconds.
+     */
+    boolean wroteWithin(long millis) {
+        long last = lastWriteNanos;
+        return last != 0 && System.nanoTime() - last < TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public boolean isPatient() {
+        return "PATIENT".equals(role);
+    }
+
+    /**
+     * Returns true if this user may act for other users, such as booking
+     * for a patient: doctors and administrators.
+     */
+    public boolean actsForOthers() {
+        return "DOCTOR".equals(role) || "ADMIN".equals(role);
+    }
+
+    @Override
+    public String toString() {
+        return "Session{userId=" + userId + ", role=" + role + "}";
+    }
+}
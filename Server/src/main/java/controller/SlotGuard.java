@@ -0,0 +1,121 @@
+package controller;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps bookings of the same slot made on this server from reaching the
+ * database together. Bookings for one doctor and day share a lock, one of
+ * a fixed number of stripes, and a slot booked here in the last few
+ * seconds is refused without a query. Between servers, the database's
+ * unique index on active slots still decides.
+ * <p>
+ * The number of stripes is read from server.booking.lockStripes (default
+ * 64) and how long a booked slot is remembered, in milliseconds, from
+ * server.booking.recentMillis (default 5000; zero turns it off). A slot
+ * freed on another server may be refused here until then.
+ */
+final class SlotGuard {
+
+    private static final int STRIPES = Integer.highestOneBit(
+            Math.max(1, Integer.getInteger("server.booking.lockStripes", 64)));
+
+    private static final long RECENT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("server.booking.recentMillis", 5000));
+
+    /**
+     * Number of remembered slots above which expired ones are dropped.
+     */
+    private static final int PRUNE_ABOVE = 1024;
+
+    /**
+     * Shortest wait suggested to a booking that gave up on its lock.
+     */
+    private static final long MIN_RETRY_MILLIS = 100;
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    /**
+     * Slots booked on this server, with the System.nanoTime of the booking.
+     */
+    private final Map<Slot, Long> recent = new ConcurrentHashMap<>();
+
+    private final LongAdder holds = new LongAdder();
+    private final LongAdder heldNanos = new LongAdder();
+
+    SlotGuard() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    record Slot(long doctorId, LocalDate date, LocalTime time) {
+    }
+
+    /**
+     * Returns the lock of the doctor's day.
+     */
+    ReentrantLock lockFor(long doctorId, LocalDate date) {
+        int hash = Long.hashCode(doctorId) * 31 + date.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Records how long a booking held the lock of its doctor's day.
+     */
+    void released(long nanos) {
+        holds.increment();
+        heldNanos.add(nanos);
+    }
+
+    /**
+     * Returns a hint, in milliseconds, of when a booking that gave up
+     * waiting for a lock may try again: the average time the lock is held,
+     * times the bookings waiting for it.
+     */
+    long retryAfterMillis(ReentrantLock lock) {
+        long count = holds.sum();
+        long average = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(heldNanos.sum() / count);
+        return Math.max(MIN_RETRY_MILLIS, average * (lock.getQueueLength() + 1L));
+    }
+
+    /**
+     * Returns true if the slot was booked on this server lately.
+     */
+    boolean recentlyBooked(Slot slot) {
+        Long bookedAt = recent.get(slot);
+        if (bookedAt == null) {
+            return false;
+        }
+        if (System.nanoTime() - bookedAt < RECENT_NANOS) {
+            return true;
+        }
+        recent.remove(slot, bookedAt);
+        return false;
+    }
+
+    void booked(Slot slot) {
+        if (RECENT_NANOS <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        recent.put(slot, now);
+        if (recent.size() > PRUNE_ABOVE) {
+            recent.values().removeIf(bookedAt -> now - bookedAt >= RECENT_NANOS);
+        }
+    }
+
+    /**
+     * Forgets a slot that was cancelled or moved away from.
+     */
+    void freed(long doctorId, LocalDate date, LocalTime time) {
+        if (date != null && time != null) {
+            recent.remove(new Slot(doctorId, date, time));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package model.common;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Part of the rows answering a streamed request. The server sends the rows
+ * of a large list as a sequence of chunks tagged with the id of the
+ * request, then a {@link Response} ending the stream.
+ */
+public class Chunk implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long requestId;
+    private final List<?> rows;
+
+    public Chunk(long requestId, List<?> rows) {
+        this.requestId = requestId;
+        this.rows = rows;
+    }
+
+    public long getRequestId() { return requestId; }
+    public List<?> getRows() { return rows; }
+}
@@ -6,6 +6,7 @@ public class Request implements Serializable {
     private static final long serialVersionUID = 1L;
     private RequestType type;
     private Object payload;
+    private long requestId;
 
     public Request( Object payload) {
         this.type = type;
@@ -14,7 +15,9 @@ public class Request implements Serializable {
 
     public RequestType getType() { return type; }
     public Object getPayload() { return payload; }
+    public long getRequestId() { return requestId; }
 
     public void setType(RequestType type) { this.type = type; }
     public void setPayload(Object payload) { this.payload = payload; }
+    public void setRequestId(long requestId) { this.requestId = requestId; }
 }
@@ -3,5 +3,9 @@ package model.common;
 import java.io.Serializable;
 
 public enum RequestType implements Serializable {
-    COMMAND
-}
\ No newline at end of file
+    COMMAND,
+    BATCH,
+    SUBSCRIBE,
+    UNSUBSCRIBE,
+    STREAM
+}
@@ -0,0 +1,39 @@
+package model.common;
+
+import java.time.LocalDate;
+
+/**
+ * Names of the topics a client can subscribe to. Every change to an
+ * appointment is published on all the topics it belongs to.
+ */
+public final class Topics {
+
+    /**
+     * Changes to any appointment.
+     */
+    public static final String ALL_APPOINTMENTS = "appointments";
+
+    private Topics() {
+    }
+
+    /**
+     * Changes to the appointments of a doctor, on any date.
+     */
+    public static String doctorAgenda(long doctorId) {
+        return "agenda/" + doctorId;
+    }
+
+    /**
+     * Changes to the appointments of a doctor on one date.
+     */
+    public static String doctorAgenda(long doctorId, LocalDate date) {
+        return "agenda/" + doctorId + "/" + date;
+    }
+
+    /**
+     * Slots of a doctor taken or freed on one date.
+     */
+    public static String doctorSlots(long doctorId, LocalDate date) {
+        return "slots/" + doctorId + "/" + date;
+    }
+}
@@ -0,0 +1,67 @@
+package model.dto;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * What changed about one appointment. It carries only the slot and the new
+ * status, never patient details, since slot topics are open to anyone
+ * booking with the doctor.
+ */
+public class AppointmentEventDTO implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        BOOKED,
+        RESCHEDULED,
+        CONFIRMED,
+        CANCELED,
+        DONE
+    }
+
+    private Kind kind;
+    private long appointmentId;
+    private long doctorId;
+    private LocalDate date;
+    private LocalTime time;
+    private String status;
+
+    public AppointmentEventDTO(Kind kind,
+                               long appointmentId,
+                               long doctorId,
+                               LocalDate date,
+                               LocalTime time,
+                               String status) {
+        this.kind = kind;
+        this.appointmentId = appointmentId;
+        this.doctorId = doctorId;
+        this.date = date;
+        this.time = time;
+        this.status = status;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getAppointmentId() {
+        return appointmentId;
+    }
+
+    public long getDoctorId() {
+        return doctorId;
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public LocalTime getTime() {
+        return time;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+}
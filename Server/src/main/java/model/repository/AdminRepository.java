@@ -12,9 +12,59 @@ import java.time.LocalTime;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class AdminRepository {
 
+    private static final String ADMIN_USERS_SQL = """
+            SELECT u.user_id,
+                   u.first_name,
+                   u.last_name,
+                   u.email,
+                   u.created_at,
+                   r.role_name,
+                   d.doctor_id,
+                   s.specialization_id,
+                   s.name AS specialization_name,
+                   p.patient_id,
+                   p.national_id,
+                   last_appt.last_date,
+                   last_appt.last_time,
+                   next_appt.next_date,
+                   next_appt.next_time,
+                   CASE
+                       WHEN d.doctor_id IS NULL THEN FALSE
+                       WHEN EXISTS (SELECT 1 FROM doctor_schedule ds WHERE ds.doctor_id = d.doctor_id) THEN TRUE
+                       ELSE FALSE
+                   END AS has_schedule
+            FROM "user" u
+            JOIN role r ON r.role_id = u.role_id
+            LEFT JOIN doctor d ON d.user_id = u.user_id
+            LEFT JOIN specialization s ON s.specialization_id = d.specialization_id
+            LEFT JOIN patient p ON p.user_id = u.user_id
+            LEFT JOIN LATERAL (
+                SELECT a.appointment_date AS last_date,
+                       a.appointment_time AS last_time
+                FROM appointment a
+                WHERE (d.doctor_id IS NOT NULL AND a.doctor_id = d.doctor_id)
+                   OR (p.patient_id IS NOT NULL AND a.patient_id = p.patient_id)
+                ORDER BY a.appointment_date DESC, a.appointment_time DESC
+                LIMIT 1
+            ) last_appt ON true
+            LEFT JOIN LATERAL (
+                SELECT a.appointment_date AS next_date,
+                       a.appointment_time AS next_time
+                FROM appointment a
+                WHERE ((d.doctor_id IS NOT NULL AND a.doctor_id = d.doctor_id)
+                   OR (p.patient_id IS NOT NULL AND a.patient_id = p.patient_id))
+                  AND a.appointment_date >= CURRENT_DATE
+                  AND a.status::text NOT IN ('CANCELED', 'CANCELLED')
+                ORDER BY a.appointment_date ASC, a.appointment_time ASC
+                LIMIT 1
+            ) next_appt ON true
+            ORDER BY u.user_id
+            """;
+
     public long countDoctors() throws SQLException {
         return countSimple("SELECT COUNT(*) FROM doctor");
     }
@@ -54,7 +104,7 @@ public class AdminRepository {
 
     public long countUsersOnDate(LocalDate date) throws SQLException {
         String sql = "SELECT COUNT(*) FROM \"user\" WHERE created_at >= ? AND created_at < ?";
-        try (Connection conn = Repository.getConnection();
+        try (Connection conn = Repository.getReadConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setTimestamp(1, Timestamp.valueOf(date.atStartOfDay()));
             ps.setTimestamp(2, Timestamp.valueOf(date.plusDays(1).atStartOfDay()));
@@ -68,101 +118,64 @@ public class AdminRepository {
     }
 
     public List<AdminUser> findAdminUsers() throws SQLException {
-        String sql = """
-                SELECT u.user_id,
-                       u.first_name,
-                       u.last_name,
-                       u.email,
-                       u.created_at,
-                       r.role_name,
-                       d.doctor_id,
-                       s.specialization_id,
-                       s.name AS specialization_name,
-                       p.patient_id,
-                       p.national_id,
-                       last_appt.last_date,
-                       last_appt.last_time,
-                       next_appt.next_date,
-                       next_appt.next_time,
-                       CASE
-                           WHEN d.doctor_id IS NULL THEN FALSE
-                           WHEN EXISTS (SELECT 1 FROM doctor_schedule ds WHERE ds.doctor_id = d.doctor_id) THEN TRUE
-                           ELSE FALSE
-                       END AS has_schedule
-                FROM "user" u
-                JOIN role r ON r.role_id = u.role_id
-                LEFT JOIN doctor d ON d.user_id = u.user_id
-                LEFT JOIN specialization s ON s.specialization_id = d.specialization_id
-                LEFT JOIN patient p ON p.user_id = u.user_id
-                LEFT JOIN LATERAL (
-                    SELECT a.appointment_date AS last_date,
-                           a.appointment_time AS last_time
-                    FROM appointment a
-                    WHERE (d.doctor_id IS NOT NULL AND a.doctor_id = d.doctor_id)
-                       OR (p.patient_id IS NOT NULL AND a.patient_id = p.patient_id)
-                    ORDER BY a.appointment_date DESC, a.appointment_time DESC
-                    LIMIT 1
-                ) last_appt ON true
-                LEFT JOIN LATERAL (
-                    SELECT a.appointment_date AS next_date,
-                           a.appointment_time AS next_time
-                    FROM appointment a
-                    WHERE ((d.doctor_id IS NOT NULL AND a.doctor_id = d.doctor_id)
-                       OR (p.patient_id IS NOT NULL AND a.patient_id = p.patient_id))
-                      AND a.appointment_date >= CURRENT_DATE
-                      AND a.status::text NOT IN ('CANCELED', 'CANCELLED')
-                    ORDER BY a.appointment_date ASC, a.appointment_time ASC
-                    LIMIT 1
-                ) next_appt ON true
-                ORDER BY u.user_id
-                """;
-
         List<AdminUser> result = new ArrayList<>();
 
-        try (Connection conn = Repository.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql);
+        try (Connection conn = Repository.getReadConnection();
+             PreparedStatement ps = conn.prepareStatement(ADMIN_USERS_SQL);
              ResultSet rs = ps.executeQuery()) {
 
             while (rs.next()) {
-                String role = rs.getString("role_name");
-                OffsetDateTime createdAt = rs.getObject("created_at", OffsetDateTime.class);
-                LocalDate lastDate = rs.getObject("last_date", LocalDate.class);
-                LocalTime lastTime = rs.getObject("last_time", LocalTime.class);
-                LocalDate nextDate = rs.getObject("next_date", LocalDate.class);
-
-                if (lastDate == null && createdAt != null) {
-                    lastDate = createdAt.toLocalDate();
-                    lastTime = createdAt.toLocalTime();
-                }
+                result.add(mapAdminUser(rs));
+            }
+        }
+        return result;
+    }
 
-                boolean hasSchedule = rs.getBoolean("has_schedule");
-                String status = computeStatus(role, lastDate, nextDate, hasSchedule);
+    /**
+     * Same as {@link #findAdminUsers()}, but hands the users to the consumer
+     * as they are read instead of collecting them in a list.
+     */
+    public void streamAdminUsers(int fetchSize, Consumer<AdminUser> consumer) throws SQLException {
+        Repository.streamQuery(ADMIN_USERS_SQL, ps -> { }, fetchSize, rs -> consumer.accept(mapAdminUser(rs)));
+    }
 
-                String department = roleLabel(role);
-                Long specializationId = rs.getObject("specialization_id", Long.class);
-                String specializationName = rs.getString("specialization_name");
-                if ("DOCTOR".equalsIgnoreCase(role) && specializationName != null) {
-                    department = specializationName;
-                } else if ("PATIENT".equalsIgnoreCase(role)) {
-                    department = "Pacient";
-                }
+    private AdminUser mapAdminUser(ResultSet rs) throws SQLException {
+        String role = rs.getString("role_name");
+        OffsetDateTime createdAt = rs.getObject("created_at", OffsetDateTime.class);
+        LocalDate lastDate = rs.getObject("last_date", LocalDate.class);
+        LocalTime lastTime = rs.getObject("last_time", LocalTime.class);
+        LocalDate nextDate = rs.getObject("next_date", LocalDate.class);
 
-                result.add(new AdminUser(
-                        rs.getLong("user_id"),
-                        rs.getString("first_name"),
-                        rs.getString("last_name"),
-                        rs.getString("email"),
-                        role,
-                        department,
-                        specializationId,
-                        lastDate,
-                        lastTime,
-                        status,
-                        rs.getString("national_id")
-                ));
-            }
+        if (lastDate == null && createdAt != null) {
+            lastDate = createdAt.toLocalDate();
+            lastTime = createdAt.toLocalTime();
         }
-        return result;
+
+        boolean hasSchedule = rs.getBoolean("has_schedule");
+        String status = computeStatus(role, lastDate, nextDate, hasSchedule);
+
+        String department = roleLabel(role);
+        Long specializationId = rs.getObject("specialization_id", Long.class);
+        String specializationName = rs.getString("specialization_name");
+        if ("DOCTOR".equalsIgnoreCase(role) && specializationName != null) {
+            department = specializationName;
+        } else if ("PATIENT".equalsIgnoreCase(role)) {
+            department = "Pacient";
+        }
+
+        return new AdminUser(
+                rs.getLong("user_id"),
+                rs.getString("first_name"),
+                rs.getString("last_name"),
+                rs.getString("email"),
+                role,
+                department,
+                specializationId,
+                lastDate,
+                lastTime,
+                status,
+                rs.getString("national_id")
+        );
     }
 
     public boolean hasAppointmentsForDoctor(long doctorId) throws SQLException {
@@ -176,7 +189,7 @@ public class AdminRepository {
     }
 
     private long countSimple(String sql) throws SQLException {
-        try (Connection conn = Repository.getConnection();
+        try (Connection conn = Repository.getReadConnection();
              PreparedStatement ps = conn.prepareStatement(sql);
              ResultSet rs = ps.executeQuery()) {
             if (rs.next()) {
@@ -187,7 +200,7 @@ public class AdminRepository {
     }
 
     private long countBefore(String sql, LocalDate date) throws SQLException {
-        try (Connection conn = Repository.getConnection();
+        try (Connection conn = Repository.getReadConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setTimestamp(1, Timestamp.valueOf(date.atStartOfDay()));
             try (ResultSet rs = ps.executeQuery()) {
@@ -2,16 +2,21 @@ package model.repository;
 
 import model.Appointment;
 import model.AppointmentStatus;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.ServerErrorMessage;
 
 import java.sql.*;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class AppointmentRepository {
 
     private static final String DB_STATUS_CANCELED = "CANCELLED";
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String ACTIVE_SLOT_INDEX = "appointment_active_slot";
 
     private String toDbStatus(AppointmentStatus status) {
         if (status == null) {
@@ -23,28 +28,64 @@ public class AppointmentRepository {
         return status.name();
     }
 
-    public boolean isSlotAvailable(long doctorId, LocalDate date, LocalTime time) throws SQLException {
+    /**
+     * Books a slot in one statement: the appointment is inserted only if
+     * the doctor has no active appointment at that date and time. When two
+     * bookings race for the same slot, the unique index on active slots
+     * (Server/sql/appointment_active_slot.sql) fails the second one, which
+     * is reported as the slot being taken.
+     *
+     * @return the id of the new appointment, or null if the slot is taken.
+     */
+    public Long bookSlot(long patientId, long doctorId, long serviceId, LocalDate date, LocalTime time, AppointmentStatus status) throws SQLException {
         String sql = """
-                SELECT COUNT(*) FROM appointment
-                WHERE doctor_id = ? 
-                  AND appointment_date = ? 
-                  AND appointment_time = ?
-                  AND status::text NOT IN ('CANCELED', 'CANCELLED')
+                INSERT INTO appointment (patient_id, doctor_id, service_id, appointment_date, appointment_time, status, created_at)
+                SELECT ?, ?, ?, ?::date, ?::time, ?::appointment_status, CURRENT_TIMESTAMP
+                WHERE NOT EXISTS (
+                    SELECT 1 FROM appointment
+                    WHERE doctor_id = ?
+                      AND appointment_date = ?::date
+                      AND appointment_time = ?::time
+                      AND status::text NOT IN ('CANCELED', 'CANCELLED')
+                )
+                RETURNING appointment_id
                 """;
 
         try (Connection conn = Repository.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
 
-            ps.setLong(1, doctorId);
-            ps.setDate(2, Date.valueOf(date));
-            ps.setTime(3, Time.valueOf(time));
+            ps.setLong(1, patientId);
+            ps.setLong(2, doctorId);
+            if (serviceId > 0) ps.setLong(3, serviceId);
+            else ps.setNull(3, Types.BIGINT);
+            ps.setDate(4, Date.valueOf(date));
+            ps.setTime(5, Time.valueOf(time));
+            ps.setString(6, toDbStatus(status));
+            ps.setLong(7, doctorId);
+            ps.setDate(8, Date.valueOf(date));
+            ps.setTime(9, Time.valueOf(time));
 
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt(1) == 0;
-                }
+                return rs.next() ? rs.getLong("appointment_id") : null;
+            }
+        } catch (SQLException e) {
+            if (isSlotTaken(e)) {
+                return null;
             }
+            throw e;
         }
-        return false;
+    }
+
+    /**
+     * Returns true if a statement failed because it would give a doctor
+     * two active appointments at the same date and time, that is on the
+     * unique index of active slots. Other unique violations are errors.
+     */
+    public static boolean isSlotTaken(SQLException e) {
+        if (!UNIQUE_VIOLATION.equals(e.getSQLState()) || !(e instanceof PSQLException psql)) {
+            return false;
+        }
+        ServerErrorMessage detail = psql.getServerErrorMessage();
+        return detail != null && ACTIVE_SLOT_INDEX.equals(detail.getConstraint());
     }
 
     public long createAppointment(long patientId, long doctorId, long serviceId, LocalDate date, LocalTime time, AppointmentStatus status) throws SQLException {
@@ -107,6 +148,52 @@ public class AppointmentRepository {
         }
     }
 
+    /**
+     * Same as {@link #updateStatus} but returns the updated appointment's
+     * slot (ids, date, time and status, without names), or null when no
+     * appointment has that id.
+     */
+    public Appointment updateStatusReturningSlot(long appointmentId, AppointmentStatus status) throws SQLException {
+        String sql = """
+                UPDATE appointment
+                SET status = ?::appointment_status,
+                    updated_at = CURRENT_TIMESTAMP
+                WHERE appointment_id = ?
+                RETURNING appointment_id, patient_id, doctor_id, service_id,
+                          appointment_date, appointment_time, status
+                """;
+
+        try (Connection conn = Repository.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            ps.setString(1, toDbStatus(status));
+            ps.setLong(2, appointmentId);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? mapAppointment(rs) : null;
+            }
+        }
+    }
+
+    /**
+     * Returns the slot of an appointment (ids, date, time and status,
+     * without names), or null when no appointment has that id.
+     */
+    public Appointment findSlotById(long appointmentId) throws SQLException {
+        String sql = """
+                SELECT appointment_id, patient_id, doctor_id, service_id,
+                       appointment_date, appointment_time, status
+                FROM appointment
+                WHERE appointment_id = ?
+                """;
+
+        try (Connection conn = Repository.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, appointmentId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? mapAppointment(rs) : null;
+            }
+        }
+    }
+
     public java.util.List<LocalTime> findBookedTimes(long doctorId, LocalDate date) throws SQLException {
         String sql = """
                 SELECT appointment_time
@@ -354,6 +441,37 @@ public class AppointmentRepository {
     }
 
     public List<Appointment> findWithFilters(Long doctorId, String serviceName) throws SQLException {
+        return findWithFilters(doctorId, serviceName, null);
+    }
+
+    public List<Appointment> findWithFilters(Long doctorId, String serviceName, LocalDate date) throws SQLException {
+        try (Connection conn = Repository.getConnection();
+             PreparedStatement ps = conn.prepareStatement(filterQuery(doctorId, serviceName, date))) {
+
+            bindFilters(ps, doctorId, serviceName, date);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                return mapAppointments(rs);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #findWithFilters(Long, String, LocalDate)}, but hands
+     * the appointments to the consumer as they are read instead of
+     * collecting them in a list.
+     */
+    public void streamWithFilters(Long doctorId, String serviceName, LocalDate date, int fetchSize,
+                                  Consumer<Appointment> consumer) throws SQLException {
+        Repository.streamQuery(
+                filterQuery(doctorId, serviceName, date),
+                ps -> bindFilters(ps, doctorId, serviceName, date),
+                fetchSize,
+                rs -> consumer.accept(mapAppointment(rs))
+        );
+    }
+
+    private String filterQuery(Long doctorId, String serviceName, LocalDate date) {
         StringBuilder sql = new StringBuilder("""
                 SELECT a.appointment_id,
                        a.patient_id,
@@ -378,30 +496,35 @@ public class AppointmentRepository {
         if (doctorId != null) {
             sql.append(" AND a.doctor_id = ?");
         }
-        if (serviceName != null && !serviceName.isBlank() && !"Toate".equalsIgnoreCase(serviceName)) {
+        if (date != null) {
+            sql.append(" AND a.appointment_date = ?");
+        }
+        if (hasServiceFilter(serviceName)) {
             sql.append(" AND (s.name ILIKE ? OR sp.name ILIKE ?)");
         }
 
         sql.append(" ORDER BY a.appointment_date DESC, a.appointment_time DESC");
+        return sql.toString();
+    }
 
-        try (Connection conn = Repository.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql.toString())) {
-
-            int index = 1;
-
-            if (doctorId != null) {
-                ps.setLong(index++, doctorId);
-            }
-            if (serviceName != null && !serviceName.isBlank() && !"Toate".equalsIgnoreCase(serviceName)) {
-                String searchPattern = "%" + serviceName + "%";
-                ps.setString(index++, searchPattern);
-                ps.setString(index++, searchPattern);
-            }
+    private void bindFilters(PreparedStatement ps, Long doctorId, String serviceName, LocalDate date) throws SQLException {
+        int index = 1;
 
-            try (ResultSet rs = ps.executeQuery()) {
-                return mapAppointments(rs);
-            }
+        if (doctorId != null) {
+            ps.setLong(index++, doctorId);
         }
+        if (date != null) {
+            ps.setDate(index++, Date.valueOf(date));
+        }
+        if (hasServiceFilter(serviceName)) {
+            String searchPattern = "%" + serviceName + "%";
+            ps.setString(index++, searchPattern);
+            ps.setString(index++, searchPattern);
+        }
+    }
+
+    private boolean hasServiceFilter(String serviceName) {
+        return serviceName != null && !serviceName.isBlank() && !"Toate".equalsIgnoreCase(serviceName);
     }
 
     private List<Appointment> mapAppointments(ResultSet rs) throws SQLException {
@@ -0,0 +1,61 @@
+package model.repository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hits and misses of one of the repository caches. A lookup answered
+ * from the cache is a hit and a lookup that goes to the database is a
+ * miss; both are striped counters, so counting costs the lookup nothing
+ * noticeable and reading them never blocks it.
+ */
+public final class CacheStats {
+
+    private static final Map<String, CacheStats> ALL = new ConcurrentSkipListMap<>();
+
+    private final String name;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private CacheStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the counters of the cache with the given name, creating
+     * them on first use.
+     */
+    static CacheStats named(String name) {
+        return ALL.computeIfAbsent(name, CacheStats::new);
+    }
+
+    /**
+     * Returns the counters of every cache, ordered by name.
+     */
+    public static Collection<CacheStats> all() {
+        return Collections.unmodifiableCollection(ALL.values());
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,415 @@
+package model.repository;
+
+import util.LatencyHistogram;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connections to one database, the primary or a replica, reused across
+ * commands. {@link Repository} keeps one pool per database and decides
+ * which one a query goes to.
+ * <p>
+ * The settings shared by every pool are read from system properties:
+ * db.pool.validateAfterMillis, db.pool.borrowTimeoutMillis and
+ * db.pool.leakThresholdMillis.
+ */
+public final class ConnectionPool {
+
+    /**
+     * A connection idle for longer than this, in milliseconds, is checked
+     * with a round trip before it is handed out; one used more recently is
+     * trusted, since a broken connection shows up as closed.
+     */
+    private static final int VALIDATE_AFTER_MILLIS = Repository.readIntProperty("db.pool.validateAfterMillis", 5000);
+    /**
+     * Longest time a borrow waits for a connection to be given back when
+     * all are in use, in milliseconds; zero or less waits until the
+     * deadline of the command, if any.
+     */
+    private static final int BORROW_TIMEOUT_MILLIS = Repository.readIntProperty("db.pool.borrowTimeoutMillis", 5000);
+    /**
+     * A connection borrowed for longer than this, in milliseconds, is
+     * reported with the command and stack that borrowed it; zero or less
+     * turns the check off.
+     */
+    private static final int LEAK_THRESHOLD_MILLIS = Repository.readIntProperty("db.pool.leakThresholdMillis", 0);
+
+    private final String name;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final int minIdle;
+    private final BlockingQueue<IdleConnection> idle;
+    private final AtomicInteger totalConnections = new AtomicInteger(0);
+    private final AtomicInteger waiters = new AtomicInteger(0);
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder borrowTimeouts = new LongAdder();
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+    private final LongAdder borrowWaitMicros = new LongAdder();
+    private final LongAdder createFailures = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final Object createLock = new Object();
+    private volatile boolean closed;
+
+    ConnectionPool(String name, String url, String user, String password, int maxSize, int minIdle) {
+        this.name = name;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minIdle = minIdle;
+        this.idle = new ArrayBlockingQueue<>(this.maxSize);
+    }
+
+    /**
+     * Hands out a connection, waiting for one to be given back if all are
+     * in use, up to the borrow timeout or the deadline of the command.
+     */
+    PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+        long start = System.nanoTime();
+        Connection conn;
+        try {
+            conn = borrowConnection();
+        } catch (SQLTimeoutException e) {
+            borrowTimeouts.increment();
+            throw e;
+        }
+        long waited = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        borrowWait.record(waited);
+        borrowWaitMicros.add(waited);
+        borrows.increment();
+        PooledConnection pooled = new PooledConnection(this, conn, LEAK_THRESHOLD_MILLIS > 0);
+        if (LEAK_THRESHOLD_MILLIS > 0) {
+            borrowed.add(pooled);
+        }
+        return pooled;
+    }
+
+    /**
+     * Closes the idle connections. The pool opens connections again on
+     * demand.
+     */
+    void closeIdle() {
+        IdleConnection conn;
+        while ((conn = idle.poll()) != null) {
+            closeAndDecrement(conn.connection());
+        }
+    }
+
+    /**
+     * Closes the pool: the idle connections now, the borrowed ones when
+     * they are given back. Borrowing fails until the pool is reopened.
+     */
+    void close() {
+        closed = true;
+        closeIdle();
+    }
+
+    /**
+     * Lets a closed pool hand out connections again.
+     */
+    void reopen() {
+        closed = false;
+    }
+
+    /**
+     * Opens connections until the minimum are idle, as far as the pool
+     * size allows.
+     */
+    void warm() {
+        if (closed) {
+            return;
+        }
+        while (idle.size() < Math.min(minIdle, maxSize)) {
+            Connection conn;
+            try {
+                conn = tryCreateConnection();
+            } catch (SQLException e) {
+                return;
+            }
+            if (conn == null) {
+                return;
+            }
+            if (!idle.offer(new IdleConnection(conn, System.nanoTime()))) {
+                closeAndDecrement(conn);
+            }
+        }
+    }
+
+    /**
+     * Tops the pool up to its minimum and reports connections held too
+     * long.
+     */
+    void maintain() {
+        warm();
+        if (LEAK_THRESHOLD_MILLIS <= 0) {
+            return;
+        }
+        for (PooledConnection pooled : borrowed) {
+            long millis = pooled.getHeldMillis();
+            if (millis >= LEAK_THRESHOLD_MILLIS && pooled.markReported()) {
+                leaks.increment();
+                System.out.println("DB connection to " + name + " held for " + millis + " ms, possible leak:");
+                pooled.getBorrowStack().printStackTrace(System.out);
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of connections open, idle or borrowed.
+     */
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    /**
+     * Returns the number of open connections waiting in the pool.
+     */
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of threads waiting for a connection to be given
+     * back because the pool is at its maximum size.
+     */
+    public int getWaitingThreads() {
+        return waiters.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of connections handed out.
+     */
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    /**
+     * Returns the number of borrows that gave up waiting, at the borrow
+     * timeout or the deadline of the command.
+     */
+    public long getBorrowTimeouts() {
+        return borrowTimeouts.sum();
+    }
+
+    /**
+     * Returns the histogram buckets of the time a borrow took, in
+     * microseconds, including opening a new connection or waiting for one
+     * to be given back.
+     */
+    public long[] getBorrowWaitSnapshot() {
+        return borrowWait.snapshot();
+    }
+
+    /**
+     * Returns the total time borrows took, in microseconds.
+     */
+    public long getBorrowWaitMicros() {
+        return borrowWaitMicros.sum();
+    }
+
+    /**
+     * Returns the number of connections that could not be opened.
+     */
+    public long getCreateFailures() {
+        return createFailures.sum();
+    }
+
+    /**
+     * Returns the number of pooled connections found broken, when handed
+     * out or given back.
+     */
+    public long getValidationFailures() {
+        return validationFailures.sum();
+    }
+
+    /**
+     * Returns the number of connections reported as held too long.
+     */
+    public long getLeaksReported() {
+        return leaks.sum();
+    }
+
+    /**
+     * Describes the connections borrowed for longer than the leak
+     * threshold, or returns an empty list if leak detection is off.
+     */
+    public List<String> getLongHeldConnections() {
+        List<String> held = new ArrayList<>();
+        for (PooledConnection pooled : borrowed) {
+            long millis = pooled.getHeldMillis();
+            if (millis >= LEAK_THRESHOLD_MILLIS) {
+                held.add(pooled.describe() + ", held " + millis + " ms");
+            }
+        }
+        return held;
+    }
+
+    private Connection borrowConnection() throws SQLException {
+        long giveUpAt = 0;
+        while (true) {
+            IdleConnection conn = idle.poll();
+            if (conn != null) {
+                if (isUsable(conn)) {
+                    return conn.connection();
+                }
+                closeAndDecrement(conn.connection());
+                continue;
+            }
+
+            Connection created = tryCreateConnection();
+            if (created != null) {
+                return created;
+            }
+
+            waiters.incrementAndGet();
+            try {
+                long wait = Deadline.remainingMillis();
+                if (BORROW_TIMEOUT_MILLIS > 0) {
+                    if (giveUpAt == 0) {
+                        giveUpAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BORROW_TIMEOUT_MILLIS);
+                    }
+                    long untilGiveUp = Math.max(0, TimeUnit.NANOSECONDS.toMillis(giveUpAt - System.nanoTime()));
+                    wait = wait < 0 ? untilGiveUp : Math.min(wait, untilGiveUp);
+                }
+                conn = wait < 0 ? idle.take() : idle.poll(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for DB connection.", e);
+            } finally {
+                waiters.decrementAndGet();
+            }
+            if (conn == null) {
+                if (Deadline.expired()) {
+                    throw new SQLTimeoutException("Deadline exceeded while waiting for DB connection.");
+                }
+                throw new SQLTimeoutException("No DB connection to " + name + " free after "
+                        + BORROW_TIMEOUT_MILLIS + " ms; all " + maxSize + " are in use.");
+            }
+
+            if (isUsable(conn)) {
+                return conn.connection();
+            }
+            closeAndDecrement(conn.connection());
+        }
+    }
+
+    private Connection tryCreateConnection() throws SQLException {
+        synchronized (createLock) {
+            if (totalConnections.get() >= maxSize) {
+                return null;
+            }
+            totalConnections.incrementAndGet();
+        }
+
+        try {
+            return createConnection();
+        } catch (SQLException e) {
+            totalConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private Connection createConnection() throws SQLException {
+        try {
+            return DriverManager.getConnection(url, user, password);
+        } catch (SQLException e) {
+            createFailures.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool. Its state is checked without a
+     * round trip: the driver closes a connection whose socket failed, and
+     * one that cannot be put back in auto-commit mode is dropped.
+     */
+    void release(PooledConnection pooled) {
+        borrowed.remove(pooled);
+        Connection connection = pooled.getConnection();
+        try {
+            if (connection.isClosed()) {
+                validationFailures.increment();
+                totalConnections.decrementAndGet();
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            closeAndDecrement(connection);
+            return;
+        }
+
+        if (closed || !idle.offer(new IdleConnection(connection, System.nanoTime()))) {
+            closeAndDecrement(connection);
+        } else if (closed) {
+            // closed while this one was put back
+            closeIdle();
+        }
+    }
+
+    /**
+     * Forgets a connection that was aborted while borrowed.
+     */
+    void discard(PooledConnection pooled) {
+        borrowed.remove(pooled);
+        closeAndDecrement(pooled.getConnection());
+    }
+
+    /**
+     * Returns true if an idle connection may be handed out, asking the
+     * database only if it has been idle for long.
+     */
+    private boolean isUsable(IdleConnection conn) {
+        boolean usable;
+        try {
+            Connection connection = conn.connection();
+            long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - conn.idleSince());
+            usable = !connection.isClosed() && (idleMillis < VALIDATE_AFTER_MILLIS || connection.isValid(2));
+        } catch (SQLException e) {
+            usable = false;
+        }
+        if (!usable) {
+            validationFailures.increment();
+        }
+        return usable;
+    }
+
+    private void closeAndDecrement(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+        totalConnections.decrementAndGet();
+    }
+
+    private record IdleConnection(Connection connection, long idleSince) {
+    }
+}
@@ -12,13 +12,16 @@ public class ConsultationRepository {
     private static final long CACHE_TTL_MS = Long.getLong("cache.services.ttl.ms", 300000L);
     private static volatile CacheEntry<List<MedicalService>> CACHE_ALL;
     private static final Map<Long, CacheEntry<MedicalService>> CACHE_BY_ID = new ConcurrentHashMap<>();
+    private static final CacheStats CACHE_STATS = CacheStats.named("services");
 
     public List<MedicalService> findAllServices() throws SQLException {
         CacheEntry<List<MedicalService>> cached = CACHE_ALL;
         if (cached != null && !cached.isExpired()) {
+            CACHE_STATS.hit();
             return cached.value;
         }
 
+        CACHE_STATS.miss();
         String sql = "SELECT service_id, name, price FROM medical_service ORDER BY name";
         List<MedicalService> list = new ArrayList<>();
 
@@ -49,11 +52,13 @@ public class ConsultationRepository {
     public MedicalService findServiceById(long id) throws SQLException {
         CacheEntry<MedicalService> cached = CACHE_BY_ID.get(id);
         if (cached != null && !cached.isExpired()) {
+            CACHE_STATS.hit();
             return cached.value;
         }
 
         CacheEntry<List<MedicalService>> listCache = CACHE_ALL;
         if (listCache != null && !listCache.isExpired()) {
+            CACHE_STATS.hit();
             for (MedicalService service : listCache.value) {
                 if (service.getServiceId() == id) {
                     CACHE_BY_ID.put(id, new CacheEntry<>(service, listCache.expiresAt));
@@ -63,6 +68,7 @@ public class ConsultationRepository {
             return null;
         }
 
+        CACHE_STATS.miss();
         String sql = "SELECT service_id, name, price FROM medical_service WHERE service_id = ?";
 
         try (Connection conn = Repository.getConnection();
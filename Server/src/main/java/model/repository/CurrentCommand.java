@@ -0,0 +1,40 @@
+package model.repository;
+
+import java.util.function.Supplier;
+
+/**
+ * Name of the command running on the current thread, recorded with every
+ * connection it borrows so that a connection held too long can be traced
+ * back to the command holding it.
+ */
+public final class CurrentCommand {
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private CurrentCommand() {
+    }
+
+    /**
+     * Runs work as the given command, restoring the previous one after.
+     */
+    public static <T> T run(String command, Supplier<T> work) {
+        String previous = CURRENT.get();
+        CURRENT.set(command);
+        try {
+            return work.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns the command running on the current thread, or null if none.
+     */
+    static String get() {
+        return CURRENT.get();
+    }
+}
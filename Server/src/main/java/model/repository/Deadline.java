@@ -0,0 +1,93 @@
+package model.repository;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The time by which the command running on the current thread must be
+ * answered. Every statement created through {@link Repository} gets the
+ * time left as its query timeout, and no connection is borrowed once the
+ * time is up, so a slow query or a lock wait cannot hold a connection
+ * longer than its command may take.
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Long> CURRENT = new ThreadLocal<>();
+
+    private Deadline() {
+    }
+
+    /**
+     * Runs work with a deadline, restoring the previous one after.
+     *
+     * @param deadlineNanos the deadline, as given by System.nanoTime.
+     */
+    public static <T> T run(long deadlineNanos, Supplier<T> work) {
+        Long previous = CURRENT.get();
+        CURRENT.set(deadlineNanos);
+        try {
+            return work.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns the deadline of the current thread, as given by
+     * System.nanoTime, or null if it has none.
+     */
+    public static Long current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Returns true if the current thread has a deadline and it has passed.
+     */
+    public static boolean expired() {
+        Long deadline = CURRENT.get();
+        return deadline != null && deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Returns the time left before the deadline in milliseconds, or -1 if
+     * the current thread has none.
+     */
+    static long remainingMillis() {
+        Long deadline = CURRENT.get();
+        if (deadline == null) {
+            return -1;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Throws if the deadline of the current thread has passed.
+     */
+    static void check() throws SQLTimeoutException {
+        if (expired()) {
+            throw new SQLTimeoutException("Deadline exceeded");
+        }
+    }
+
+    /**
+     * Gives a statement the time left as its query timeout, rounded up to
+     * whole seconds as JDBC requires.
+     */
+    static void apply(Statement statement) throws SQLException {
+        long remaining = remainingMillis();
+        if (remaining < 0) {
+            return;
+        }
+        if (remaining == 0) {
+            throw new SQLTimeoutException("Deadline exceeded");
+        }
+        statement.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (remaining + 999) / 1000));
+    }
+}
@@ -16,6 +16,8 @@ public class DoctorRepository {
     private static final long DOCTOR_LIST_CACHE_TTL_MS = Long.getLong("cache.doctors.ttl.ms", 60000L);
     private static volatile CacheEntry<List<Doctor>> DOCTOR_LIST_CACHE;
     private static final Map<Long, CacheEntry<Doctor>> DOCTOR_BY_ID_CACHE = new ConcurrentHashMap<>();
+    private static final CacheStats DOCTOR_CACHE_STATS = CacheStats.named("doctors");
+    private static final CacheStats SCHEDULE_CACHE_STATS = CacheStats.named("doctor_schedules");
 
     public Long findDoctorIdByUserId(long userId) throws SQLException {
         String sql = """
@@ -40,9 +42,11 @@ public class DoctorRepository {
     public List<Doctor> findAllDoctors() throws SQLException {
         CacheEntry<List<Doctor>> cached = DOCTOR_LIST_CACHE;
         if (cached != null && !cached.isExpired()) {
+            DOCTOR_CACHE_STATS.hit();
             return cached.value;
         }
 
+        DOCTOR_CACHE_STATS.miss();
         String sql = """
                 SELECT d.doctor_id,
                        d.user_id,
@@ -90,11 +94,13 @@ public class DoctorRepository {
     public Doctor findDoctorById(long doctorId) throws SQLException {
         CacheEntry<Doctor> cached = DOCTOR_BY_ID_CACHE.get(doctorId);
         if (cached != null && !cached.isExpired()) {
+            DOCTOR_CACHE_STATS.hit();
             return cached.value;
         }
 
         CacheEntry<List<Doctor>> listCache = DOCTOR_LIST_CACHE;
         if (listCache != null && !listCache.isExpired()) {
+            DOCTOR_CACHE_STATS.hit();
             for (Doctor doc : listCache.value) {
                 if (doc.getDoctorId() == doctorId) {
                     DOCTOR_BY_ID_CACHE.put(doctorId, new CacheEntry<>(doc, listCache.expiresAt));
@@ -104,6 +110,7 @@ public class DoctorRepository {
             return null;
         }
 
+        DOCTOR_CACHE_STATS.miss();
         String sql = """
                 SELECT d.doctor_id,
                        d.user_id,
@@ -144,6 +151,7 @@ public class DoctorRepository {
     public List<Doctor> searchDoctorsByName(String search) throws SQLException {
         CacheEntry<List<Doctor>> cachedList = DOCTOR_LIST_CACHE;
         if (cachedList != null && !cachedList.isExpired()) {
+            DOCTOR_CACHE_STATS.hit();
             List<Doctor> result = new ArrayList<>();
             String lower = search == null ? "" : search.trim().toLowerCase();
             for (Doctor doc : cachedList.value) {
@@ -156,6 +164,7 @@ public class DoctorRepository {
             return result;
         }
 
+        DOCTOR_CACHE_STATS.miss();
         String sql = """
                 SELECT d.doctor_id,
                        d.user_id,
@@ -201,9 +210,11 @@ public class DoctorRepository {
     public List<DoctorSchedule> findScheduleByDoctorId(long doctorId) throws SQLException {
         CacheEntry<List<DoctorSchedule>> cached = SCHEDULE_CACHE.get(doctorId);
         if (cached != null && !cached.isExpired()) {
+            SCHEDULE_CACHE_STATS.hit();
             return cached.value;
         }
 
+        SCHEDULE_CACHE_STATS.miss();
         String sql = """
                 SELECT schedule_id, doctor_id, day_of_week, start_time, end_time
                 FROM doctor_schedule
@@ -414,7 +425,7 @@ public class DoctorRepository {
         if (SCHEDULE_CACHE_TTL_MS <= 0) {
             return;
         }
-        SCHEDULE_CACHE.remove(doctorId);
+        UnitOfWork.invalidate(() -> SCHEDULE_CACHE.remove(doctorId));
     }
 
     private static void clearScheduleCache() {
@@ -442,7 +453,9 @@ public class DoctorRepository {
         if (DOCTOR_LIST_CACHE_TTL_MS <= 0) {
             return;
         }
-        DOCTOR_LIST_CACHE = null;
-        DOCTOR_BY_ID_CACHE.clear();
+        UnitOfWork.invalidate(() -> {
+            DOCTOR_LIST_CACHE = null;
+            DOCTOR_BY_ID_CACHE.clear();
+        });
     }
 }
@@ -8,8 +8,37 @@ import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PatientRepository {
+    /**
+     * How long the details of a patient are kept, so that a chart opened
+     * again and again is read once. Short, since allergies, conditions and
+     * the profile are also edited outside this server; changes made
+     * through it drop the entry at once.
+     */
+    private static final long DETAILS_CACHE_TTL_MS = Long.getLong("cache.patients.ttl.ms", 30000L);
+    private static final Map<Long, CacheEntry> DETAILS_CACHE = new ConcurrentHashMap<>();
+    private static final CacheStats CACHE_STATS = CacheStats.named("patients");
+
+    /**
+     * The patient id of the users whose details are cached, so that a
+     * change to a user drops one entry.
+     */
+    private static final Map<Long, Long> CACHED_USERS = new ConcurrentHashMap<>();
+
+    /**
+     * Counts invalidations, so that details read while one ran are not
+     * cached: they may be older than the change.
+     */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    /**
+     * Number of cached patients above which expired ones are dropped.
+     */
+    private static final int PRUNE_ABOVE = 1024;
 
     public long createPatient(long userId,
                               String nationalId,
@@ -82,11 +111,23 @@ public class PatientRepository {
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, nationalId);
             ps.setLong(2, userId);
-            return ps.executeUpdate() > 0;
+            boolean updated = ps.executeUpdate() > 0;
+            if (updated) {
+                invalidateUser(userId);
+            }
+            return updated;
         }
     }
 
     public Patient findDetailsByPatientId(long patientId) throws SQLException {
+        CacheEntry cached = DETAILS_CACHE.get(patientId);
+        if (cached != null && !cached.isExpired()) {
+            CACHE_STATS.hit();
+            return copyOf(cached.value);
+        }
+
+        CACHE_STATS.miss();
+        long generation = GENERATION.get();
         String sql = """
                 SELECT p.patient_id,
                        p.user_id,
@@ -100,7 +141,11 @@ public class PatientRepository {
                        u.last_name,
                        pp.blood_type,
                        pp.weight_kg,
-                       pp.height_cm
+                       pp.height_cm,
+                       ARRAY(SELECT pa.name FROM patient_allergy pa
+                             WHERE pa.patient_id = p.patient_id ORDER BY pa.name) AS allergies,
+                       ARRAY(SELECT pc.name FROM patient_condition pc
+                             WHERE pc.patient_id = p.patient_id ORDER BY pc.name) AS conditions
                 FROM patient p
                 JOIN "user" u ON u.user_id = p.user_id
                 LEFT JOIN patient_profile pp ON pp.patient_id = p.patient_id
@@ -129,10 +174,7 @@ public class PatientRepository {
 
                 OffsetDateTime createdAt = rs.getObject("created_at", OffsetDateTime.class);
 
-                List<String> allergies = getAllergies(patientId);
-                List<String> conditions = getConditions(patientId);
-
-                return new Patient(
+                Patient patient = new Patient(
                         rs.getLong("patient_id"),
                         rs.getLong("user_id"),
                         rs.getString("national_id"),
@@ -146,40 +188,105 @@ public class PatientRepository {
                         rs.getString("blood_type"),
                         weightKg,
                         heightCm,
-                        allergies,
-                        conditions
+                        readNames(rs, "allergies"),
+                        readNames(rs, "conditions")
                 );
+                if (DETAILS_CACHE_TTL_MS > 0) {
+                    cache(patient, generation);
+                }
+                return patient;
             }
         }
     }
 
-    private List<String> getAllergies(long patientId) throws SQLException {
-        String sql = "SELECT name FROM patient_allergy WHERE patient_id = ? ORDER BY name";
-        List<String> result = new ArrayList<>();
-        try (Connection conn = Repository.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, patientId);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    result.add(rs.getString("name"));
-                }
-            }
+    private static List<String> readNames(ResultSet rs, String column) throws SQLException {
+        Array array = rs.getArray(column);
+        if (array == null) {
+            return List.of();
+        }
+        try {
+            return List.of((String[]) array.getArray());
+        } finally {
+            array.free();
         }
-        return result;
     }
 
-    private List<String> getConditions(long patientId) throws SQLException {
-        String sql = "SELECT name FROM patient_condition WHERE patient_id = ? ORDER BY name";
-        List<String> result = new ArrayList<>();
-        try (Connection conn = Repository.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, patientId);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    result.add(rs.getString("name"));
+    /**
+     * Caches a copy of the details read, unless an invalidation ran since
+     * the read started. The generation is checked again after the entry is
+     * stored, so that an invalidation running meanwhile cannot miss it.
+     */
+    private static void cache(Patient patient, long generation) {
+        long now = System.currentTimeMillis();
+        if (DETAILS_CACHE.size() > PRUNE_ABOVE) {
+            DETAILS_CACHE.entrySet().removeIf(e -> {
+                if (e.getValue().expiresAt >= now) {
+                    return false;
                 }
+                CACHED_USERS.remove(e.getValue().value.getUserId(), e.getKey());
+                return true;
+            });
+        }
+        CacheEntry entry = new CacheEntry(copyOf(patient), now + DETAILS_CACHE_TTL_MS);
+        CACHED_USERS.put(patient.getUserId(), patient.getPatientId());
+        DETAILS_CACHE.put(patient.getPatientId(), entry);
+        if (GENERATION.get() != generation) {
+            DETAILS_CACHE.remove(patient.getPatientId(), entry);
+        }
+    }
+
+    /**
+     * Returns a copy of cached details, which callers are free to change.
+     * The lists of names are immutable and shared.
+     */
+    private static Patient copyOf(Patient patient) {
+        return new Patient(
+                patient.getPatientId(),
+                patient.getUserId(),
+                patient.getNationalId(),
+                patient.getAddress(),
+                patient.getPhone(),
+                patient.getBirthDate(),
+                patient.getGender(),
+                patient.getCreatedAt(),
+                patient.getFirstName(),
+                patient.getLastName(),
+                patient.getBloodType(),
+                patient.getWeightKg(),
+                patient.getHeightCm(),
+                patient.getAllergies(),
+                patient.getConditions()
+        );
+    }
+
+    /**
+     * Forgets the cached details of the patient of a user, after the user
+     * or the patient row was changed.
+     */
+    static void invalidateUser(long userId) {
+        if (DETAILS_CACHE_TTL_MS <= 0) {
+            return;
+        }
+        UnitOfWork.invalidate(() -> {
+            GENERATION.incrementAndGet();
+            Long patientId = CACHED_USERS.remove(userId);
+            if (patientId != null) {
+                DETAILS_CACHE.remove(patientId);
             }
+        });
+    }
+
+    private static final class CacheEntry {
+        private final Patient value;
+        private final long expiresAt;
+
+        private CacheEntry(Patient value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
         }
-        return result;
     }
 }
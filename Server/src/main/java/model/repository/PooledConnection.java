@@ -0,0 +1,454 @@
+package model.repository;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection borrowed from a {@link ConnectionPool}. Every call
+ * goes straight to the database connection, except that closing gives the
+ * connection back to the pool, and every statement created gets the time
+ * left before the deadline of the command as its query timeout.
+ * <p>
+ * A new wrapper is handed out on every borrow, so a wrapper kept after it
+ * was closed cannot reach the connection once someone else borrows it.
+ * Within a {@link UnitOfWork} every repository call gets a wrapper of its
+ * own around the unit's connection.
+ */
+final class PooledConnection implements Connection {
+
+    private final ConnectionPool pool;
+    private final UnitOfWork unit;
+    private final Connection connection;
+    private final long borrowedAt;
+    private final String command;
+    private final String threadName;
+    private final Exception borrowStack;
+    private boolean closed;
+    private volatile boolean reported;
+
+    /**
+     * @param track whether to record who borrowed the connection and when,
+     *              for reporting a connection held too long.
+     */
+    PooledConnection(ConnectionPool pool, Connection connection, boolean track) {
+        this.pool = pool;
+        this.unit = null;
+        this.connection = connection;
+        if (track) {
+            this.borrowedAt = System.nanoTime();
+            this.command = CurrentCommand.get();
+            this.threadName = Thread.currentThread().getName();
+            this.borrowStack = new Exception("Borrowed by " + describe());
+        } else {
+            this.borrowedAt = 0;
+            this.command = null;
+            this.threadName = null;
+            this.borrowStack = null;
+        }
+    }
+
+    /**
+     * Wraps the connection of a unit of work, to hand to one repository
+     * call. Closing it tells the unit instead of the pool.
+     */
+    PooledConnection(UnitOfWork unit, Connection connection) {
+        this.pool = null;
+        this.unit = unit;
+        this.connection = connection;
+        this.borrowedAt = 0;
+        this.command = null;
+        this.threadName = null;
+        this.borrowStack = null;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    long getHeldMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - borrowedAt);
+    }
+
+    Exception getBorrowStack() {
+        return borrowStack;
+    }
+
+    String describe() {
+        return (command != null ? command : "no command") + " on thread " + threadName;
+    }
+
+    /**
+     * Returns true the first time it is called, so that a connection held
+     * too long is reported once.
+     */
+    boolean markReported() {
+        if (reported) {
+            return false;
+        }
+        reported = true;
+        return true;
+    }
+
+    private Connection connection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed.");
+        }
+        return connection;
+    }
+
+    private static <S extends Statement> S withDeadline(S statement) throws SQLException {
+        try {
+            Deadline.apply(statement);
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+        return statement;
+    }
+
+    /**
+     * Drops the connection instead of giving it back, for one left in an
+     * unknown state.
+     */
+    void discard() {
+        if (!closed) {
+            closed = true;
+            pool.discard(this);
+        }
+    }
+
+    private boolean inTransaction() {
+        return unit != null && unit.isTransactional();
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            if (unit != null) {
+                unit.handleClosed();
+            } else {
+                pool.release(this);
+            }
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed || connection.isClosed();
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        if (!closed) {
+            closed = true;
+            connection.abort(executor);
+            if (unit != null) {
+                unit.handleAborted();
+            } else {
+                pool.discard(this);
+            }
+        }
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return !closed && connection.isValid(timeout);
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return withDeadline(connection().createStatement());
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return withDeadline(connection().createStatement(resultSetType, resultSetConcurrency));
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        return withDeadline(connection().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return withDeadline(connection().prepareStatement(sql));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+            throws SQLException {
+        return withDeadline(connection().prepareStatement(sql, resultSetType, resultSetConcurrency));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+                                              int resultSetHoldability) throws SQLException {
+        return withDeadline(connection().prepareStatement(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return withDeadline(connection().prepareStatement(sql, autoGeneratedKeys));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return withDeadline(connection().prepareStatement(sql, columnIndexes));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return withDeadline(connection().prepareStatement(sql, columnNames));
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return withDeadline(connection().prepareCall(sql));
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency)
+            throws SQLException {
+        return withDeadline(connection().prepareCall(sql, resultSetType, resultSetConcurrency));
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency,
+                                         int resultSetHoldability) throws SQLException {
+        return withDeadline(connection().prepareCall(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability));
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return connection().nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        if (inTransaction()) {
+            connection();
+            return;
+        }
+        connection().setAutoCommit(autoCommit);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return connection().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        if (inTransaction()) {
+            connection();
+            return;
+        }
+        connection().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        if (inTransaction()) {
+            connection();
+            unit.markRollbackOnly();
+            return;
+        }
+        connection().rollback();
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        connection().rollback(savepoint);
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return connection().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return connection().setSavepoint(name);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        connection().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return connection().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        connection().setReadOnly(readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return connection().isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        connection().setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return connection().getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        connection().setTransactionIsolation(level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return connection().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return connection().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        connection().clearWarnings();
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return connection().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        connection().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        connection().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return connection().getHoldability();
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return connection().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return connection().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return connection().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return connection().createSQLXML();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return connection().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return connection().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        if (closed) {
+            throw new SQLClientInfoException();
+        }
+        connection.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        if (closed) {
+            throw new SQLClientInfoException();
+        }
+        connection.setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return connection().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return connection().getClientInfo();
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        connection().setSchema(schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return connection().getSchema();
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        connection().setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return connection().getNetworkTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return connection().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || connection().isWrapperFor(iface);
+    }
+}
@@ -1,27 +1,58 @@
 package model.repository;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class Repository {
-    private static final String URL = "jdbc:postgresql://aws-1-eu-west-1.pooler.supabase.com:6543/postgres"
-            + "?prepareThreshold=0&preferQueryMode=simple";
-    private static final String USER = "postgres.kpvooltkaebzdkinypzh";
-    private static final String PASSWORD = "RazvanSiVasi";
+    private static final String POOLER_URL = "jdbc:postgresql://aws-1-eu-west-1.pooler.supabase.com:6543/postgres";
+    private static final String SESSION_URL = "jdbc:postgresql://aws-1-eu-west-1.pooler.supabase.com:5432/postgres";
+    /**
+     * How the server reaches the database, from the db.mode property.
+     * "pooler" (the default) goes through the transaction-mode pooler,
+     * which may hand every transaction a different backend, so statements
+     * cannot be prepared and every query is parsed and planned again.
+     * "direct" holds a session of its own per connection, so the driver
+     * prepares a statement on the server once it has run
+     * db.prepareThreshold times (default 1) and keeps up to
+     * db.statementCacheSize of them per connection (default 256), keyed
+     * by the SQL text, for every later run on that connection.
+     * <p>
+     * db.url, db.user and db.password override the database of either
+     * mode.
+     */
+    private static final boolean DIRECT = "direct".equalsIgnoreCase(System.getProperty("db.mode", "pooler"));
+    private static final String URL = buildUrl();
+    private static final String USER = System.getProperty("db.user", "postgres.kpvooltkaebzdkinypzh");
+    private static final String PASSWORD = System.getProperty("db.password", "RazvanSiVasi");
 
     private static final int MAX_POOL_SIZE = readIntProperty("db.pool.max", 10);
     private static final int MIN_IDLE = readIntProperty("db.pool.min", 2);
-    private static final BlockingQueue<Connection> POOL = new ArrayBlockingQueue<>(MAX_POOL_SIZE);
-    private static final AtomicInteger TOTAL_CONNECTIONS = new AtomicInteger(0);
-    private static final Object CREATE_LOCK = new Object();
+    /**
+     * How often the pools are topped up to their minimum and checked for
+     * leaks, in milliseconds.
+     */
+    private static final int MAINTAIN_INTERVAL_MILLIS = readIntProperty("db.pool.maintainIntervalMillis", 5000);
+
+    private static final ConnectionPool PRIMARY;
+    /**
+     * Read replicas, from the comma-separated JDBC URLs of db.replica.urls,
+     * with the credentials of db.replica.user and db.replica.password if
+     * they differ from the primary's. Each has a pool of
+     * db.replica.pool.max connections.
+     */
+    private static final List<ConnectionPool> REPLICAS = new ArrayList<>();
+    private static final AtomicInteger NEXT_REPLICA = new AtomicInteger();
+    private static final ThreadLocal<Boolean> PRIMARY_ONLY = new ThreadLocal<>();
 
     static {
         try {
@@ -29,133 +60,217 @@ public class Repository {
         } catch (ClassNotFoundException e) {
             throw new ExceptionInInitializerError("PostgreSQL driver not found.");
         }
-        warmPool();
+        PRIMARY = new ConnectionPool("primary", URL, USER, PASSWORD, MAX_POOL_SIZE, MIN_IDLE);
+        String replicaUrls = System.getProperty("db.replica.urls", "");
+        for (String replicaUrl : replicaUrls.split(",")) {
+            if (!replicaUrl.isBlank()) {
+                REPLICAS.add(new ConnectionPool("replica" + (REPLICAS.size() + 1), withOptions(replicaUrl.trim()),
+                        System.getProperty("db.replica.user", USER),
+                        System.getProperty("db.replica.password", PASSWORD),
+                        readIntProperty("db.replica.pool.max", MAX_POOL_SIZE),
+                        readIntProperty("db.replica.pool.min", MIN_IDLE)));
+            }
+        }
+        for (ConnectionPool pool : getPools()) {
+            pool.warm();
+        }
+        if (MAINTAIN_INTERVAL_MILLIS > 0) {
+            ScheduledExecutorService maintainer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "db-pool-maintainer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            maintainer.scheduleWithFixedDelay(Repository::maintain,
+                    MAINTAIN_INTERVAL_MILLIS, MAINTAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 
+    /**
+     * Returns a connection to the primary, for writes and for reads that
+     * must see every write made so far. Inside a {@link UnitOfWork} it is
+     * the unit's connection.
+     */
     public static Connection getConnection() throws SQLException {
-        Connection conn = borrowConnection();
-        return wrap(conn);
-    }
-
-    private static void warmPool() {
-        int target = Math.min(MIN_IDLE, MAX_POOL_SIZE);
-        for (int i = 0; i < target; i++) {
-            try {
-                Connection conn = createConnection();
-                if (POOL.offer(conn)) {
-                    TOTAL_CONNECTIONS.incrementAndGet();
-                } else {
-                    closeSilently(conn);
-                }
-            } catch (SQLException ignored) {
-                break;
-            }
+        UnitOfWork unit = UnitOfWork.current();
+        if (unit != null) {
+            return unit.connection(PRIMARY);
         }
+        Deadline.check();
+        return PRIMARY.borrow();
     }
 
-    private static Connection borrowConnection() throws SQLException {
-        while (true) {
-            Connection conn = POOL.poll();
-            if (conn != null) {
-                if (isValid(conn)) {
-                    return conn;
-                }
-                closeAndDecrement(conn);
-            }
-
-            Connection created = tryCreateConnection();
-            if (created != null) {
-                return created;
-            }
-
-            try {
-                conn = POOL.take();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new SQLException("Interrupted while waiting for DB connection.", e);
-            }
-
-            if (isValid(conn)) {
-                return conn;
+    /**
+     * Returns a connection for a read that may trail the latest writes by
+     * the replication lag, such as statistics and reports. It goes to the
+     * read replicas in turn, or to the primary if there are none, if the
+     * replica cannot give a connection, while the current thread runs
+     * {@link #onPrimary}, or inside the transaction of a unit of work.
+     */
+    public static Connection getReadConnection() throws SQLException {
+        UnitOfWork unit = UnitOfWork.current();
+        if (REPLICAS.isEmpty() || PRIMARY_ONLY.get() != null || (unit != null && unit.isTransactional())) {
+            return getConnection();
+        }
+        Deadline.check();
+        ConnectionPool replica = REPLICAS.get(Math.floorMod(NEXT_REPLICA.getAndIncrement(), REPLICAS.size()));
+        try {
+            return replica.borrow();
+        } catch (SQLException e) {
+            if (Deadline.expired()) {
+                throw e;
             }
-            closeAndDecrement(conn);
+            return getConnection();
         }
     }
 
-    private static Connection tryCreateConnection() throws SQLException {
-        synchronized (CREATE_LOCK) {
-            if (TOTAL_CONNECTIONS.get() >= MAX_POOL_SIZE) {
-                return null;
+    /**
+     * Runs work with all its reads on the primary, so that it sees writes
+     * that the replicas may not have yet.
+     */
+    public static <T> T onPrimary(Supplier<T> work) {
+        Boolean previous = PRIMARY_ONLY.get();
+        PRIMARY_ONLY.set(Boolean.TRUE);
+        try {
+            return work.get();
+        } finally {
+            if (previous == null) {
+                PRIMARY_ONLY.remove();
             }
-            TOTAL_CONNECTIONS.incrementAndGet();
         }
+    }
 
-        try {
-            return createConnection();
-        } catch (SQLException e) {
-            TOTAL_CONNECTIONS.decrementAndGet();
-            throw e;
-        }
+    /**
+     * Returns the pool of the primary followed by those of the replicas.
+     */
+    public static List<ConnectionPool> getPools() {
+        List<ConnectionPool> pools = new ArrayList<>(1 + REPLICAS.size());
+        pools.add(PRIMARY);
+        pools.addAll(REPLICAS);
+        return pools;
     }
 
-    private static Connection createConnection() throws SQLException {
-        return DriverManager.getConnection(URL, USER, PASSWORD);
+    /**
+     * Sets the parameters of a statement.
+     */
+    @FunctionalInterface
+    public interface StatementBinder {
+        void bind(PreparedStatement ps) throws SQLException;
     }
 
-    private static Connection wrap(Connection connection) {
-        return (Connection) Proxy.newProxyInstance(
-                Repository.class.getClassLoader(),
-                new Class<?>[]{Connection.class},
-                new PooledConnectionHandler(connection)
-        );
+    /**
+     * Reads the current row of a result set.
+     */
+    @FunctionalInterface
+    public interface RowHandler {
+        void handle(ResultSet rs) throws SQLException;
     }
 
-    private static void releaseConnection(Connection connection) {
-        if (connection == null) {
-            return;
+    /**
+     * Runs a query through a server-side cursor and hands its rows to the
+     * handler as they arrive, fetchSize rows at a time, so that a large
+     * result is never held in memory at once. The connection stays in one
+     * transaction until the last row is read. The streamed lists are
+     * reports, so the query runs on a read replica if there is one.
+     * <p>
+     * In pooler mode the driver runs in simple query mode, which ignores
+     * Statement.setFetchSize, so the cursor is declared and fetched
+     * explicitly.
+     *
+     * @param select the query, with ? for the parameters.
+     */
+    public static void streamQuery(String select, StatementBinder binder, int fetchSize, RowHandler handler)
+            throws SQLException {
+        try (Connection conn = getReadConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement declare = conn.prepareStatement(
+                        "DECLARE stream_cursor NO SCROLL CURSOR FOR " + select)) {
+                    binder.bind(declare);
+                    declare.execute();
+                }
+                int batch = Math.max(1, fetchSize);
+                String fetch = "FETCH FORWARD " + batch + " FROM stream_cursor";
+                try (Statement st = conn.createStatement()) {
+                    int rows;
+                    do {
+                        rows = 0;
+                        try (ResultSet rs = st.executeQuery(fetch)) {
+                            while (rs.next()) {
+                                handler.handle(rs);
+                                rows++;
+                            }
+                        }
+                    } while (rows == batch);
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                try {
+                    conn.rollback();
+                } catch (SQLException ignored) {
+                }
+                throw e;
+            }
         }
+    }
 
-        try {
-            if (!connection.getAutoCommit()) {
-                connection.setAutoCommit(true);
-            }
-        } catch (SQLException ignored) {
+    /**
+     * Closes the idle connections of every pool. The pools open
+     * connections again on demand, so this is safe before a restart as
+     * well as before exiting.
+     */
+    public static void closeIdleConnections() {
+        for (ConnectionPool pool : getPools()) {
+            pool.closeIdle();
         }
+    }
 
-        if (!isValid(connection)) {
-            closeAndDecrement(connection);
-            return;
+    /**
+     * Closes every pool, primary and replicas, once the commands using
+     * them have finished. Connections still borrowed are closed when they
+     * are given back, and borrowing fails until {@link #reopen()}.
+     */
+    public static void close() {
+        for (ConnectionPool pool : getPools()) {
+            pool.close();
         }
+    }
 
-        if (!POOL.offer(connection)) {
-            closeAndDecrement(connection);
+    /**
+     * Lets the pools closed by {@link #close()} hand out connections again,
+     * when the server listens again.
+     */
+    public static void reopen() {
+        for (ConnectionPool pool : getPools()) {
+            pool.reopen();
         }
     }
 
-    private static boolean isValid(Connection connection) {
-        try {
-            return connection != null && !connection.isClosed() && connection.isValid(2);
-        } catch (SQLException e) {
-            return false;
+    private static void maintain() {
+        for (ConnectionPool pool : getPools()) {
+            try {
+                pool.maintain();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
         }
     }
 
-    private static void closeAndDecrement(Connection connection) {
-        closeSilently(connection);
-        TOTAL_CONNECTIONS.decrementAndGet();
+    private static String buildUrl() {
+        return withOptions(System.getProperty("db.url", DIRECT ? SESSION_URL : POOLER_URL));
     }
 
-    private static void closeSilently(Connection connection) {
-        if (connection == null) {
-            return;
-        }
-        try {
-            connection.close();
-        } catch (SQLException ignored) {
-        }
+    /**
+     * Adds the driver options of the connection mode to a URL.
+     */
+    private static String withOptions(String url) {
+        String options = DIRECT
+                ? "prepareThreshold=" + readIntProperty("db.prepareThreshold", 1)
+                        + "&preparedStatementCacheQueries=" + readIntProperty("db.statementCacheSize", 256)
+                : "prepareThreshold=0&preferQueryMode=simple";
+        return url + (url.contains("?") ? "&" : "?") + options;
     }
 
-    private static int readIntProperty(String key, int fallback) {
+    static int readIntProperty(String key, int fallback) {
         String value = System.getProperty(key);
         if (value == null || value.isBlank()) {
             return fallback;
@@ -166,35 +281,4 @@ public class Repository {
             return fallback;
         }
     }
-
-    private static final class PooledConnectionHandler implements InvocationHandler {
-        private final Connection connection;
-        private boolean closed;
-
-        private PooledConnectionHandler(Connection connection) {
-            this.connection = connection;
-        }
-
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            String name = method.getName();
-            if ("close".equals(name)) {
-                if (!closed) {
-                    closed = true;
-                    releaseConnection(connection);
-                }
-                return null;
-            }
-
-            if (closed) {
-                throw new SQLException("Connection is closed.");
-            }
-
-            try {
-                return method.invoke(connection, args);
-            } catch (InvocationTargetException e) {
-                throw e.getTargetException();
-            }
-        }
-    }
 }
@@ -11,13 +11,16 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ScheduleRepository {
     private static final long CACHE_TTL_MS = Long.getLong("cache.schedule.ttl.ms", 60000L);
     private static final Map<Long, CacheEntry<List<DoctorScheduleDTO>>> CACHE_BY_DOCTOR = new ConcurrentHashMap<>();
+    private static final CacheStats CACHE_STATS = CacheStats.named("schedules");
 
     public List<DoctorScheduleDTO> findByDoctorId(long doctorId) throws SQLException {
         CacheEntry<List<DoctorScheduleDTO>> cached = CACHE_BY_DOCTOR.get(doctorId);
         if (cached != null && !cached.isExpired()) {
+            CACHE_STATS.hit();
             return cached.value;
         }
 
+        CACHE_STATS.miss();
         String sql = """
                 SELECT doctor_id, day_of_week, start_time, end_time
                 FROM doctor_schedule
@@ -88,7 +91,7 @@ public class ScheduleRepository {
         if (CACHE_TTL_MS <= 0) {
             return;
         }
-        CACHE_BY_DOCTOR.remove(doctorId);
+        UnitOfWork.invalidate(() -> CACHE_BY_DOCTOR.remove(doctorId));
     }
 
     private static final class CacheEntry<T> {
@@ -12,13 +12,16 @@ public class SpecializationRepository {
     private static final long CACHE_TTL_MS = Long.getLong("cache.specializations.ttl.ms", 300000L);
     private static volatile CacheEntry<List<Specialization>> CACHE_ALL;
     private static final Map<Long, CacheEntry<Specialization>> CACHE_BY_ID = new ConcurrentHashMap<>();
+    private static final CacheStats CACHE_STATS = CacheStats.named("specializations");
 
     public List<Specialization> findAll() throws SQLException {
         CacheEntry<List<Specialization>> cached = CACHE_ALL;
         if (cached != null && !cached.isExpired()) {
+            CACHE_STATS.hit();
             return cached.value;
         }
 
+        CACHE_STATS.miss();
         String sql = "SELECT specialization_id, name FROM specialization ORDER BY name";
         List<Specialization> list = new ArrayList<>();
 
@@ -48,11 +51,13 @@ public class SpecializationRepository {
     public Specialization findById(long id) throws SQLException {
         CacheEntry<Specialization> cached = CACHE_BY_ID.get(id);
         if (cached != null && !cached.isExpired()) {
+            CACHE_STATS.hit();
             return cached.value;
         }
 
         CacheEntry<List<Specialization>> listCache = CACHE_ALL;
         if (listCache != null && !listCache.isExpired()) {
+            CACHE_STATS.hit();
             for (Specialization spec : listCache.value) {
                 if (spec.getSpecializationId() == id) {
                     CACHE_BY_ID.put(id, new CacheEntry<>(spec, listCache.expiresAt));
@@ -62,6 +67,7 @@ public class SpecializationRepository {
             return null;
         }
 
+        CACHE_STATS.miss();
         String sql = "SELECT specialization_id, name FROM specialization WHERE specialization_id = ?";
 
         try (Connection conn = Repository.getConnection();
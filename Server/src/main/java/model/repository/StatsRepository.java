@@ -13,7 +13,7 @@ public class StatsRepository {
 
     public long getAppointmentsCountByDate(LocalDate date) {
         String sql = "SELECT COUNT(*) FROM appointment WHERE appointment_date = ? AND status::text != 'CANCELED'";
-        try (Connection conn = Repository.getConnection();
+        try (Connection conn = Repository.getReadConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setDate(1, Date.valueOf(date));
             try (ResultSet rs = ps.executeQuery()) {
@@ -26,7 +26,7 @@ public class StatsRepository {
 
     public long getActiveConsultationsCount(LocalDate date) {
         String sql = "SELECT COUNT(*) FROM appointment WHERE appointment_date = ? AND status::text IN ('CONFIRMED', 'PENDING')";
-        try (Connection conn = Repository.getConnection();
+        try (Connection conn = Repository.getReadConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setDate(1, Date.valueOf(date));
             try (ResultSet rs = ps.executeQuery()) {
@@ -38,7 +38,7 @@ public class StatsRepository {
 
     public long getTotalDoctors() {
         String sql = "SELECT COUNT(*) FROM doctor";
-        try (Connection conn = Repository.getConnection();
+        try (Connection conn = Repository.getReadConnection();
              PreparedStatement ps = conn.prepareStatement(sql);
              ResultSet rs = ps.executeQuery()) {
             if (rs.next()) return rs.getLong(1);
@@ -58,7 +58,7 @@ public class StatsRepository {
             GROUP BY spec_name
         """;
 
-        try (Connection conn = Repository.getConnection();
+        try (Connection conn = Repository.getReadConnection();
              PreparedStatement ps = conn.prepareStatement(sql);
              ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
@@ -75,7 +75,7 @@ public class StatsRepository {
                 "WHERE appointment_date >= CURRENT_DATE - 7 " +
                 "GROUP BY appointment_date";
 
-        try (Connection conn = Repository.getConnection();
+        try (Connection conn = Repository.getReadConnection();
              PreparedStatement ps = conn.prepareStatement(sql);
              ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
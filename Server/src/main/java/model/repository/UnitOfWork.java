@@ -0,0 +1,211 @@
+package model.repository;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One connection to the primary, and optionally one transaction, shared
+ * by every repository call of a command. While a unit of work is open on
+ * the current thread, {@link Repository#getConnection()} hands out the
+ * same connection each time, so a repository method that reads more
+ * while it holds a connection does not borrow a second one, and the
+ * calls of a command that changes several tables commit or roll back
+ * together.
+ * <p>
+ * The connection is borrowed on the first call that needs one and given
+ * back when the unit is closed. Repositories close what they were handed
+ * as usual; only the last close of a unit without a transaction puts the
+ * connection back in auto-commit mode, as the pool would.
+ * <p>
+ * Inside a transaction, a repository that manages its own transaction
+ * joins the unit's instead: turning auto-commit on or off and committing
+ * do nothing, and rolling back marks the unit so that it rolls back when
+ * it ends.
+ */
+public final class UnitOfWork implements AutoCloseable {
+
+    private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+
+    private final boolean transactional;
+    private final boolean joined;
+    private PooledConnection borrowed;
+    private int openHandles;
+    private boolean rollbackOnly;
+    private boolean committed;
+    private List<Runnable> afterTransaction;
+
+    private UnitOfWork(boolean transactional, boolean joined) {
+        this.transactional = transactional;
+        this.joined = joined;
+    }
+
+    /**
+     * Opens a unit of work on the current thread, to be closed by the
+     * same thread. Inside another unit, the new one joins it: its commit
+     * and close do nothing, and the outer unit decides.
+     *
+     * @param transactional whether the calls made in the unit run in one
+     *                      transaction, committed by {@link #commit}.
+     */
+    public static UnitOfWork begin(boolean transactional) {
+        if (CURRENT.get() != null) {
+            return new UnitOfWork(transactional, true);
+        }
+        UnitOfWork unit = new UnitOfWork(transactional, false);
+        CURRENT.set(unit);
+        return unit;
+    }
+
+    /**
+     * Returns the unit of work open on the current thread, or null if none.
+     */
+    static UnitOfWork current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Runs a cache invalidation now and, inside a transaction, again when
+     * the transaction ends, so that a command reading meanwhile cannot put
+     * back a value the transaction is changing.
+     */
+    static void invalidate(Runnable invalidation) {
+        invalidation.run();
+        UnitOfWork unit = CURRENT.get();
+        if (unit != null && unit.transactional) {
+            if (unit.afterTransaction == null) {
+                unit.afterTransaction = new ArrayList<>();
+            }
+            unit.afterTransaction.add(invalidation);
+        }
+    }
+
+    boolean isTransactional() {
+        return transactional;
+    }
+
+    /**
+     * Hands out the unit's connection, borrowing it from the pool on the
+     * first call.
+     */
+    Connection connection(ConnectionPool pool) throws SQLException {
+        if (borrowed == null) {
+            Deadline.check();
+            PooledConnection conn = pool.borrow();
+            if (transactional) {
+                try {
+                    conn.setAutoCommit(false);
+                } catch (SQLException e) {
+                    conn.close();
+                    throw e;
+                }
+            }
+            borrowed = conn;
+        }
+        openHandles++;
+        return new PooledConnection(this, borrowed.getConnection());
+    }
+
+    /**
+     * Called when a repository closes a connection it was handed.
+     */
+    void handleClosed() {
+        openHandles--;
+        if (openHandles == 0 && !transactional && borrowed != null) {
+            Connection connection = borrowed.getConnection();
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                borrowed.discard();
+                borrowed = null;
+            }
+        }
+    }
+
+    /**
+     * Called when a repository aborts a connection it was handed. The
+     * connection is dropped, and a transaction can no longer commit.
+     */
+    void handleAborted() {
+        openHandles--;
+        rollbackOnly = true;
+        if (borrowed != null) {
+            borrowed.discard();
+            borrowed = null;
+        }
+    }
+
+    /**
+     * Called when a repository rolls back inside the unit's transaction.
+     */
+    void markRollbackOnly() {
+        rollbackOnly = true;
+    }
+
+    /**
+     * Commits the unit's transaction, if it has one and anything was done
+     * in it. Fails, after rolling back, if a repository rolled back along
+     * the way.
+     */
+    public void commit() throws SQLException {
+        if (joined || !transactional || committed) {
+            return;
+        }
+        committed = true;
+        if (rollbackOnly) {
+            rollback();
+            throw new SQLException("The transaction was rolled back.");
+        }
+        if (borrowed != null) {
+            try {
+                borrowed.getConnection().commit();
+            } catch (SQLException e) {
+                rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Rolls back a transaction left uncommitted, gives the connection back
+     * to the pool and closes the unit.
+     */
+    @Override
+    public void close() {
+        if (joined) {
+            return;
+        }
+        CURRENT.remove();
+        try {
+            if (borrowed != null) {
+                if (transactional && !committed) {
+                    rollback();
+                }
+                borrowed.close();
+                borrowed = null;
+            }
+        } finally {
+            if (afterTransaction != null) {
+                for (Runnable invalidation : afterTransaction) {
+                    invalidation.run();
+                }
+            }
+        }
+    }
+
+    private void rollback() {
+        if (borrowed == null) {
+            return;
+        }
+        try {
+            borrowed.getConnection().rollback();
+        } catch (SQLException e) {
+            // a connection that cannot roll back is not given back to the pool
+            borrowed.discard();
+            borrowed = null;
+        }
+    }
+}
@@ -168,7 +168,11 @@ public class UserRepository {
             ps.setString(3, email);
             ps.setString(4, roleName);
             ps.setLong(5, userId);
-            return ps.executeUpdate() > 0;
+            boolean updated = ps.executeUpdate() > 0;
+            if (updated) {
+                PatientRepository.invalidateUser(userId);
+            }
+            return updated;
         }
     }
 
@@ -187,7 +191,11 @@ public class UserRepository {
         try (Connection conn = Repository.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, userId);
-            return ps.executeUpdate() > 0;
+            boolean deleted = ps.executeUpdate() > 0;
+            if (deleted) {
+                PatientRepository.invalidateUser(userId);
+            }
+            return deleted;
         }
     }
 }
@@ -5,14 +5,29 @@
 package ocsf.server;
 
 import java.net.*;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 
 /**
  * The <code> AbstractServer </code> class maintains a thread that waits
  * for connection attempts from clients. When a connection attempt occurs
  * it creates a new <code> ConnectionToClient </code> instance which
- * runs as a thread. When a client is thus connected to the
+ * runs in its own thread, either a platform thread or a virtual thread.
+ * Alternatively, connections can be served by a few selector threads
+ * using non-blocking channels, see <code>setUseSelector</code>.
+ * When a client is thus connected to the
  * server, the two programs can then exchange <code> Object </code>
  * instances.<p>
  *
@@ -68,10 +83,26 @@ public abstract class AbstractServer implements Runnable
     private int backlog = 10;
 
     /**
-     * The thread group associated with client threads. Each member of the
-     * thread group is a <code> ConnectionToClient </code>.
+     * The connections to the clients currently connected. A connection is
+     * added when it is accepted and removed when its thread ends.
      */
-    private ThreadGroup clientThreadGroup;
+    private final Set<ConnectionToClient> clientConnections =
+            ConcurrentHashMap.newKeySet();
+
+    /**
+     * The connections subscribed to each topic. A connection is removed from
+     * all its topics when it is removed from the connected clients.
+     */
+    private final Map<String, Set<ConnectionToClient>> subscribers =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Indicates if connection threads are virtual threads rather than
+     * platform threads. Virtual threads let the server hold many idle
+     * connections without one operating system thread each.
+     * Set to false by default.
+     */
+    private boolean useVirtualThreads = false;
 
     /**
      * Indicates if the listening thread is ready to stop.  Set to
@@ -79,6 +110,122 @@ public abstract class AbstractServer implements Runnable
      */
     private boolean readyToStop = false;
 
+    /**
+     * The executor on which messages from clients are handled. When null,
+     * messages are handled one at a time on the connection threads, as in
+     * the original framework. When set, messages coming from different
+     * clients are handled in parallel while the messages of a single client
+     * are still handled in the order in which they were received.
+     */
+    private volatile Executor messageExecutor = null;
+
+    /**
+     * The maximum number of messages of a single client that may wait to be
+     * handled before the connection thread stops reading from its socket.
+     * Only used when a message executor is set. Set to 32 by default.
+     */
+    private int maxPendingMessages = 32;
+
+    /**
+     * The maximum number of messages of a single client handled at the same
+     * time, for clients whose messages may be answered in any order.
+     * Only used when a message executor is set. Set to 1 by default.
+     */
+    private int maxConcurrentMessages = 1;
+
+    /**
+     * Indicates if connections are served by the selector backend rather
+     * than by one thread per connection. Set to false by default.
+     */
+    private boolean useSelector = false;
+
+    /**
+     * The number of I/O threads of the selector backend.
+     * Set to 2 by default.
+     */
+    private int selectorThreads = 2;
+
+    /**
+     * The channel of the server socket, when the selector backend is used.
+     */
+    private ServerSocketChannel serverChannel = null;
+
+    /**
+     * The I/O threads serving the connections, when the selector backend
+     * is used.
+     */
+    private SelectorBackend selectorBackend = null;
+
+    /**
+     * The codecs that framed clients may choose, by name. Java
+     * serialization is always available in addition to these.
+     */
+    private final Map<String, MessageCodec> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * The number of messages after which the object stream of a client is
+     * reset. Set to 1 by default, so that no message is ever sent as a
+     * back-reference to an earlier one.
+     */
+    private int streamResetMessages = 1;
+
+    /**
+     * The number of bytes after which the object stream of a client is
+     * reset. Set to 1 MiB by default.
+     */
+    private long streamResetBytes = 1024 * 1024;
+
+    /**
+     * The number of times an object stream to a client was reset.
+     */
+    private final LongAdder streamResets = new LongAdder();
+
+    /**
+     * The largest number of objects held by the handle table of an object
+     * stream to a client when it was reset.
+     */
+    private final LongAccumulator peakStreamObjects = new LongAccumulator(Math::max, 0);
+
+    /**
+     * The time after which a heartbeat is sent to a client to which nothing
+     * else was sent, in milliseconds. Zero disables heartbeats.
+     * Set to 0 by default.
+     */
+    private long heartbeatMillis = 0;
+
+    /**
+     * The time after which a client from which nothing was received is
+     * considered dead and disconnected, in milliseconds. Zero disables
+     * idle detection. Set to 0 by default.
+     */
+    private long idleTimeoutMillis = 0;
+
+    /**
+     * The thread sending heartbeats and disconnecting idle clients, while
+     * the server is open.
+     */
+    private ScheduledExecutorService reaper;
+
+    /**
+     * Offers the waiting messages of a client to the message executor
+     * again after the executor refused them, so that a connection thread
+     * never handles them itself. Created on first use.
+     */
+    private ScheduledExecutorService dispatchRetry;
+
+    private final Object dispatchRetryLock = new Object();
+
+    /**
+     * The time after which refused messages are offered again, in
+     * milliseconds.
+     */
+    private static final long DISPATCH_RETRY_MILLIS = 10;
+
+    /**
+     * The number of clients disconnected because they were idle.
+     */
+    private final LongAdder reapedConnections = new LongAdder();
+
 
 // CONSTRUCTOR ******************************************************
 
@@ -90,18 +237,6 @@ public abstract class AbstractServer implements Runnable
     public AbstractServer(int port)
     {
         this.port = port;
-
-        this.clientThreadGroup =
-                new ThreadGroup("ConnectionToClient threads")
-                {
-                    // All uncaught exceptions in connection threads will
-                    // be sent to the clientException callback method.
-                    public void uncaughtException(
-                            Thread thread, Throwable exception)
-                    {
-                        clientException((ConnectionToClient)thread, exception);
-                    }
-                };
     }
 
 
@@ -121,10 +256,31 @@ public abstract class AbstractServer implements Runnable
         {
             if (serverSocket == null)
             {
-                serverSocket = new ServerSocket(getPort(), backlog);
+                if (useSelector)
+                {
+                    serverChannel = ServerSocketChannel.open();
+                    serverChannel.bind(new InetSocketAddress(getPort()), backlog);
+                    serverChannel.configureBlocking(false);
+                    serverSocket = serverChannel.socket();
+                }
+                else
+                {
+                    serverSocket = new ServerSocket(getPort(), backlog);
+                }
             }
 
-            serverSocket.setSoTimeout(timeout);
+            if (serverChannel != null)
+            {
+                if (selectorBackend == null)
+                {
+                    selectorBackend = new SelectorBackend(this, selectorThreads);
+                }
+            }
+            else
+            {
+                serverSocket.setSoTimeout(timeout);
+            }
+            startReaper();
             readyToStop = false;
             connectionListener = new Thread(this);
             connectionListener.start();
@@ -163,17 +319,36 @@ public abstract class AbstractServer implements Runnable
         finally
         {
             // Close the client sockets of the already connected clients
-            Thread[] clientThreadList = getClientConnections();
-            for (int i=0; i<clientThreadList.length; i++)
+            ConnectionToClient[] clientList = getClientConnections();
+            for (int i=0; i<clientList.length; i++)
             {
                 try
                 {
-                    ((ConnectionToClient)clientThreadList[i]).close();
+                    clientList[i].close();
                 }
                 // Ignore all exceptions when closing clients.
                 catch(Exception ex) {}
             }
+            if (selectorBackend != null)
+            {
+                selectorBackend.shutdown();
+                selectorBackend = null;
+            }
+            if (reaper != null)
+            {
+                reaper.shutdownNow();
+                reaper = null;
+            }
+            synchronized (dispatchRetryLock)
+            {
+                if (dispatchRetry != null)
+                {
+                    dispatchRetry.shutdownNow();
+                    dispatchRetry = null;
+                }
+            }
             serverSocket = null;
+            serverChannel = null;
             serverClosed();
         }
     }
@@ -191,18 +366,89 @@ public abstract class AbstractServer implements Runnable
      */
     public void sendToAllClients(Object msg)
     {
-        Thread[] clientThreadList = getClientConnections();
+        ConnectionToClient[] clientList = getClientConnections();
 
-        for (int i=0; i<clientThreadList.length; i++)
+        for (int i=0; i<clientList.length; i++)
         {
             try
             {
-                ((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
+                clientList[i].sendToClient(msg);
             }
             catch (Exception ex) {}
         }
     }
 
+    /**
+     * Sends a message to the clients subscribed to a topic. Any exception
+     * thrown while sending the message to a particular client is ignored.
+     *
+     * @param topic the topic.
+     * @param msg   Object The message to be sent
+     */
+    public void sendToSubscribers(String topic, Object msg)
+    {
+        Set<ConnectionToClient> clients = subscribers.get(topic);
+        if (clients == null)
+        {
+            return;
+        }
+        for (ConnectionToClient client : clients)
+        {
+            try
+            {
+                client.sendToClient(msg);
+            }
+            catch (Exception ex) {}
+        }
+    }
+
+    /**
+     * Subscribes a client to a topic, so that it receives the messages sent
+     * with <code>sendToSubscribers</code> for this topic until it
+     * unsubscribes or disconnects.
+     *
+     * @param client the client.
+     * @param topic the topic.
+     */
+    final public void subscribe(ConnectionToClient client, String topic)
+    {
+        subscribers.computeIfAbsent(topic, t -> ConcurrentHashMap.newKeySet()).add(client);
+        client.topics.add(topic);
+        if (!clientConnections.contains(client))
+        {
+            // the client disconnected meanwhile and will not be removed again
+            unsubscribe(client, topic);
+        }
+    }
+
+    /**
+     * Unsubscribes a client from a topic.
+     *
+     * @param client the client.
+     * @param topic the topic.
+     */
+    final public void unsubscribe(ConnectionToClient client, String topic)
+    {
+        client.topics.remove(topic);
+        subscribers.computeIfPresent(topic, (t, clients) ->
+        {
+            clients.remove(client);
+            return clients.isEmpty() ? null : clients;
+        });
+    }
+
+    /**
+     * Returns the number of clients subscribed to a topic.
+     *
+     * @param topic the topic.
+     * @return the number of subscribers.
+     */
+    final public int getNumberOfSubscribers(String topic)
+    {
+        Set<ConnectionToClient> clients = subscribers.get(topic);
+        return clients == null ? 0 : clients.size();
+    }
+
 
 // ACCESSING METHODS ------------------------------------------------
 
@@ -225,17 +471,11 @@ public abstract class AbstractServer implements Runnable
      * in this migth disconnect. New clients can also connect,
      * these later will not appear in the array.
      *
-     * @return an array of <code>Thread</code> containing
-     * <code>ConnectionToClient</code> instances.
+     * @return an array of <code>ConnectionToClient</code> instances.
      */
-    synchronized final public Thread[] getClientConnections()
+    final public ConnectionToClient[] getClientConnections()
     {
-        Thread[] clientThreadList = new
-                Thread[clientThreadGroup.activeCount()];
-
-        clientThreadGroup.enumerate(clientThreadList);
-
-        return clientThreadList;
+        return clientConnections.toArray(new ConnectionToClient[0]);
     }
 
     /**
@@ -245,7 +485,7 @@ public abstract class AbstractServer implements Runnable
      */
     final public int getNumberOfClients()
     {
-        return clientThreadGroup.activeCount();
+        return clientConnections.size();
     }
 
     /**
@@ -297,6 +537,215 @@ public abstract class AbstractServer implements Runnable
         this.backlog = backlog;
     }
 
+    /**
+     * Sets whether new connections run in virtual threads instead of
+     * platform threads. Only affects clients connecting afterwards.
+     *
+     * @param useVirtualThreads true to use virtual threads.
+     */
+    final public void setUseVirtualThreads(boolean useVirtualThreads)
+    {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    /**
+     * Returns true if new connections run in virtual threads.
+     *
+     * @return true if virtual threads are used.
+     */
+    final public boolean isUsingVirtualThreads()
+    {
+        return useVirtualThreads;
+    }
+
+    /**
+     * Sets whether connections are served by a few selector threads using
+     * non-blocking channels instead of one thread per connection. The
+     * selector backend only accepts clients using the framed wire format,
+     * and is meant to be used together with a message executor, since
+     * without one messages are handled on the selector threads.
+     * The server must be closed and restarted for the change to be
+     * in effect.
+     *
+     * @param useSelector true to use the selector backend.
+     */
+    final public void setUseSelector(boolean useSelector)
+    {
+        this.useSelector = useSelector;
+    }
+
+    /**
+     * Returns true if connections are served by the selector backend.
+     *
+     * @return true if the selector backend is used.
+     */
+    final public boolean isUsingSelector()
+    {
+        return useSelector;
+    }
+
+    /**
+     * Sets the number of I/O threads of the selector backend.
+     * The server must be closed and restarted for the change to be
+     * in effect.
+     *
+     * @param selectorThreads the number of I/O threads.
+     */
+    final public void setSelectorThreads(int selectorThreads)
+    {
+        this.selectorThreads = Math.max(1, selectorThreads);
+    }
+
+    /**
+     * Sets when the object stream to a client is reset. The stream keeps
+     * every object written since its last reset, so that it can send them
+     * again as back-references; resetting frees them on both sides.
+     * Clients using the framed wire format are not concerned, since every
+     * frame is encoded on its own.
+     *
+     * @param everyMessages reset after this many messages.
+     * @param everyBytes reset after this many bytes, whatever the number
+     *  of messages.
+     */
+    final public void setStreamReset(int everyMessages, long everyBytes)
+    {
+        this.streamResetMessages = Math.max(1, everyMessages);
+        this.streamResetBytes = Math.max(1, everyBytes);
+    }
+
+    /**
+     * Sets the liveness checks of client connections. A heartbeat is an
+     * empty frame, or a reset of the object stream, so it is never seen by
+     * the application on either side. Both values may be zero to disable
+     * that check. Takes effect the next time the server starts listening.
+     *
+     * @param heartbeatMillis send a heartbeat to a client after this long
+     *  without sending it anything.
+     * @param idleTimeoutMillis disconnect a client after this long without
+     *  receiving anything from it; should be a few heartbeat intervals.
+     */
+    final public void setHeartbeat(long heartbeatMillis, long idleTimeoutMillis)
+    {
+        this.heartbeatMillis = Math.max(0, heartbeatMillis);
+        this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+    }
+
+    /**
+     * Returns the number of clients disconnected because nothing was
+     * received from them for longer than the idle timeout.
+     *
+     * @return the number of reaped connections.
+     */
+    final public long getReapedCount()
+    {
+        return reapedConnections.sum();
+    }
+
+    /**
+     * Returns the number of times an object stream to a client was reset.
+     *
+     * @return the number of resets.
+     */
+    final public long getStreamResetCount()
+    {
+        return streamResets.sum();
+    }
+
+    /**
+     * Returns the largest number of objects an object stream to a client
+     * retained before being reset.
+     *
+     * @return the peak size of the streams' handle tables.
+     */
+    final public long getPeakStreamObjects()
+    {
+        return peakStreamObjects.get();
+    }
+
+    /**
+     * Makes a codec available to framed clients. Clients listing it when
+     * they connect use it instead of Java serialization. Only affects
+     * clients connecting afterwards.
+     *
+     * @param codec the codec.
+     */
+    final public void addCodec(MessageCodec codec)
+    {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * Sets the executor used to handle messages from clients. Messages
+     * from different clients may then be handled concurrently, so
+     * <code>handleMessageFromClient</code> must be thread safe. Messages
+     * from a single client are always handled in the order received.
+     * A null executor restores the default behaviour where all messages
+     * are handled one at a time.
+     *
+     * @param executor the executor, or null.
+     */
+    final public void setMessageExecutor(Executor executor)
+    {
+        this.messageExecutor = executor;
+    }
+
+    /**
+     * Returns the executor used to handle messages from clients.
+     *
+     * @return the executor, or null if messages are handled serially.
+     */
+    final public Executor getMessageExecutor()
+    {
+        return messageExecutor;
+    }
+
+    /**
+     * Sets the maximum number of messages of a single client that can wait
+     * to be handled. When the limit is reached, the connection stops reading
+     * from its socket until the backlog is handled.
+     *
+     * @param maxPendingMessages the maximum number of waiting messages.
+     */
+    final public void setMaxPendingMessages(int maxPendingMessages)
+    {
+        this.maxPendingMessages = Math.max(1, maxPendingMessages);
+    }
+
+    /**
+     * Returns the maximum number of messages of a single client that
+     * can wait to be handled.
+     *
+     * @return the maximum number of waiting messages.
+     */
+    final public int getMaxPendingMessages()
+    {
+        return maxPendingMessages;
+    }
+
+    /**
+     * Sets the maximum number of messages of a single client that may be
+     * handled at the same time. Only messages for which
+     * <code>isOrderIndependent</code> returns true are handled concurrently.
+     *
+     * @param maxConcurrentMessages the maximum number of messages of a
+     *  client handled at once.
+     */
+    final public void setMaxConcurrentMessages(int maxConcurrentMessages)
+    {
+        this.maxConcurrentMessages = Math.max(1, maxConcurrentMessages);
+    }
+
+    /**
+     * Returns the maximum number of messages of a single client that may be
+     * handled at the same time.
+     *
+     * @return the maximum number of messages of a client handled at once.
+     */
+    final public int getMaxConcurrentMessages()
+    {
+        return maxConcurrentMessages;
+    }
+
 // RUN METHOD -------------------------------------------------------
 
     /**
@@ -308,6 +757,12 @@ public abstract class AbstractServer implements Runnable
         // call the hook method to notify that the server is starting
         serverStarted();
 
+        if (serverChannel != null)
+        {
+            runSelector();
+            return;
+        }
+
         try
         {
             // Repeatedly waits for a new client connection, accepts it, and
@@ -320,12 +775,21 @@ public abstract class AbstractServer implements Runnable
                     Socket clientSocket = serverSocket.accept();
 
                     // When a client is accepted, create a thread to handle
-                    // the data exchange, then add it to thread group
+                    // the data exchange. The connection registers itself.
 
-                    synchronized(this)
+                    try
                     {
-                        ConnectionToClient c = new ConnectionToClient(
-                                this.clientThreadGroup, clientSocket, this);
+                        new ConnectionToClient(clientSocket, this);
+                    }
+                    catch (IOException exception)
+                    {
+                        // A client that fails before its thread starts
+                        // must not stop the server from listening.
+                        try
+                        {
+                            clientSocket.close();
+                        }
+                        catch (IOException ignored) {}
                     }
                 }
                 catch (InterruptedIOException exception)
@@ -358,8 +822,93 @@ public abstract class AbstractServer implements Runnable
     }
 
 
+    /**
+     * Accepts connections for the selector backend. Accepted channels are
+     * handed to the backend's I/O threads, which read from them.
+     */
+    private void runSelector()
+    {
+        // close() clears the fields while this thread may still be running
+        ServerSocketChannel listeningChannel = serverChannel;
+        SelectorBackend backend = selectorBackend;
+        Selector acceptSelector = null;
+        try
+        {
+            acceptSelector = Selector.open();
+            listeningChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            while(!readyToStop)
+            {
+                // Wait for new connection attempts, or a timeout
+                acceptSelector.select(timeout);
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel channel;
+                while ((channel = listeningChannel.accept()) != null)
+                {
+                    try
+                    {
+                        backend.register(channel);
+                    }
+                    catch (IOException exception)
+                    {
+                        try
+                        {
+                            channel.close();
+                        }
+                        catch (IOException ignored) {}
+                    }
+                }
+            }
+
+            serverStopped();
+        }
+        catch (IOException exception)
+        {
+            if (!readyToStop)
+            {
+                listeningException(exception);
+            }
+            else
+            {
+                serverStopped();
+            }
+        }
+        finally
+        {
+            if (acceptSelector != null)
+            {
+                try
+                {
+                    acceptSelector.close();
+                }
+                catch (IOException ignored) {}
+            }
+            readyToStop = true;
+            connectionListener = null;
+        }
+    }
+
+
 // METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
 
+    /**
+     * Hook method telling whether the answer to a message identifies the
+     * message it answers, so that the client does not rely on answers
+     * arriving in order. Once a client sends such a message, its later
+     * messages may be handled concurrently, up to
+     * <code>getMaxConcurrentMessages</code> at a time. The default
+     * implementation returns false, so messages of a client are always
+     * handled in the order received.
+     *
+     * @param msg the message received.
+     * @return true if the message may be handled out of order.
+     */
+    protected boolean isOrderIndependent(Object msg)
+    {
+        return false;
+    }
+
     /**
      * Hook method called each time a new client connection is
      * accepted. The default implementation does nothing.
@@ -425,8 +974,11 @@ public abstract class AbstractServer implements Runnable
      * Handles a command sent from one client to the server.
      * This MUST be implemented by subclasses, who should respond to
      * messages.
-     * This method is called by a synchronized method so it is also
-     * implcitly synchronized.
+     * When no message executor is set, this method is called by a
+     * synchronized method so it is also implcitly synchronized. Otherwise
+     * it may be called concurrently for different clients, but never
+     * concurrently for the same client unless <code>isOrderIndependent</code>
+     * is overridden.
      *
      * @param msg   the message sent.
      * @param client the connection connected to the client that
@@ -438,19 +990,220 @@ public abstract class AbstractServer implements Runnable
 
 // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+    /**
+     * Creates the unstarted thread that reads messages from a client.
+     * All uncaught exceptions in connection threads are sent to the
+     * clientException callback method.
+     *
+     * @param client the connection the thread will run.
+     * @return the new thread.
+     */
+    final Thread newConnectionThread(ConnectionToClient client)
+    {
+        Thread.Builder builder = useVirtualThreads
+                ? Thread.ofVirtual().name("ConnectionToClient-virtual")
+                : Thread.ofPlatform().name("ConnectionToClient");
+        return builder
+                .uncaughtExceptionHandler(
+                        (thread, exception) -> clientException(client, exception))
+                .unstarted(client);
+    }
+
+    /**
+     * Schedules another attempt to hand the waiting messages of a client to
+     * the message executor, after the executor refused them.
+     *
+     * @param client the client whose messages wait.
+     */
+    void retryDispatchLater(ConnectionToClient client)
+    {
+        synchronized (dispatchRetryLock)
+        {
+            if (dispatchRetry == null)
+            {
+                dispatchRetry = Executors.newSingleThreadScheduledExecutor(runnable ->
+                {
+                    Thread thread = new Thread(runnable, "ocsf-dispatch-retry");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            dispatchRetry.schedule(client::retryDispatch, DISPATCH_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Starts the thread checking the liveness of the clients, if any check
+     * is enabled and the thread is not running yet.
+     */
+    private synchronized void startReaper()
+    {
+        if (reaper != null || (heartbeatMillis == 0 && idleTimeoutMillis == 0))
+        {
+            return;
+        }
+        long shortest = heartbeatMillis == 0 ? idleTimeoutMillis
+                : idleTimeoutMillis == 0 ? heartbeatMillis
+                : Math.min(heartbeatMillis, idleTimeoutMillis);
+        long period = Math.max(10, shortest / 4);
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "ocsf-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::checkConnections, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Disconnects the clients idle for longer than the idle timeout and
+     * sends a heartbeat to those to which nothing was sent for longer than
+     * the heartbeat interval. Idle clients are closed like any other, so
+     * <code>clientDisconnected</code> is called for them.
+     */
+    private void checkConnections()
+    {
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        for (ConnectionToClient client : clientConnections)
+        {
+            try
+            {
+                if (idleNanos > 0 && now - client.getLastReceived() > idleNanos)
+                {
+                    reapedConnections.increment();
+                    client.close();
+                }
+                else if (heartbeatNanos > 0 && now - client.getLastSent() > heartbeatNanos)
+                {
+                    if (client.getThread() == null)
+                    {
+                        client.sendHeartbeat();
+                    }
+                    else
+                    {
+                        // a blocking write to a dead client could stall
+                        // this thread, so it is done on a thread of its own
+                        Thread.startVirtualThread(() ->
+                        {
+                            try
+                            {
+                                client.sendHeartbeat();
+                            }
+                            catch (IOException ex) {}
+                        });
+                    }
+                }
+            }
+            // A client failing here is reported by its own reader.
+            catch (Exception ex) {}
+        }
+    }
+
+    /**
+     * Adds a connection to the set of connected clients.
+     *
+     * @param client the connection accepted.
+     */
+    final void registerConnection(ConnectionToClient client)
+    {
+        clientConnections.add(client);
+    }
+
+    /**
+     * Removes a connection from the set of connected clients and from the
+     * topics it subscribed to. Called when the connection's thread ends.
+     *
+     * @param client the connection whose thread ended.
+     */
+    final void deregisterConnection(ConnectionToClient client)
+    {
+        clientConnections.remove(client);
+        for (String topic : client.topics.toArray(new String[0]))
+        {
+            unsubscribe(client, topic);
+        }
+    }
+
+    /**
+     * Writes a message to the object stream of a client, resetting the
+     * stream according to the server's policy.
+     *
+     * @param output the client's object stream.
+     * @param msg the message.
+     * @exception IOException if an I/O error occurs.
+     */
+    final void writeToStream(ResettingObjectOutputStream output, Object msg)
+            throws IOException
+    {
+        int objects = output.writeMessage(msg, streamResetMessages, streamResetBytes);
+        if (objects >= 0)
+        {
+            streamResets.increment();
+            peakStreamObjects.accumulate(objects);
+        }
+    }
+
+    /**
+     * Chooses the codec of a framed client: the first codec of the client's
+     * list that this server knows, or Java serialization.
+     *
+     * @param offer the payload of the client's first frame.
+     * @return the codec to use with the client.
+     */
+    final MessageCodec negotiateCodec(byte[] offer)
+    {
+        for (String name : new String(offer, StandardCharsets.UTF_8).split(","))
+        {
+            MessageCodec codec = codecs.get(name.trim());
+            if (codec != null)
+            {
+                return codec;
+            }
+        }
+        return SerializationCodec.INSTANCE;
+    }
+
     /**
      * Receives a command sent from the client to the server.
      * Called by the run method of <code>ConnectionToClient</code>
      * instances that are watching for messages coming from the server
-     * This method is synchronized to ensure that whatever effects it has
-     * do not conflict with work being done by other threads. The method
-     * simply calls the <code>handleMessageFromClient</code> slot method.
+     * Without a message executor, the method synchronizes on the server
+     * to ensure that whatever effects it has do not conflict with work
+     * being done by other threads, and simply calls the
+     * <code>handleMessageFromClient</code> slot method. With an executor,
+     * the message is queued on the connection and handled by the executor.
+     *
+     * @param msg   the message sent.
+     * @param client the connection connected to the client that
+     *  sent the message.
+     * @exception InterruptedException if interrupted while waiting for
+     *  the client's earlier messages to be handled.
+     */
+    final void receiveMessageFromClient(
+            Object msg, ConnectionToClient client) throws InterruptedException
+    {
+        Executor executor = messageExecutor;
+        if (executor == null)
+        {
+            handleMessageSerially(msg, client);
+            return;
+        }
+
+        client.enqueueMessage(msg, executor, maxPendingMessages);
+    }
+
+    /**
+     * Handles a message while holding the server's lock, so that no other
+     * message is handled at the same time. Used when no message executor
+     * is set.
      *
      * @param msg   the message sent.
      * @param client the connection connected to the client that
      *  sent the message.
      */
-    final synchronized void receiveMessageFromClient(
+    final synchronized void handleMessageSerially(
             Object msg, ConnectionToClient client)
     {
         this.handleMessageFromClient(msg, client);
@@ -6,7 +6,15 @@ package ocsf.server;
 
 import java.io.*;
         import java.net.*;
+        import java.nio.charset.StandardCharsets;
+        import java.util.ArrayDeque;
+        import java.util.Collections;
         import java.util.HashMap;
+        import java.util.Map;
+        import java.util.Set;
+        import java.util.concurrent.ConcurrentHashMap;
+        import java.util.concurrent.Executor;
+        import java.util.concurrent.RejectedExecutionException;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -24,9 +32,16 @@ import java.io.*;
  * @author Paul Holden
  * @version February 2001 (2.12)
  */
-public class ConnectionToClient extends Thread {
+public class ConnectionToClient implements Runnable {
     // INSTANCE VARIABLES ***********************************************
 
+    /**
+     * The thread reading from this client. Either a platform thread or a
+     * virtual thread, depending on the server's configuration. Null when
+     * the client is served by the selector backend.
+     */
+    private final Thread			thread;
+
     /**
      * A reference to the Server that created this instance.
      */
@@ -48,60 +63,147 @@ public class ConnectionToClient extends Thread {
     /**
      * Stream used to write to the client.
      */
-    private ObjectOutputStream	output;
+    private ResettingObjectOutputStream	output;
+
+    /**
+     * Stream used to read frames from a client using the framed wire
+     * format. Null for clients using a plain object stream.
+     */
+    private DataInputStream		frameInput;
+
+    /**
+     * Stream used to write frames to a client using the framed wire format.
+     */
+    private DataOutputStream	frameOutput;
+
+    /**
+     * The non-blocking channel of this client when it is served by the
+     * selector backend, null otherwise.
+     */
+    private final SelectorChannel	selectorChannel;
+
+    /**
+     * The codec agreed on with a framed client. Null for clients using a
+     * plain object stream, and until the negotiation is done.
+     */
+    private volatile MessageCodec	codec;
 
     /**
      * Indicates if the thread is ready to stop. Set to true when closing of the
      * connection is initiated.
      */
-    private boolean				readyToStop;
+    private volatile boolean	readyToStop;
 
     /**
      * Map to save information about the client such as its login ID. The
      * initial size of the map is small since it is not expected that concrete
      * servers will want to store many different types of information about each
-     * client. Used by the setInfo and getInfo methods.
+     * client. Used by the setInfo and getInfo methods. Synchronized because
+     * messages of this client may be handled on executor threads.
+     */
+    private Map<String, Object>	savedInfo	= Collections.synchronizedMap(new HashMap<>(10));
+
+    /**
+     * Lock held while writing to the output stream, so that responses and
+     * messages sent to all clients never interleave on the socket.
+     */
+    private final Object		writeLock	= new Object();
+
+    /**
+     * Messages received from the client and waiting to be handled by the
+     * server's message executor. Also used as the monitor for the fields
+     * related to dispatching.
+     */
+    private final ArrayDeque<Object> pendingMessages = new ArrayDeque<>();
+
+    /**
+     * The number of tasks handling the pending messages of this client that
+     * are scheduled or running on the message executor.
+     */
+    private int					dispatchers;
+
+    /**
+     * Indicates if this client sent messages that may be answered out of
+     * order, in which case several of its messages may be handled at once.
+     */
+    private volatile boolean	orderIndependent;
+
+    /**
+     * Indicates if the selector backend stopped reading from this client
+     * because too many of its messages are waiting.
+     */
+    private boolean				readsSuspended;
+
+    /**
+     * The topics this client is subscribed to, kept so the server can
+     * unsubscribe it when it disconnects.
+     */
+    final Set<String>			topics		= ConcurrentHashMap.newKeySet();
+
+    /**
+     * The time anything was last received from the client, as given by
+     * System.nanoTime.
+     */
+    private volatile long		lastReceived	= System.nanoTime();
+
+    /**
+     * The time anything was last sent to the client, as given by
+     * System.nanoTime.
+     */
+    private volatile long		lastSent		= System.nanoTime();
+
+    /**
+     * The payload of a heartbeat frame.
      */
-    private HashMap				savedInfo	= new HashMap(10);
+    private static final byte[]	HEARTBEAT	= new byte[0];
 
     // CONSTRUCTORS *****************************************************
 
     /**
-     * Constructs a new connection to a client.
+     * Constructs a new connection to a client. The object streams are
+     * created by the connection's own thread, so a slow client cannot hold
+     * up the thread accepting new connections.
      *
-     * @param group
-     *            the thread groupSystem.out.println("Client at "+ client +
-     *            "connected"); that contains the connections.
      * @param clientSocket
      *            contains the client's socket.
      * @param server
      *            a reference to the server that created this instance
      * @exception IOException
-     *                if an I/O error occur when creating the connection.
+     *                if an I/O error occur when configuring the socket.
      */
-    ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
-        super(group, (Runnable) null);
+    ConnectionToClient(Socket clientSocket, AbstractServer server) throws IOException {
         // Initialize variables
         this.clientSocket = clientSocket;
         this.server = server;
 
+        this.selectorChannel = null;
+
         clientSocket.setSoTimeout(0); // make sure timeout is infinite
 
-        // Initialize the objects streams
-        try {
-            input = new ObjectInputStream(clientSocket.getInputStream());
-            output = new ObjectOutputStream(clientSocket.getOutputStream());
-        } catch (IOException ex) {
-            try {
-                closeAll();
-            } catch (Exception exc) {
-            }
+        readyToStop = false;
+        thread = server.newConnectionThread(this);
+        server.registerConnection(this);
+        thread.start(); // Start the thread waits for data from the socket
+    }
 
-            throw ex; // Rethrow the exception.
-        }
+    /**
+     * Constructs a new connection to a client served by the selector
+     * backend. No thread is started: the backend's I/O threads read the
+     * frames and hand them to <code>receiveFrame</code>.
+     *
+     * @param selectorChannel
+     *            the client's non-blocking channel.
+     * @param server
+     *            a reference to the server that created this instance
+     */
+    ConnectionToClient(SelectorChannel selectorChannel, AbstractServer server) {
+        this.selectorChannel = selectorChannel;
+        this.clientSocket = selectorChannel.socket();
+        this.server = server;
+        this.thread = null;
 
         readyToStop = false;
-        start(); // Start the thread waits for data from the socket
+        server.registerConnection(this);
     }
 
     // INSTANCE METHODS *************************************************
@@ -115,19 +217,42 @@ public class ConnectionToClient extends Thread {
      *                if an I/O error occur when sending the message.
      */
     final public void sendToClient(Object msg) throws IOException {
-        if (clientSocket == null || output == null)
-            throw new SocketException("socket does not exist");
+        MessageCodec codec = this.codec;
+        if (selectorChannel != null) {
+            if (codec == null)
+                throw new SocketException("connection is not ready");
+
+            selectorChannel.send(codec.encode(msg));
+            lastSent = System.nanoTime();
+            return;
+        }
 
-        output.writeObject(msg);
+        byte[] frame = codec == null ? null : codec.encode(msg);
+        synchronized (writeLock) {
+            if (clientSocket == null || (output == null && frameOutput == null))
+                throw new SocketException("socket does not exist");
+
+            if (frame != null)
+                Framing.write(frameOutput, frame);
+            else
+                server.writeToStream(output, msg);
+            lastSent = System.nanoTime();
+        }
     }
 
     /**
      * Reset the output stream so we can use the same
-     * buffer repeatedly. This would not normally be used, but is necessary
-     * in some circumstances when Java refuses to send data that it thinks has been sent.
+     * buffer repeatedly. The server already resets the stream according to
+     * its policy, but this is necessary in some circumstances when Java
+     * refuses to send data that it thinks has been sent.
+     * Has no effect for clients using the framed wire format, since every
+     * frame is encoded on its own.
      */
     final public void forceResetAfterSend() throws IOException {
-        output.reset();
+        synchronized (writeLock) {
+            if (output != null)
+                output.reset();
+        }
     }
 
     /**
@@ -140,6 +265,10 @@ public class ConnectionToClient extends Thread {
     final public void close() throws IOException {
         readyToStop = true; // Set the flag that tells the thread to stop
 
+        synchronized (pendingMessages) {
+            pendingMessages.notifyAll();
+        }
+
         try {
             closeAll();
         } finally {
@@ -149,6 +278,78 @@ public class ConnectionToClient extends Thread {
 
     // ACCESSING METHODS ------------------------------------------------
 
+    /**
+     * Returns the time anything was last received from the client.
+     *
+     * @return the time, as given by System.nanoTime.
+     */
+    final public long getLastReceived() {
+        return lastReceived;
+    }
+
+    /**
+     * Returns the time anything was last sent to the client.
+     *
+     * @return the time, as given by System.nanoTime.
+     */
+    final public long getLastSent() {
+        return lastSent;
+    }
+
+    /**
+     * Returns true if no message of this client waits to be handled or is
+     * being handled by the message executor, and nothing waits to be
+     * written to it.
+     *
+     * @return true if the connection has no work in progress.
+     */
+    final public boolean isIdle() {
+        synchronized (pendingMessages) {
+            if (!pendingMessages.isEmpty() || dispatchers > 0) {
+                return false;
+            }
+        }
+        return selectorChannel == null || !selectorChannel.hasQueuedWrites();
+    }
+
+    /**
+     * Waits until the messages sent to the client are written to its
+     * socket, so that a long sequence of messages is not queued in memory
+     * faster than the client reads it. Returns at once for clients served
+     * by their own thread, whose messages are written before sendToClient
+     * returns.
+     *
+     * @param timeoutMillis
+     *            the longest time to wait.
+     * @return true if nothing waits to be written any more.
+     * @exception InterruptedException
+     *                if the thread is interrupted while waiting.
+     */
+    final public boolean awaitFlushed(long timeoutMillis) throws InterruptedException {
+        return selectorChannel == null || selectorChannel.awaitFlushed(timeoutMillis);
+    }
+
+    /**
+     * Returns the thread reading messages from this client.
+     *
+     * @return the connection's thread, or null if the client is served by
+     *         the selector backend.
+     */
+    final public Thread getThread() {
+        return thread;
+    }
+
+    /**
+     * Returns true while the connection's thread is reading from the client,
+     * or while the channel is open for a client served by the selector
+     * backend.
+     *
+     * @return true if the connection is alive.
+     */
+    final public boolean isAlive() {
+        return thread == null ? selectorChannel.isOpen() : thread.isAlive();
+    }
+
     /**
      * Returns the address of the client.
      *
@@ -192,13 +393,71 @@ public class ConnectionToClient extends Thread {
         return savedInfo.get(infoType);
     }
 
+    /**
+     * Returns the number of objects retained by the object stream to this
+     * client since its last reset.
+     *
+     * @return the size of the stream's handle table, or 0 for a client
+     *         using the framed wire format.
+     */
+    final public int getStreamObjects() {
+        ResettingObjectOutputStream output = this.output;
+        return output == null ? 0 : output.getObjectsSinceReset();
+    }
+
+    /**
+     * Returns the topics this client is subscribed to.
+     *
+     * @return an unmodifiable view of the topics.
+     */
+    final public Set<String> getTopics() {
+        return Collections.unmodifiableSet(topics);
+    }
+
+    /**
+     * Returns the name of the codec used with this client.
+     *
+     * @return the codec's name, or null for a client using a plain object
+     *         stream or still negotiating.
+     */
+    final public String getCodecName() {
+        MessageCodec codec = this.codec;
+        return codec == null ? null : codec.getName();
+    }
+
     // RUN METHOD -------------------------------------------------------
 
     /**
      * Constantly reads the client's input stream. Sends all objects that are
-     * read to the server. Not to be called.
+     * read to the server. Clients starting with the framing preface are read
+     * frame by frame with the codec they negotiate, other clients with a
+     * plain object stream. Not to be called.
      */
     final public void run() {
+        // Initialize the objects streams
+        try {
+            BufferedInputStream in = new BufferedInputStream(new ActivityInputStream(clientSocket.getInputStream()));
+            in.mark(4);
+            if (new DataInputStream(in).readInt() == Framing.PREFACE) {
+                frameInput = new DataInputStream(in);
+                frameOutput = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+                MessageCodec agreed = server.negotiateCodec(Framing.read(frameInput));
+                Framing.write(frameOutput, agreed.getName().getBytes(StandardCharsets.UTF_8));
+                codec = agreed;
+            } else {
+                in.reset();
+                input = new ObjectInputStream(in);
+                output = new ResettingObjectOutputStream(clientSocket.getOutputStream());
+            }
+        } catch (IOException ex) {
+            try {
+                closeAll();
+            } catch (Exception exc) {
+            }
+            server.deregisterConnection(this);
+            return;
+        }
+
         server.clientConnected(this);
 
         // This loop reads the input stream and responds to messages
@@ -210,7 +469,15 @@ public class ConnectionToClient extends Thread {
             while (!readyToStop) {
                 // This block waits until it reads a message from the client
                 // and then sends it for handling by the server
-                msg = input.readObject();
+                if (frameInput != null) {
+                    byte[] payload = Framing.read(frameInput);
+                    if (payload.length == 0) {
+                        continue; // heartbeat
+                    }
+                    msg = codec.decode(payload);
+                } else {
+                    msg = input.readObject();
+                }
                 server.receiveMessageFromClient(msg, this);
             }
         } catch (Exception exception) {
@@ -222,11 +489,309 @@ public class ConnectionToClient extends Thread {
 
                 server.clientException(this, exception);
             }
+        } finally {
+            server.deregisterConnection(this);
         }
     }
 
     // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+    /**
+     * Queues a message received from the client so that it is handled by the
+     * given executor. Only one task per client is scheduled at a time, which
+     * keeps the messages of this client in order, unless the server reports
+     * that the client's messages may be answered in any order. Blocks the
+     * calling connection thread while too many messages are already waiting.
+     *
+     * @param msg
+     *            the message received.
+     * @param executor
+     *            the executor handling the messages.
+     * @param maxPending
+     *            the maximum number of waiting messages.
+     * @exception InterruptedException
+     *                if interrupted while waiting for room in the queue.
+     */
+    void enqueueMessage(Object msg, Executor executor, int maxPending) throws InterruptedException {
+        if (!orderIndependent && server.isOrderIndependent(msg)) {
+            orderIndependent = true;
+        }
+
+        synchronized (pendingMessages) {
+            while (pendingMessages.size() >= maxPending && !readyToStop) {
+                pendingMessages.wait();
+            }
+            pendingMessages.addLast(msg);
+            if (dispatchers >= maxDispatchers()) {
+                return;
+            }
+            dispatchers++;
+        }
+
+        startDispatcher(executor);
+    }
+
+    /**
+     * Receives a complete frame read by the selector backend. The first
+     * frame negotiates the codec, after which the client counts as
+     * connected. Later frames are queued and decoded by the message
+     * executor, so the I/O thread only moves bytes. Without an executor
+     * they are handled right away.
+     *
+     * @param payload
+     *            the payload of the frame.
+     * @return false if too many messages are waiting, or the executor
+     *         refused them, and the backend should stop reading from this
+     *         client until they are handled.
+     */
+    boolean receiveFrame(byte[] payload) {
+        if (codec == null) {
+            MessageCodec agreed = server.negotiateCodec(payload);
+            try {
+                selectorChannel.send(agreed.getName().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                connectionFailed(ex);
+                return true;
+            }
+            codec = agreed;
+            server.clientConnected(this);
+            return true;
+        }
+
+        if (payload.length == 0) {
+            return true; // heartbeat
+        }
+
+        Executor executor = server.getMessageExecutor();
+        if (executor == null) {
+            handleFrame(new Frame(payload));
+            return true;
+        }
+
+        boolean room;
+        synchronized (pendingMessages) {
+            if (readyToStop) {
+                return true;
+            }
+            pendingMessages.addLast(new Frame(payload));
+            room = pendingMessages.size() < server.getMaxPendingMessages();
+            if (!room) {
+                readsSuspended = true;
+            }
+            if (dispatchers >= maxDispatchers()) {
+                return room;
+            }
+            dispatchers++;
+        }
+
+        if (startDispatcher(executor)) {
+            return room;
+        }
+        // The executor refused the frames: stop reading until a dispatcher
+        // has handled them, rather than handling them on the I/O thread.
+        synchronized (pendingMessages) {
+            if (pendingMessages.isEmpty()) {
+                return true;
+            }
+            readsSuspended = true;
+            return false;
+        }
+    }
+
+    /**
+     * Records that bytes were received from the client. Called by the
+     * selector backend.
+     */
+    void markReceived() {
+        lastReceived = System.nanoTime();
+    }
+
+    /**
+     * Sends a heartbeat: an empty frame, or a reset of the object stream,
+     * which the client's object stream consumes without returning an
+     * object. Nothing is sent before the connection is set up.
+     *
+     * @exception IOException
+     *                if an I/O error occurs when sending.
+     */
+    void sendHeartbeat() throws IOException {
+        if (selectorChannel != null) {
+            if (codec != null)
+                selectorChannel.send(HEARTBEAT);
+        } else {
+            synchronized (writeLock) {
+                if (codec != null && frameOutput != null)
+                    Framing.write(frameOutput, HEARTBEAT);
+                else if (output != null)
+                    output.writeHeartbeat();
+                else
+                    return;
+            }
+        }
+        lastSent = System.nanoTime();
+    }
+
+    /**
+     * Called by the selector backend when reading from or writing to the
+     * channel failed. Closes the connection and reports the exception.
+     *
+     * @param exception
+     *            the exception raised.
+     */
+    void connectionFailed(Exception exception) {
+        if (readyToStop) {
+            return;
+        }
+        readyToStop = true;
+
+        synchronized (pendingMessages) {
+            pendingMessages.notifyAll();
+        }
+
+        try {
+            closeAll();
+        } catch (Exception ex) {
+        }
+
+        server.clientException(this, exception);
+    }
+
+    /**
+     * Hands the waiting messages of this client to the executor again,
+     * after it refused them. Called by the server's retry thread.
+     */
+    void retryDispatch() {
+        Executor executor = server.getMessageExecutor();
+        synchronized (pendingMessages) {
+            if (readyToStop || executor == null || pendingMessages.isEmpty() || dispatchers > 0) {
+                return;
+            }
+            dispatchers++;
+        }
+        startDispatcher(executor);
+    }
+
+    /**
+     * Schedules a task handling the waiting messages of this client, for
+     * which a dispatcher was already counted. If the executor refuses it,
+     * the messages stay queued: a dispatcher still running handles them,
+     * or the server offers them again shortly. They are never handled on
+     * the calling thread, which reads from the client.
+     *
+     * @param executor
+     *            the executor handling the messages.
+     * @return false if the executor refused the task.
+     */
+    private boolean startDispatcher(Executor executor) {
+        try {
+            executor.execute(() -> dispatchPending(executor));
+            return true;
+        } catch (RejectedExecutionException ex) {
+            boolean retry;
+            synchronized (pendingMessages) {
+                dispatchers--;
+                retry = dispatchers == 0 && !readyToStop;
+            }
+            if (retry) {
+                server.retryDispatchLater(this);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns how many tasks may handle the messages of this client at once.
+     */
+    private int maxDispatchers() {
+        return orderIndependent ? server.getMaxConcurrentMessages() : 1;
+    }
+
+    /**
+     * Handles the waiting messages of this client, one per executor task, so
+     * that a busy client does not hold a worker while other clients wait.
+     *
+     * @param executor
+     *            the executor handling the messages.
+     */
+    private void dispatchPending(Executor executor) {
+        while (true) {
+            Object msg;
+            boolean resume = false;
+            synchronized (pendingMessages) {
+                msg = pendingMessages.pollFirst();
+                if (msg == null) {
+                    dispatchers--;
+                    return;
+                }
+                pendingMessages.notifyAll();
+                if (readsSuspended && pendingMessages.size() < server.getMaxPendingMessages()) {
+                    readsSuspended = false;
+                    resume = true;
+                }
+            }
+
+            if (resume) {
+                selectorChannel.resumeReads();
+            }
+
+            if (msg instanceof Frame frame) {
+                handleFrame(frame);
+            } else {
+                try {
+                    server.handleMessageFromClient(msg, this);
+                } catch (RuntimeException ex) {
+                    server.clientException(this, ex);
+                }
+            }
+
+            synchronized (pendingMessages) {
+                if (pendingMessages.isEmpty()) {
+                    dispatchers--;
+                    return;
+                }
+            }
+
+            try {
+                executor.execute(() -> dispatchPending(executor));
+                return;
+            } catch (RejectedExecutionException ex) {
+                // Keep handling on this thread, which is one of the
+                // executor's: the messages are not left without a handler.
+            }
+        }
+    }
+
+    /**
+     * Decodes a frame and handles the message it contains. A frame that
+     * cannot be decoded is reported and skipped.
+     *
+     * @param frame
+     *            the frame received.
+     */
+    private void handleFrame(Frame frame) {
+        Object msg;
+        try {
+            msg = codec.decode(frame.payload());
+        } catch (IOException | ClassNotFoundException ex) {
+            server.clientException(this, ex);
+            return;
+        }
+
+        if (!orderIndependent && server.isOrderIndependent(msg)) {
+            orderIndependent = true;
+        }
+
+        try {
+            if (server.getMessageExecutor() == null) {
+                server.handleMessageSerially(msg, this);
+            } else {
+                server.handleMessageFromClient(msg, this);
+            }
+        } catch (RuntimeException ex) {
+            server.clientException(this, ex);
+        }
+    }
+
     /**
      * Closes all connection to the server.
      *
@@ -234,6 +799,13 @@ public class ConnectionToClient extends Thread {
      *                if an I/O error occur when closing the connection.
      */
     private void closeAll() throws IOException {
+        if (selectorChannel != null) {
+            selectorChannel.close();
+            clientSocket = null;
+            server.deregisterConnection(this);
+            return;
+        }
+
         try {
             // Close the socket
             if (clientSocket != null)
@@ -253,9 +825,45 @@ public class ConnectionToClient extends Thread {
             // when they are garbage collected.
             output = null;
             input = null;
+            frameOutput = null;
+            frameInput = null;
             clientSocket = null;
         }
     }
+
+    /**
+     * A frame read by the selector backend and not yet decoded.
+     */
+    private record Frame(byte[] payload) {
+    }
+
+    /**
+     * Records the time bytes are received from a blocking socket. Reads
+     * are buffered above this stream, so it is called once per chunk read
+     * from the socket rather than once per byte.
+     */
+    private final class ActivityInputStream extends FilterInputStream {
+
+        ActivityInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                lastReceived = System.nanoTime();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0)
+                lastReceived = System.nanoTime();
+            return count;
+        }
+    }
 }
 // End of ConnectionToClient class{
 
@@ -0,0 +1,95 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Helper methods for the framed wire format. A client using this format
+ * first sends a four byte preface, then every message travels as a four
+ * byte length followed by the encoded message. Each frame is encoded on its
+ * own, so a frame can be read without any state from earlier frames. This
+ * lets the selector backend read messages with non-blocking channels.
+ * <p>
+ * The first frame in each direction negotiates the codec: the client sends
+ * the names of the codecs it supports, in order of preference and separated
+ * by commas, and the server answers with the name of the codec chosen.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.SelectorBackend
+ * @see ocsf.server.MessageCodec
+ */
+final class Framing {
+
+    /**
+     * The value sent by a client before its first frame ("OCSF"). A Java
+     * object stream always starts with 0xACED, so the two formats can be
+     * told apart by reading the first four bytes.
+     */
+    static final int PREFACE = 0x4F435346;
+
+    /**
+     * The largest frame accepted from a client, in bytes.
+     */
+    static final int MAX_FRAME_LENGTH = Integer.getInteger("ocsf.frame.max", 16 * 1024 * 1024);
+
+    private Framing() {
+    }
+
+    /**
+     * Checks a frame length read from a client.
+     *
+     * @param length the length.
+     * @exception StreamCorruptedException if the length is invalid.
+     */
+    static void checkLength(int length) throws StreamCorruptedException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * Reads one frame payload from a blocking stream.
+     *
+     * @param in the stream.
+     * @return the payload bytes.
+     * @exception IOException if an I/O error occurs.
+     */
+    static byte[] read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Writes one frame to a blocking stream and flushes it.
+     *
+     * @param out the stream.
+     * @param payload the payload bytes.
+     * @exception IOException if an I/O error occurs.
+     */
+    static void write(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Wraps a payload in a buffer ready to be written to a channel.
+     *
+     * @param payload the payload bytes.
+     * @return the frame, including its length.
+     */
+    static ByteBuffer toBuffer(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + payload.length);
+        buffer.putInt(payload.length).put(payload).flip();
+        return buffer;
+    }
+}
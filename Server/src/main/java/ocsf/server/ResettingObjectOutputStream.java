@@ -0,0 +1,142 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.*;
+
+/**
+ * An object output stream that resets itself after a number of messages or
+ * bytes. An <code>ObjectOutputStream</code> keeps a reference to every object
+ * it has written, so that an object written again is sent as a
+ * back-reference. On a connection that lives for hours this retains every
+ * message ever sent, on both sides, and an object modified after it was sent
+ * reaches the other side unchanged. Resetting clears the table on the
+ * writing side and tells the reading side to clear its own.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setStreamReset(int, long)
+ */
+final class ResettingObjectOutputStream extends ObjectOutputStream {
+
+    /**
+     * Counts the bytes written to the socket.
+     */
+    private final CountingOutputStream counter;
+
+    /**
+     * Number of objects added to the handle table since the last reset.
+     */
+    private volatile int objectsSinceReset;
+
+    /**
+     * Number of messages written since the last reset.
+     */
+    private int messagesSinceReset;
+
+    /**
+     * Value of the byte counter at the last reset.
+     */
+    private long bytesAtReset;
+
+    ResettingObjectOutputStream(OutputStream out) throws IOException {
+        this(new CountingOutputStream(out));
+    }
+
+    private ResettingObjectOutputStream(CountingOutputStream counter) throws IOException {
+        super(counter);
+        this.counter = counter;
+        // replaceObject is then called once for each object entering the
+        // handle table, which is how the table is measured.
+        enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) {
+        objectsSinceReset++;
+        return obj;
+    }
+
+    /**
+     * Writes a message, then resets the stream if the given limits are
+     * reached.
+     *
+     * @param msg the message.
+     * @param resetMessages the number of messages after which to reset.
+     * @param resetBytes the number of bytes after which to reset.
+     * @return the number of objects the handle table held when it was
+     *         reset, or -1 if the stream was not reset.
+     * @exception IOException if an I/O error occurs.
+     */
+    int writeMessage(Object msg, int resetMessages, long resetBytes) throws IOException {
+        writeObject(msg);
+        messagesSinceReset++;
+        if (messagesSinceReset < resetMessages && counter.count - bytesAtReset < resetBytes) {
+            return -1;
+        }
+        int objects = objectsSinceReset;
+        reset();
+        return objects;
+    }
+
+    /**
+     * Writes a heartbeat: a reset of the stream, which the receiving object
+     * stream consumes on its own without returning an object.
+     *
+     * @exception IOException if an I/O error occurs.
+     */
+    void writeHeartbeat() throws IOException {
+        reset();
+        flush();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        objectsSinceReset = 0;
+        messagesSinceReset = 0;
+        bytesAtReset = counter.count;
+    }
+
+    /**
+     * Returns the number of objects the handle table holds.
+     *
+     * @return the number of objects written since the last reset.
+     */
+    int getObjectsSinceReset() {
+        return objectsSinceReset;
+    }
+
+    /**
+     * Returns the number of bytes written since the stream was created.
+     *
+     * @return the number of bytes written.
+     */
+    long getBytesWritten() {
+        return counter.count;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <code> SelectorBackend </code> serves clients with a small number of
+ * I/O threads instead of one thread per connection. Each I/O thread owns a
+ * <code> Selector </code> and the non-blocking channels assigned to it. It
+ * reads bytes into a buffer shared by all its channels, cuts them into
+ * frames and hands complete frames to the server's message executor, where
+ * they are decoded and handled. An idle connection therefore costs a
+ * channel and a few small objects, but no thread and no read buffer.
+ * <p>
+ * Clients must use the framed wire format.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.Framing
+ * @see ocsf.server.SelectorChannel
+ */
+final class SelectorBackend {
+
+    /**
+     * Size of the read buffer of each I/O thread.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final AbstractServer server;
+
+    private final IoThread[] ioThreads;
+
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    /**
+     * Starts the I/O threads.
+     *
+     * @param server the server the connections belong to.
+     * @param threads the number of I/O threads.
+     * @exception IOException if a selector cannot be opened.
+     */
+    SelectorBackend(AbstractServer server, int threads) throws IOException {
+        this.server = server;
+        this.ioThreads = new IoThread[Math.max(1, threads)];
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread(Selector.open());
+            Thread thread = new Thread(ioThreads[i], "ocsf-selector-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Assigns a newly accepted channel to one of the I/O threads.
+     *
+     * @param channel the accepted channel.
+     * @exception IOException if the channel cannot be made non-blocking.
+     */
+    void register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        IoThread ioThread = ioThreads[Math.floorMod(nextThread.getAndIncrement(), ioThreads.length)];
+        ioThread.execute(() -> {
+            SelectorChannel selectorChannel = new SelectorChannel(channel, ioThread);
+            try {
+                selectorChannel.register(ioThread.selector);
+            } catch (IOException ex) {
+                selectorChannel.close();
+                return;
+            }
+            // clientConnected is called once the client negotiated its codec
+            selectorChannel.attach(new ConnectionToClient(selectorChannel, server));
+        });
+    }
+
+    /**
+     * Stops the I/O threads. Connections should be closed first.
+     */
+    void shutdown() {
+        running = false;
+        for (IoThread ioThread : ioThreads) {
+            ioThread.selector.wakeup();
+        }
+    }
+
+    /**
+     * A thread running one selector and the channels registered with it.
+     */
+    final class IoThread implements Runnable {
+
+        private final Selector selector;
+
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        private IoThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Runs a task on this I/O thread. Changes to selection keys are
+         * made this way so that they never race with select().
+         *
+         * @param task the task.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        SelectorChannel channel = (SelectorChannel) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            channel.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            channel.onWritable();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException ex) {
+                // The selector failed: fall through and release it.
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((SelectorChannel) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
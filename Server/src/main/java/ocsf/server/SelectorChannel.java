@@ -0,0 +1,286 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * The non-blocking channel of one client served by the selector backend.
+ * Reading is done only by the owning I/O thread. Sending may be done by
+ * any thread: a frame is written directly when nothing is queued, and the
+ * rest is left to the I/O thread when the socket buffer is full.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.SelectorBackend
+ */
+final class SelectorChannel {
+
+    /**
+     * The most bytes that may wait to be written to a client that does not
+     * read its responses. Beyond that the client is disconnected.
+     */
+    private static final int MAX_QUEUED_BYTES = Integer.getInteger("ocsf.selector.maxQueuedBytes", 8 * 1024 * 1024);
+
+    private final SocketChannel channel;
+
+    private final SelectorBackend.IoThread ioThread;
+
+    private SelectionKey key;
+
+    private ConnectionToClient connection;
+
+    // Read state, only used by the I/O thread.
+
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+
+    private boolean prefaceRead;
+
+    private byte[] frame;
+
+    private int framePosition;
+
+    // Write state, guarded by writeQueue.
+
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    private int queuedBytes;
+
+    private boolean closed;
+
+    SelectorChannel(SocketChannel channel, SelectorBackend.IoThread ioThread) {
+        this.channel = channel;
+        this.ioThread = ioThread;
+    }
+
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    void attach(ConnectionToClient connection) {
+        this.connection = connection;
+    }
+
+    Socket socket() {
+        return channel.socket();
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Reads what is available and hands every complete frame to the
+     * connection. Called by the I/O thread.
+     *
+     * @param buffer the I/O thread's read buffer.
+     */
+    void onReadable(ByteBuffer buffer) {
+        buffer.clear();
+        try {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                fail(new EOFException("Client closed the connection"));
+                return;
+            }
+            if (read > 0 && connection != null) {
+                connection.markReceived();
+            }
+            buffer.flip();
+            if (!extractFrames(buffer)) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Cuts the bytes of the buffer into frames. All the bytes are consumed,
+     * because the buffer is shared by every channel of the I/O thread.
+     *
+     * @param buffer the bytes read.
+     * @return false if the connection wants reading to pause.
+     */
+    private boolean extractFrames(ByteBuffer buffer) throws IOException {
+        boolean room = true;
+        while (buffer.hasRemaining()) {
+            if (frame == null) {
+                while (header.hasRemaining() && buffer.hasRemaining()) {
+                    header.put(buffer.get());
+                }
+                if (header.hasRemaining()) {
+                    break;
+                }
+                int value = header.getInt(0);
+                header.clear();
+
+                if (!prefaceRead) {
+                    if (value != Framing.PREFACE) {
+                        throw new StreamCorruptedException("Client does not use the framed wire format");
+                    }
+                    prefaceRead = true;
+                    continue;
+                }
+
+                Framing.checkLength(value);
+                frame = new byte[value];
+                framePosition = 0;
+            }
+
+            int count = Math.min(buffer.remaining(), frame.length - framePosition);
+            buffer.get(frame, framePosition, count);
+            framePosition += count;
+
+            if (framePosition == frame.length) {
+                byte[] complete = frame;
+                frame = null;
+                room &= connection.receiveFrame(complete);
+            }
+        }
+        return room;
+    }
+
+    /**
+     * Returns true while frames wait to be written to the client.
+     * Called by any thread.
+     */
+    boolean hasQueuedWrites() {
+        synchronized (writeQueue) {
+            return !writeQueue.isEmpty();
+        }
+    }
+
+    /**
+     * Waits until every queued frame is written, the channel is closed or
+     * the timeout expires. Called by any thread but the I/O thread.
+     *
+     * @param timeoutMillis the longest time to wait.
+     * @return true if nothing waits to be written any more.
+     */
+    boolean awaitFlushed(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        synchronized (writeQueue) {
+            while (!writeQueue.isEmpty() && !closed) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                writeQueue.wait(Math.max(1, left / 1_000_000L));
+            }
+            return writeQueue.isEmpty();
+        }
+    }
+
+    /**
+     * Sends one frame. Called by any thread.
+     *
+     * @param payload the payload of the frame.
+     * @exception IOException if the channel is closed or fails.
+     */
+    void send(byte[] payload) throws IOException {
+        ByteBuffer buffer = Framing.toBuffer(payload);
+        synchronized (writeQueue) {
+            if (closed) {
+                throw new SocketException("socket does not exist");
+            }
+            if (writeQueue.isEmpty()) {
+                channel.write(buffer);
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+            }
+            if (queuedBytes + buffer.remaining() > MAX_QUEUED_BYTES) {
+                throw new SocketException("client is not reading its responses");
+            }
+            writeQueue.addLast(buffer);
+            queuedBytes += buffer.remaining();
+            if (writeQueue.size() == 1) {
+                ioThread.execute(this::enableWrites);
+            }
+        }
+    }
+
+    /**
+     * Writes queued frames once the socket accepts more data. Called by the
+     * I/O thread.
+     */
+    void onWritable() {
+        try {
+            synchronized (writeQueue) {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer buffer = writeQueue.peekFirst();
+                    int written = channel.write(buffer);
+                    queuedBytes -= written;
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    writeQueue.pollFirst();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                writeQueue.notifyAll();
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Starts reading again after the connection's backlog was handled.
+     * Called by any thread.
+     */
+    void resumeReads() {
+        ioThread.execute(() -> {
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    private void enableWrites() {
+        synchronized (writeQueue) {
+            if (key != null && key.isValid() && !writeQueue.isEmpty()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void fail(IOException exception) {
+        if (connection != null) {
+            connection.connectionFailed(exception);
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * Closes the channel. Safe to call from any thread, more than once.
+     */
+    void close() {
+        synchronized (writeQueue) {
+            closed = true;
+            writeQueue.clear();
+            queuedBytes = 0;
+            writeQueue.notifyAll();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,50 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.*;
+
+/**
+ * The codec used when no other codec is agreed on: every message is written
+ * with Java serialization, in a stream of its own.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.MessageCodec
+ */
+public final class SerializationCodec implements MessageCodec {
+
+    /**
+     * The name of this codec. Always supported by both sides.
+     */
+    public static final String NAME = "java";
+
+    /**
+     * The shared instance.
+     */
+    public static final SerializationCodec INSTANCE = new SerializationCodec();
+
+    private SerializationCodec() {
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public byte[] encode(Object msg) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(msg);
+        }
+        return bytes.toByteArray();
+    }
+
+    public Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in microseconds. Values below 16 have
+ * a bucket each; above that every power of two is split into 8 buckets,
+ * so a percentile read from the histogram is within 12.5% of the real
+ * value. Recording is one atomic increment and never allocates.
+ */
+public final class LatencyHistogram {
+
+    private static final int LINEAR = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int MAX_EXPONENT = 40; // about 12 days
+    private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 4 + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long micros) {
+        counts.incrementAndGet(indexOf(micros));
+    }
+
+    /**
+     * Returns a copy of the bucket counts, to be read with
+     * {@link #percentile} alone or after subtracting an older copy.
+     */
+    public long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the counted
+     * durations lies, as the upper bound of its bucket, or 0 if nothing
+     * was counted.
+     *
+     * @param counts bucket counts from {@link #snapshot}.
+     * @param fraction between 0 and 1, such as 0.99.
+     */
+    public static long percentile(long[] counts, double fraction) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    /**
+     * Returns the number of counted durations of at most the given value,
+     * counting only buckets whose upper bound is within it, so a bucket
+     * straddling the value is left out.
+     */
+    public static long countAtMost(long[] counts, long micros) {
+        long count = 0;
+        for (int i = 0; i < counts.length && upperBound(i) <= micros; i++) {
+            count += counts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Returns the counts of the first snapshot minus those of the second.
+     */
+    public static long[] minus(long[] later, long[] earlier) {
+        long[] diff = new long[later.length];
+        for (int i = 0; i < later.length; i++) {
+            diff[i] = later[i] - (earlier == null ? 0 : earlier[i]);
+        }
+        return diff;
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < LINEAR) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,146 @@
+package controller;
+
+import model.common.Response;
+import model.dto.CommandDTO;
+import model.AppointmentStatus;
+import model.repository.AppointmentRepository;
+import model.repository.Repository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Books one slot from many threads at once and checks that exactly one
+ * booking succeeds and every other one is refused with SLOT_TAKEN, on one
+ * server and on two servers that do not share their slot locks, where
+ * only the database's unique index on active slots keeps them apart.
+ * <p>
+ * Runs against the database named by db.url, db.user and db.password,
+ * which must have the appointment_active_slot index, and is skipped when
+ * db.url is not set. The doctor and the patients booking are read from
+ * test.booking.doctorId (default 1) and test.booking.patientId (default 1).
+ * Each test books a slot on a random day in the next century and deletes
+ * the appointments of that day when it ends.
+ */
+class BookingConcurrencyTest {
+
+    private static final int THREADS = 32;
+
+    private static final long DOCTOR_ID = Long.getLong("test.booking.doctorId", 1);
+    private static final long PATIENT_ID = Long.getLong("test.booking.patientId", 1);
+
+    private static final LocalTime TIME = LocalTime.of(10, 30);
+
+    private LocalDate date;
+
+    @BeforeAll
+    static void requireDatabase() {
+        assumeTrue(System.getProperty("db.url") != null, "db.url is not set");
+    }
+
+    @BeforeEach
+    void pickDay() {
+        date = LocalDate.of(2100, 1, 1).plusDays(ThreadLocalRandom.current().nextInt(36_500));
+    }
+
+    @AfterEach
+    void deleteAppointments() throws SQLException {
+        String sql = "DELETE FROM appointment WHERE doctor_id = ? AND appointment_date = ?::date";
+        try (Connection conn = Repository.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, DOCTOR_ID);
+            ps.setString(2, date.toString());
+            ps.executeUpdate();
+        }
+    }
+
+    @Test
+    void oneServerBooksASlotOnce() throws Exception {
+        AppointmentController server = new AppointmentController();
+        assertOneBooking(race(server, server));
+    }
+
+    @Test
+    void twoServersBookASlotOnce() throws Exception {
+        assertOneBooking(race(new AppointmentController(), new AppointmentController()));
+    }
+
+    @Test
+    void uniqueIndexRefusesASecondActiveAppointment() throws SQLException {
+        AppointmentRepository repository = new AppointmentRepository();
+        repository.createAppointment(PATIENT_ID, DOCTOR_ID, 0, date, TIME, AppointmentStatus.PENDING);
+
+        SQLException e = assertThrows(SQLException.class, () ->
+                repository.createAppointment(PATIENT_ID, DOCTOR_ID, 0, date, TIME, AppointmentStatus.PENDING));
+        assertTrue(AppointmentRepository.isSlotTaken(e), e.getMessage());
+    }
+
+    /**
+     * Books the slot from every thread at once, the threads taking turns
+     * between the two servers, and returns the answers.
+     */
+    private List<Response> race(AppointmentController first, AppointmentController second) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Response>> bookings = new ArrayList<>();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                AppointmentController server = i % 2 == 0 ? first : second;
+                bookings.add(threads.submit(() -> {
+                    start.await();
+                    return server.bookAppointment(bookingCommand(), patientSession());
+                }));
+            }
+            start.countDown();
+            List<Response> answers = new ArrayList<>();
+            for (Future<Response> booking : bookings) {
+                answers.add(booking.get());
+            }
+            return answers;
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    private CommandDTO bookingCommand() {
+        CommandDTO command = new CommandDTO(CommandDTO.Action.BOOK_APPOINTMENT);
+        command.getData().put("doctorId", DOCTOR_ID);
+        command.getData().put("date", date);
+        command.getData().put("time", TIME);
+        return command;
+    }
+
+    private static Session patientSession() {
+        return new Session(PATIENT_ID, "PATIENT", PATIENT_ID, null);
+    }
+
+    private static void assertOneBooking(List<Response> answers) {
+        int booked = 0;
+        for (Response answer : answers) {
+            if (answer.isOk()) {
+                booked++;
+            } else {
+                assertEquals("SLOT_TAKEN", answer.getErrorCode(), answer.getMessage());
+            }
+        }
+        assertEquals(1, booked, "bookings that succeeded");
+    }
+}
@@ -0,0 +1,45 @@
+package model.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that the binary codec decodes nested values up to a depth no
+ * command comes near, and refuses a message nested deeper than that
+ * instead of running out of stack.
+ */
+class BinaryCodecTest {
+
+    /** The tag and the count of a one-element list. */
+    private static final byte[] ONE_ELEMENT_LIST = {13, 1};
+
+    @Test
+    void decodesNestedLists() throws Exception {
+        Object nested = null;
+        for (int i = 0; i < 32; i++) {
+            List<Object> list = new ArrayList<>();
+            list.add(nested);
+            nested = list;
+        }
+        assertEquals(nested, BinaryCodec.INSTANCE.decode(BinaryCodec.INSTANCE.encode(nested)));
+    }
+
+    @Test
+    void refusesDeeplyNestedLists() {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < 100_000; i++) {
+            payload.writeBytes(ONE_ELEMENT_LIST);
+        }
+        payload.write(0);
+        byte[] bytes = payload.toByteArray();
+
+        assertThrows(StreamCorruptedException.class, () -> BinaryCodec.INSTANCE.decode(bytes));
+    }
+}
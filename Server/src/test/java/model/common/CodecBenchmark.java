@@ -0,0 +1,106 @@
+package model.common;
+
+import model.dto.AppointmentDTO;
+import model.dto.CommandDTO;
+import ocsf.server.MessageCodec;
+import ocsf.server.SerializationCodec;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the size and the encoding and decoding time of two typical
+ * messages with Java serialization and with the binary codec: a
+ * GET_AVAILABLE_SLOTS request, and a GET_ALL_APPOINTMENTS response of
+ * 500 rows. Each message is first checked to decode to what it encodes.
+ * <p>
+ * Usage: <code>CodecBenchmark</code>, no arguments.
+ */
+public final class CodecBenchmark {
+
+    private static final String[] FIRST_NAMES = {
+            "Ana", "Ion", "Maria", "Andrei", "Elena", "Mihai", "Ioana", "Vlad", "Cristina", "Radu"
+    };
+    private static final String[] LAST_NAMES = {
+            "Popescu", "Ionescu", "Dumitru", "Stan", "Gheorghe", "Rusu", "Munteanu", "Matei", "Constantin", "Marin"
+    };
+    private static final String[] SERVICES = {
+            "Consultatie cardiologie", "Ecografie abdominala", "EKG", "Analize sange",
+            "Consultatie dermatologie", "RMN", "Radiografie", "Control oftalmologic"
+    };
+    private static final String[] STATUSES = {"PENDING", "CONFIRMED", "DONE", "CANCELED"};
+
+    private CodecBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Request request = new Request(new CommandDTO(CommandDTO.Action.GET_AVAILABLE_SLOTS, 7L)
+                .put("doctorId", 3L)
+                .put("date", LocalDate.of(2026, 10, 1)));
+        request.setType(RequestType.COMMAND);
+        request.setRequestId(43);
+        Response appointments = Response.ok(appointments(500)).withRequestId(42);
+
+        MessageCodec[] codecs = {SerializationCodec.INSTANCE, BinaryCodec.INSTANCE};
+        for (MessageCodec codec : codecs) {
+            for (Object message : List.of(request, appointments)) {
+                byte[] encoded = codec.encode(message);
+                if (!Arrays.equals(encoded, codec.encode(codec.decode(encoded)))) {
+                    throw new AssertionError(codec.getName() + " does not round trip " + message);
+                }
+            }
+        }
+
+        measure("GET_AVAILABLE_SLOTS request", request, 200_000, codecs);
+        measure("GET_ALL_APPOINTMENTS 500 rows", appointments, 2_000, codecs);
+    }
+
+    private static void measure(String name, Object message, int iterations, MessageCodec[] codecs)
+            throws Exception {
+        for (MessageCodec codec : codecs) {
+            for (int i = 0; i < iterations / 2; i++) {
+                codec.decode(codec.encode(message));
+            }
+            long start = System.nanoTime();
+            int size = 0;
+            for (int i = 0; i < iterations; i++) {
+                size = codec.encode(message).length;
+            }
+            long encoded = System.nanoTime();
+            byte[] bytes = codec.encode(message);
+            for (int i = 0; i < iterations; i++) {
+                codec.decode(bytes);
+            }
+            long decoded = System.nanoTime();
+            System.out.printf("%-30s %-18s %7d bytes  encode %8.1f us  decode %8.1f us%n",
+                    name, codec.getName(), size,
+                    (encoded - start) / 1e3 / iterations, (decoded - encoded) / 1e3 / iterations);
+        }
+    }
+
+    private static List<AppointmentDTO> appointments(int count) {
+        Random random = new Random(1);
+        List<AppointmentDTO> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(new AppointmentDTO(
+                    10000 + i,
+                    100 + random.nextInt(200),
+                    pick(random, FIRST_NAMES) + " " + pick(random, LAST_NAMES),
+                    1 + random.nextInt(20),
+                    "Dr. " + pick(random, FIRST_NAMES) + " " + LAST_NAMES[random.nextInt(3)],
+                    pick(random, SERVICES),
+                    LocalDate.of(2026, 10, 1).plusDays(random.nextInt(60)),
+                    LocalTime.of(8 + random.nextInt(9), random.nextBoolean() ? 0 : 30),
+                    pick(random, STATUSES)));
+        }
+        return list;
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
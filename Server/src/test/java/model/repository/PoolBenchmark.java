@@ -0,0 +1,165 @@
+package model.repository;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Measures what the pool adds to a query: borrow a connection, prepare,
+ * execute and close, against a stub driver that answers at once and
+ * counts the calls that would cost a network round trip, isValid and
+ * executeQuery. Each of them can be made to take a simulated round trip
+ * time, to show what the round trips the pool makes cost against a
+ * remote database.
+ * <p>
+ * Usage: <code>PoolBenchmark [queries] [rttMicros]</code>, by default
+ * 200000 queries per round and no round trip time. The stub is used
+ * unless db.url is set.
+ */
+public final class PoolBenchmark {
+
+    private static final AtomicLong ROUND_TRIPS = new AtomicLong();
+    private static long rttNanos;
+
+    private PoolBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        rttNanos = args.length > 1 ? Long.parseLong(args[1]) * 1000 : 0;
+        if (System.getProperty("db.url") == null) {
+            DriverManager.registerDriver(new StubDriver());
+            System.setProperty("db.url", StubDriver.URL);
+            System.setProperty("db.pool.maintainIntervalMillis", "0");
+        }
+
+        for (int round = 0; round < 5; round++) {
+            long roundTrips = ROUND_TRIPS.get();
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                try (Connection conn = Repository.getConnection();
+                     PreparedStatement ps = conn.prepareStatement("SELECT 1 WHERE ? = ?")) {
+                    ps.setLong(1, i);
+                    ps.setLong(2, i);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            // nothing to read
+                        }
+                    }
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("round %d: %.0f ns/query, %.2f round trips/query%n",
+                    round, elapsed / (double) queries, (ROUND_TRIPS.get() - roundTrips) / (double) queries);
+        }
+    }
+
+    private static void roundTrip() {
+        ROUND_TRIPS.incrementAndGet();
+        long end = System.nanoTime() + rttNanos;
+        while (System.nanoTime() < end) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Hands out connections whose statements return empty results.
+     */
+    private static final class StubDriver implements Driver {
+
+        static final String URL = "jdbc:benchstub:pool";
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            return acceptsURL(url) ? (Connection) stub(Connection.class, new boolean[1], new boolean[] {true}) : null;
+        }
+
+        private static Object stub(Class<?> type, boolean[] closed, boolean[] autoCommit) {
+            return Proxy.newProxyInstance(PoolBenchmark.class.getClassLoader(), new Class<?>[] {type},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "isValid", "executeQuery" -> {
+                                roundTrip();
+                                return method.getName().equals("isValid")
+                                        ? Boolean.TRUE
+                                        : stub(ResultSet.class, new boolean[1], autoCommit);
+                            }
+                            case "isClosed" -> {
+                                return closed[0];
+                            }
+                            case "close" -> {
+                                closed[0] = true;
+                                return null;
+                            }
+                            case "getAutoCommit" -> {
+                                return autoCommit[0];
+                            }
+                            case "setAutoCommit" -> {
+                                autoCommit[0] = (Boolean) args[0];
+                                return null;
+                            }
+                            case "prepareStatement", "createStatement" -> {
+                                return stub(PreparedStatement.class, new boolean[1], autoCommit);
+                            }
+                            case "hashCode" -> {
+                                return System.identityHashCode(proxy);
+                            }
+                            case "equals" -> {
+                                return proxy == args[0];
+                            }
+                            default -> {
+                                Class<?> returned = method.getReturnType();
+                                if (returned == boolean.class) {
+                                    return false;
+                                }
+                                if (returned == int.class) {
+                                    return 0;
+                                }
+                                if (returned == long.class) {
+                                    return 0L;
+                                }
+                                return null;
+                            }
+                        }
+                    });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith(URL);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() {
+            return Logger.getGlobal();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package model.repository;
+
+import java.time.LocalDate;
+
+/**
+ * Times two hot appointment queries in the connection mode chosen by
+ * db.mode, to compare the pooler's simple queries with the server-side
+ * prepared statements of the direct mode. The first round warms up and
+ * is not printed.
+ * <p>
+ * Usage: <code>PreparedStatementBenchmark [calls]</code>, by default
+ * 20000 calls per query and round, with db.url, db.user and db.password
+ * naming a database whose appointments span doctors 0 to 199 and the 90
+ * days from 2026-01-01, and db.mode set to pooler or direct. Over
+ * loopback it shows mostly the parse and plan work saved; the network
+ * round trip is the same in both modes.
+ */
+public final class PreparedStatementBenchmark {
+
+    private static final LocalDate FIRST_DAY = LocalDate.of(2026, 1, 1);
+
+    private PreparedStatementBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        AppointmentRepository repository = new AppointmentRepository();
+        String mode = System.getProperty("db.mode", "pooler");
+
+        for (int round = 0; round < 6; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                repository.findBookedTimes(i % 200, FIRST_DAY.plusDays(i % 90));
+            }
+            long booked = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                repository.findSlotById(1 + i * 7L % 390_000);
+            }
+            long slots = System.nanoTime();
+            if (round > 0) {
+                System.out.printf("%s round %d: findBookedTimes %.1f us, findSlotById %.1f us%n",
+                        mode, round, (booked - start) / 1e3 / calls, (slots - booked) / 1e3 / calls);
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,162 @@
+package ocsf.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the cost of idle connections on the three server backends,
+ * then the time taken by a few active clients to echo messages.
+ * <p>
+ * Usage: <code>IdleConnectionsBenchmark platform|virtual|selector
+ * [connections] [activeClients] [roundTrips]</code>, by default 1000
+ * connections, 50 active clients and 15000 round trips in all. Every
+ * client uses the framed wire format with the Java serialization codec,
+ * so the backends see the same bytes. Run each backend in its own JVM,
+ * with a file descriptor limit above twice the number of connections.
+ */
+public final class IdleConnectionsBenchmark {
+
+    private IdleConnectionsBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String backend = args.length > 0 ? args[0] : "selector";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int active = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int roundTrips = args.length > 3 ? Integer.parseInt(args[3]) : 15000;
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        AbstractServer server = new AbstractServer(port) {
+            @Override
+            protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+                try {
+                    client.sendToClient(msg);
+                } catch (IOException ignored) {
+                    // the client went away
+                }
+            }
+        };
+        server.setBacklog(4096);
+        server.setMessageExecutor(Executors.newFixedThreadPool(4));
+        switch (backend) {
+            case "selector" -> {
+                server.setUseSelector(true);
+                server.setSelectorThreads(2);
+            }
+            case "virtual" -> server.setUseVirtualThreads(true);
+            case "platform" -> {
+            }
+            default -> throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+        server.listen();
+        while (!server.isListening()) {
+            Thread.sleep(10);
+        }
+
+        settle();
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        List<Client> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            clients.add(new Client(port));
+        }
+        long connected = System.nanoTime() - start;
+        settle();
+        System.out.printf("%s: %d connections in %d ms, %d threads, heap +%.1f MB (%d B per connection), RSS %d MB%n",
+                backend, connections, connected / 1_000_000,
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                (usedHeap() - heapBefore) / 1e6, (usedHeap() - heapBefore) / connections,
+                residentKilobytes() / 1024);
+
+        int perClient = roundTrips / Math.max(1, Math.min(active, connections));
+        ExecutorService senders = Executors.newFixedThreadPool(Math.max(1, Math.min(active, connections)));
+        byte[] frame = Framing.toBuffer(SerializationCodec.INSTANCE.encode("echo")).array();
+        start = System.nanoTime();
+        List<Future<?>> echoes = new ArrayList<>();
+        for (int i = 0; i < Math.min(active, connections); i++) {
+            Client client = clients.get(i);
+            echoes.add(senders.submit(() -> {
+                for (int k = 0; k < perClient; k++) {
+                    client.echo(frame);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> echo : echoes) {
+            echo.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        senders.shutdown();
+        System.out.printf("%s: %d round trips by %d clients in %d ms%n",
+                backend, perClient * echoes.size(), echoes.size(), elapsed / 1_000_000);
+
+        for (Client client : clients) {
+            client.socket.close();
+        }
+        server.close();
+        System.exit(0);
+    }
+
+    /**
+     * A framed client that agreed on the serialization codec. Each frame
+     * is written at once, so that it leaves in one segment, and without a
+     * buffer kept per connection, which would count in the heap measured.
+     */
+    private static final class Client {
+        private final Socket socket;
+        private final DataInputStream in;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            in = new DataInputStream(socket.getInputStream());
+            byte[] offer = Framing.toBuffer(SerializationCodec.NAME.getBytes(StandardCharsets.UTF_8)).array();
+            byte[] hello = ByteBuffer.allocate(4 + offer.length).putInt(Framing.PREFACE).put(offer).array();
+            socket.getOutputStream().write(hello);
+            Framing.read(in);
+        }
+
+        void echo(byte[] frame) throws IOException {
+            socket.getOutputStream().write(frame);
+            Framing.read(in);
+        }
+    }
+
+    private static void settle() throws InterruptedException {
+        Thread.sleep(500);
+        System.gc();
+        Thread.sleep(300);
+        System.gc();
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long residentKilobytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS")) {
+                    return Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+            // not on Linux
+        }
+        return 0;
+    }
+}